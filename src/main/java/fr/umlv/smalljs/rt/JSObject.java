@@ -9,6 +9,7 @@ import java.lang.invoke.SwitchPoint;
 import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 public class JSObject {
@@ -126,6 +127,10 @@ public class JSObject {
   public int length() {
     return valueMap.size();
   }
+
+  public void forEach(BiConsumer<? super String, Object> consumer) {
+    valueMap.forEach(consumer);
+  }
   
   public JSObject mirror(Function<Object, Object> valueMapper) {
     var mirror = newObject(null);
@@ -0,0 +1,117 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// cache of a quickened FUNCALL instruction, the last function called by the instruction,
+// only functions encoded as dictionary indexes are cached, objects of the heap can move
+//
+// For a native function with at most MAX_NATIVE_ARITY parameters, the cache also stores the method handle
+// of the function adapted to be called with invokeExact, either
+//   (Object receiver, int... args)int      if the native function takes and returns ints
+//   (Object receiver, Object... args)Object otherwise
+//
+// The cache also counts the calls of interpreted functions, to find the call sites worth inlining (see Inliner),
+// a cached code replaced by a code with inlined calls is not a hit, so the new code is looked up again.
+final class CallCache {
+	static final int MAX_NATIVE_ARITY = 4;
+
+	private final int argumentCount;
+	private int qualifier;      // dictionary index of the function
+	private JSObject function;
+	private Code code;          // null if the function is a native function
+	private int codeIndex;      // dictionary index of the code
+	private MethodHandle nativeHandle;  // null if the native function can not be called with invokeExact
+	private boolean intNative;
+	private int callCount;
+
+	CallCache(int argumentCount) {
+		this.argumentCount = argumentCount;
+	}
+
+	int argumentCount() {
+		return argumentCount;
+	}
+
+	// true if the function encoded as qualifier is the last function called
+	boolean hit(int qualifier) {
+		return function != null && this.qualifier == qualifier && (code == null || !code.tier().replaced());
+	}
+
+	int qualifier() {
+		return qualifier;
+	}
+
+	JSObject function() {
+		return function;
+	}
+
+	Code code() {
+		return code;
+	}
+
+	int codeIndex() {
+		return codeIndex;
+	}
+
+	MethodHandle nativeHandle() {
+		return nativeHandle;
+	}
+
+	boolean intNative() {
+		return intNative;
+	}
+
+	int callCount() {
+		return callCount;
+	}
+
+	// count a call of an interpreted function, return the number of calls
+	int countCall() {
+		return ++callCount;
+	}
+
+	void update(int qualifier, JSObject function, Code code, int codeIndex) {
+		this.qualifier = qualifier;
+		this.function = function;
+		this.code = code;
+		this.codeIndex = codeIndex;
+		this.intNative = code == null && isIntNative(function.getMethodHandle().type(), argumentCount);
+		this.nativeHandle = (code == null) ? nativeHandle(function.getMethodHandle(), argumentCount, intNative) : null;
+	}
+
+	private static boolean isIntNative(MethodType type, int argumentCount) {
+		if (type.returnType() != int.class || type.parameterCount() != argumentCount + 1) {
+			return false;
+		}
+		for (var i = 1; i < type.parameterCount(); i++) {
+			if (type.parameterType(i) != int.class) {
+				return false;
+			}
+		}
+		return !type.parameterType(0).isPrimitive();
+	}
+
+	private static MethodHandle nativeHandle(MethodHandle mh, int argumentCount, boolean intNative) {
+		if (argumentCount > MAX_NATIVE_ARITY) {
+			return null;
+		}
+		if (intNative) {
+			var intTypes = Collections.<Class<?>>nCopies(argumentCount, int.class);
+			return mh.asType(MethodType.methodType(int.class, Object.class).appendParameterTypes(intTypes));
+		}
+		// let JSObject.invoke report the wrong number of arguments
+		if (!mh.isVarargsCollector() && mh.type().parameterCount() != argumentCount + 1) {
+			return null;
+		}
+		return mh.asType(MethodType.genericMethodType(argumentCount + 1));
+	}
+
+	@Override
+	public String toString() {
+		return "cache " + argumentCount + " " + (function == null ? "" : function.getName());
+	}
+}
@@ -0,0 +1,531 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.CODE_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUNCALL_PREFIX;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.INITIAL_STACK_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.NO_RESULT;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.QUALIFIER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.callNative;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.callOperator;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.frameSize;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.growStack;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.operatorBindings;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveCall;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.smallIntOperation;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.stackOverflow;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the closure compiled interpreter (see Config.Dispatch), it executes the same instructions as StackInterpreter,
+// with the same tagged values, the same heap and the same frame layout,
+// but the instructions of a Code are translated once to an array of nodes, one node per instruction.
+//
+// A node is indexed by the pc of its instruction, so the labels of the jumps are unchanged,
+// its operands are decoded by the translation, so the dictionary is not accessed to execute
+// a LOOKUP, a GET, a PUT or a FUNCALL and the instructions are not quickened, the caches are stored in the nodes.
+// The nodes of the caller of a function are stored in Frame.returnNodes, indexed by the call depth.
+final class ClosureInterpreter {
+	private ClosureInterpreter() {
+		throw new AssertionError();
+	}
+
+	// pc returned by the last RET of the interpreter
+	private static final int HALT = -1;
+
+	// an instruction and its decoded operands, return the pc of the next instruction
+	@FunctionalInterface
+	interface Node {
+		int execute(Frame frame);
+	}
+
+	// the state of the interpreter, shared by all nodes
+	static final class Frame {
+		private final Dictionary dict;
+		private final JSObject globalEnv;
+		private final Config config;
+		private final Heap heap;
+		private final int undefined;
+		// the nodes of each code, translated on the first call
+		private final IdentityHashMap<Code, Node[]> translations = new IdentityHashMap<>();
+
+		private Memory stack;
+		private int sp;
+		private int bp;
+		private Code code;
+		private Node[] nodes;
+		private int functionIndex;
+		private int codeIndex;
+		private int callDepth;
+		private Node[][] returnNodes = new Node[16][];
+		private int result;
+
+		// the operator opcodes are valid only if the global operators have not been redefined
+		private SwitchPoint globalSwitchPoint;
+		private int[] operators;
+
+		private Frame(Dictionary dict, JSObject globalEnv, Config config, Heap heap) {
+			this.dict = dict;
+			this.globalEnv = globalEnv;
+			this.config = config;
+			this.heap = heap;
+			this.undefined = encodeDictObject(UNDEFINED, dict);
+			this.globalSwitchPoint = globalEnv.getSwitchPoint();
+			this.operators = operatorBindings(globalEnv, dict);
+		}
+
+		private void push(int value) {
+			stack.set(sp++, value);
+		}
+
+		private int pop() {
+			return stack.get(--sp);
+		}
+
+		private Node[] nodes(Code code) {
+			var nodes = translations.get(code);
+			if (nodes == null) {
+				nodes = translate(code, dict);
+				translations.put(code, nodes);
+			}
+			return nodes;
+		}
+
+		// the dictionary index of the function bound to the operator, recomputed if the global environment has changed
+		private int operatorBinding(int opcode) {
+			if (globalEnv.getSwitchPoint() != globalSwitchPoint) {
+				globalSwitchPoint = globalEnv.getSwitchPoint();
+				operators = operatorBindings(globalEnv, dict);
+			}
+			return operators[opcode - Instructions.ADD];
+		}
+	}
+
+	// translate the instructions of the code to nodes, the instructions may be already quickened
+	static Node[] translate(Code code, Dictionary dict) {
+		var instrs = code.instrs();
+		var nodes = new Node[instrs.length];
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			nodes[pc] = node(instrs, pc, dict);
+		}
+		return nodes;
+	}
+
+	private static Node node(int[] instrs, int pc, Dictionary dict) {
+		var opcode = instrs[pc];
+		var next = pc + Instructions.length(opcode);
+		return switch (opcode) {
+			case Instructions.CONST -> {
+				var constant = instrs[pc + 1];
+				yield frame -> {
+					frame.push(constant);
+					return next;
+				};
+			}
+			case Instructions.LOOKUP, Instructions.LOOKUP_CACHED -> {
+				var cache = globalCache(instrs[pc], instrs[pc + 1], dict);
+				yield frame -> {
+					frame.push(cache.value(frame.globalEnv, frame.dict));
+					return next;
+				};
+			}
+			case Instructions.LOOKUP_CONST, Instructions.LOOKUP_CONST_CACHED -> {
+				var cache = globalCache(instrs[pc], instrs[pc + 1], dict);
+				var constant = instrs[pc + 2];
+				yield frame -> {
+					frame.push(cache.value(frame.globalEnv, frame.dict));
+					frame.push(constant);
+					return next;
+				};
+			}
+			case Instructions.REGISTER -> {
+				var name = (String) decodeDictObject(instrs[pc + 1], dict);
+				yield frame -> {
+					var value = decodeAnyValue(frame.pop(), frame.dict, frame.heap.memory());
+					frame.globalEnv.register(name, value);
+					return next;
+				};
+			}
+			case Instructions.LOAD -> {
+				var offset = instrs[pc + 1];
+				yield frame -> {
+					frame.push(frame.stack.get(frame.bp + offset));
+					return next;
+				};
+			}
+			case Instructions.STORE -> {
+				var offset = instrs[pc + 1];
+				yield frame -> {
+					frame.stack.set(frame.bp + offset, frame.pop());
+					return next;
+				};
+			}
+			case Instructions.LOAD_LOAD -> {
+				var offset1 = instrs[pc + 1];
+				var offset2 = instrs[pc + 2];
+				yield frame -> {
+					frame.push(frame.stack.get(frame.bp + offset1));
+					frame.push(frame.stack.get(frame.bp + offset2));
+					return next;
+				};
+			}
+			case Instructions.STORE_LOAD -> {
+				var offset1 = instrs[pc + 1];
+				var offset2 = instrs[pc + 2];
+				yield frame -> {
+					frame.stack.set(frame.bp + offset1, frame.pop());
+					frame.push(frame.stack.get(frame.bp + offset2));
+					return next;
+				};
+			}
+			case Instructions.DUP -> frame -> {
+				frame.push(frame.stack.get(frame.sp - 1));
+				return next;
+			};
+			case Instructions.POP -> frame -> {
+				frame.sp--;
+				return next;
+			};
+			case Instructions.SWAP -> frame -> {
+				var value1 = frame.pop();
+				var value2 = frame.pop();
+				frame.push(value1);
+				frame.push(value2);
+				return next;
+			};
+			case Instructions.GOTO -> {
+				var label = instrs[pc + 1];
+				yield frame -> label;
+			}
+			case Instructions.JUMP_IF_FALSE -> {
+				var label = instrs[pc + 1];
+				yield frame -> frame.pop() == TagValues.FALSE ? label : next;
+			}
+			case Instructions.FUNCALL, Instructions.FUNCALL_CACHED, Instructions.TAILCALL, Instructions.TAILCALL_CACHED -> {
+				var cache = (opcode == Instructions.FUNCALL || opcode == Instructions.TAILCALL)
+						? new CallCache(instrs[pc + 1])
+						: (CallCache) decodeDictObject(instrs[pc + 1], dict);
+				yield new CallNode(cache, opcode == Instructions.TAILCALL || opcode == Instructions.TAILCALL_CACHED, next);
+			}
+			case Instructions.RET -> frame -> ret(frame, frame.pop());
+			case Instructions.CONST_RET -> {
+				var constant = instrs[pc + 1];
+				yield frame -> ret(frame, constant);
+			}
+			case Instructions.NEW -> {
+				var vClass = instrs[pc + 1];
+				var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+				yield frame -> {
+					// allocate the object and write its header,
+					// if out of memory the GC rewrites the references on the stack
+					var ref = frame.heap.allocate(vClass, length, frame.stack, frame.sp);
+					var memory = frame.heap.memory();
+					var baseArg = frame.sp - length;
+					for (var i = 0; i < length; i++) {
+						memory.set(ref + OBJECT_HEADER_SIZE + i, frame.stack.get(baseArg + i));
+					}
+					frame.sp = baseArg;
+					frame.push(encodeReference(ref));
+					return next;
+				};
+			}
+			case Instructions.GET, Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.GET_MEGAMORPHIC -> {
+				var field = fieldNode(instrs, pc, dict);
+				yield frame -> {
+					var value = frame.pop();
+					if (!isReference(value)) {
+						throw new Failure("can not get field " + field.name(frame.dict) + " of " + decodeAnyValue(value, frame.dict, frame.heap.memory()));
+					}
+					var ref = decodeReference(value);
+					var memory = frame.heap.memory();
+					var fieldIndex = field.fieldIndex(memory.get(ref), frame.dict);
+					frame.push((fieldIndex == -1) ? frame.undefined : memory.get(ref + OBJECT_HEADER_SIZE + fieldIndex));
+					return next;
+				};
+			}
+			case Instructions.PUT, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC, Instructions.PUT_MEGAMORPHIC -> {
+				var field = fieldNode(instrs, pc, dict);
+				yield frame -> {
+					var value = frame.pop();
+					var refValue = frame.pop();
+					if (!isReference(refValue)) {
+						throw new Failure("can not set field " + field.name(frame.dict) + " of " + decodeAnyValue(refValue, frame.dict, frame.heap.memory()));
+					}
+					var ref = decodeReference(refValue);
+					var memory = frame.heap.memory();
+					var fieldIndex = field.fieldIndex(memory.get(ref), frame.dict);
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + field.name(frame.dict));
+					}
+					var address = ref + OBJECT_HEADER_SIZE + fieldIndex;
+					var oldValue = memory.get(address);
+					memory.set(address, value);
+					// the GC must know if the old space references the nursery or if a reference is overwritten
+					frame.heap.writeBarrier(address, oldValue, value);
+					return next;
+				};
+			}
+			case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+					Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+				var operator = instrs[pc + 1];
+				yield frame -> {
+					var right = frame.pop();
+					var left = frame.pop();
+					var result = NO_RESULT;
+					if (isSmallInt(left) && isSmallInt(right) && frame.operatorBinding(opcode) == operator) {
+						result = smallIntOperation(opcode, left, right);
+					}
+					if (result == NO_RESULT) {
+						// generic case
+						result = callOperator(opcode, left, right, frame.globalEnv, frame.heap, frame.stack, frame.sp);
+					}
+					frame.push(result);
+					return next;
+				};
+			}
+			case Instructions.PRINT -> frame -> {
+				var value = frame.pop();
+				var print = (JSObject) frame.globalEnv.lookup("print");
+				// an object of the heap is seen as a view
+				try (var scope = frame.heap.openScope(frame.stack, frame.sp)) {
+					print.invoke(UNDEFINED, new Object[] { scope.decode(value) });
+				}
+				frame.push(frame.undefined);
+				return next;
+			};
+			default -> throw new IllegalArgumentException("unknown instruction " + opcode + " at " + pc);
+		};
+	}
+
+	static GlobalCache globalCache(int opcode, int operand, Dictionary dict) {
+		if (opcode == Instructions.LOOKUP || opcode == Instructions.LOOKUP_CONST) {
+			return new GlobalCache((String) decodeDictObject(operand, dict));
+		}
+		return (GlobalCache) decodeDictObject(operand, dict);
+	}
+
+	static FieldNode fieldNode(int[] instrs, int pc, Dictionary dict) {
+		return switch (instrs[pc]) {
+			case Instructions.GET, Instructions.PUT -> new FieldNode(instrs[pc + 1], null, false);
+			case Instructions.GET_MEGAMORPHIC, Instructions.PUT_MEGAMORPHIC -> new FieldNode(instrs[pc + 1], null, true);
+			default -> {
+				var cache = (FieldCache) decodeDictObject(instrs[pc + 1], dict);
+				yield new FieldNode(cache.fieldName(), cache, false);
+			}
+		};
+	}
+
+	// inline cache of a GET or a PUT node, monomorphic then polymorphic then megamorphic
+	// like the quickened instructions (see StackInterpreter.fieldIndex()), also used by the compiled code (see Jit)
+	static final class FieldNode {
+		private final int fieldName;  // dictionary index of the field name
+		private FieldCache cache;     // null if no class seen or megamorphic
+		private boolean megamorphic;
+
+		private FieldNode(int fieldName, FieldCache cache, boolean megamorphic) {
+			this.fieldName = fieldName;
+			this.cache = cache;
+			this.megamorphic = megamorphic;
+		}
+
+		String name(Dictionary dict) {
+			return (String) decodeDictObject(fieldName, dict);
+		}
+
+		// index of the field in the class vClass, -1 if there is no such field
+		int fieldIndex(int vClass, Dictionary dict) {
+			if (cache != null) {
+				var fieldIndex = cache.lookup(vClass);
+				if (fieldIndex != FieldCache.MISS) {
+					return fieldIndex;
+				}
+			}
+
+			// slow path, get the field slot from the class
+			var clazz = (JSObject) decodeDictObject(vClass, dict);
+			var slotOrUndefined = clazz.lookup(name(dict));
+			var fieldIndex = (slotOrUndefined == UNDEFINED) ? -1 : (int) slotOrUndefined;
+			if (!megamorphic) {
+				if (cache == null) {
+					cache = new FieldCache(fieldName, vClass, fieldIndex);
+				} else if (!cache.add(vClass, fieldIndex)) {
+					cache = null;
+					megamorphic = true;
+				}
+			}
+			return fieldIndex;
+		}
+	}
+
+	// a FUNCALL or a TAILCALL node, the call site cache and the nodes of the last code called
+	private static final class CallNode implements Node {
+		private CallCache cache;
+		private final boolean tailCall;
+		private final int next;
+		private Code lastCode;
+		private Node[] lastNodes;
+
+		private CallNode(CallCache cache, boolean tailCall, int next) {
+			this.cache = cache;
+			this.tailCall = tailCall;
+			this.next = next;
+		}
+
+		@Override
+		public int execute(Frame frame) {
+			var argumentCount = cache.argumentCount();
+			var baseArg = frame.sp - argumentCount;
+			var stack = frame.stack;
+
+			// decode qualifier, unless it's the function of the last call
+			var functionValue = stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+			if (!cache.hit(functionValue)) {
+				cache = resolveCall(cache, functionValue, frame.dict, frame.heap.memory());
+			}
+
+			if (cache.code() == null) {  // native call
+				var result = callNative(cache, stack, baseArg, frame.heap);
+				frame.sp = baseArg - FUNCALL_PREFIX;
+				frame.push(result);
+				return next;
+			}
+
+			var code = cache.code();
+			if (code.parameterCount() != argumentCount + 1/* this */) {
+				throw new Failure("wrong number of arguments for " + cache.function().getName() + " expected "
+						+ (code.parameterCount() - 1) + " but was " + argumentCount);
+			}
+			if (code != lastCode) {
+				lastNodes = frame.nodes(code);
+				lastCode = code;
+			}
+
+			var bp = frame.bp;
+			if (tailCall) {
+				// save the activation zone of the current function, it may be overwritten by the arguments
+				var currentActivation = bp + frame.code.slotCount();
+				var savedBp = stack.get(currentActivation + BP_OFFSET);
+				var savedPc = stack.get(currentActivation + PC_OFFSET);
+				var savedFunction = stack.get(currentActivation + FUN_OFFSET);
+				var savedCode = stack.get(currentActivation + CODE_OFFSET);
+
+				if (bp + frameSize(code) > stack.size()) {
+					stack = frame.stack = growStack(stack, bp + frameSize(code));
+				}
+				// move the receiver and the arguments over the locals of the current function
+				stack.copy(baseArg - 1, bp, argumentCount + 1);
+
+				// the function called returns directly to the caller of the current function
+				var activation = bp + code.slotCount();
+				stack.set(activation + BP_OFFSET, savedBp);
+				stack.set(activation + PC_OFFSET, savedPc);
+				stack.set(activation + FUN_OFFSET, savedFunction);
+				stack.set(activation + CODE_OFFSET, savedCode);
+				frame.sp = activation + ACTIVATION_SIZE;
+			} else {
+				// check the call depth and that the stack has enough room for the new frame
+				if (frame.callDepth + 1 > frame.config.maxCallDepth()) {
+					throw stackOverflow(cache.function(), frame.config.maxCallDepth(), stack, bp, frame.code, frame.functionIndex, frame.dict);
+				}
+				if (baseArg - 1 + frameSize(code) > stack.size()) {
+					stack = frame.stack = growStack(stack, baseArg - 1 + frameSize(code));
+				}
+				// the nodes to execute after the return
+				if (frame.callDepth == frame.returnNodes.length) {
+					frame.returnNodes = Arrays.copyOf(frame.returnNodes, frame.callDepth << 1);
+				}
+				frame.returnNodes[frame.callDepth++] = frame.nodes;
+
+				// save bp/pc/function/code in the activation zone
+				var activation = baseArg - 1 + code.slotCount();
+				stack.set(activation + BP_OFFSET, encodeSmallInt(bp));
+				stack.set(activation + PC_OFFSET, encodeSmallInt(next));
+				stack.set(activation + FUN_OFFSET, frame.functionIndex);
+				stack.set(activation + CODE_OFFSET, frame.codeIndex);
+
+				bp = frame.bp = baseArg - 1;
+				frame.sp = activation + ACTIVATION_SIZE;
+			}
+
+			// initialize all locals that are not parameters
+			for (var i = bp + code.parameterCount(); i < bp + code.slotCount(); i++) {
+				stack.set(i, frame.undefined);
+			}
+
+			frame.functionIndex = functionValue;
+			frame.codeIndex = cache.codeIndex();
+			frame.code = code;
+			frame.nodes = lastNodes;
+			return 0;
+		}
+	}
+
+	private static int ret(Frame frame, int result) {
+		var stack = frame.stack;
+		var activation = frame.bp + frame.code.slotCount();
+		var pc = decodeSmallInt(stack.get(activation + PC_OFFSET));
+		if (pc == 0) {
+			// end of the interpreter
+			frame.result = result;
+			return HALT;
+		}
+		// restore sp, function, code, bp and the nodes of the caller
+		frame.sp = frame.bp - 1;
+		frame.functionIndex = stack.get(activation + FUN_OFFSET);
+		frame.codeIndex = stack.get(activation + CODE_OFFSET);
+		frame.bp = decodeSmallInt(stack.get(activation + BP_OFFSET));
+		frame.code = (Code) decodeDictObject(frame.codeIndex, frame.dict);
+		frame.nodes = frame.returnNodes[--frame.callDepth];
+		frame.push(result);
+		return pc;
+	}
+
+	static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Config config) {
+		var code = InstrRewriter.code(function);
+		var frame = new Frame(dict, globalEnv, config, new Heap(dict, config));
+		frame.code = code;
+		frame.nodes = frame.nodes(code);
+		frame.functionIndex = encodeDictObject(function, dict);
+		frame.codeIndex = encodeDictObject(code, dict);
+		frame.stack = Memory.allocate(config.storage(), Math.max(INITIAL_STACK_SIZE, frameSize(code)));
+		frame.bp = 0;
+		frame.sp = code.slotCount() + ACTIVATION_SIZE;
+
+		// initialize all local variables and the activation zone
+		for (var i = 0; i < code.slotCount(); i++) {
+			frame.stack.set(i, frame.undefined);
+		}
+		frame.stack.set(code.slotCount() + BP_OFFSET, encodeSmallInt(0));
+		frame.stack.set(code.slotCount() + PC_OFFSET, encodeSmallInt(0));
+		frame.stack.set(code.slotCount() + FUN_OFFSET, frame.functionIndex);
+		frame.stack.set(code.slotCount() + CODE_OFFSET, frame.codeIndex);
+
+		for (var pc = 0; pc != HALT;) {
+			pc = frame.nodes[pc].execute(frame);
+		}
+
+		if (config.verboseGC()) {
+			System.err.println(frame.heap.stats());
+		}
+		return decodeAnyValue(frame.result, dict, frame.heap.memory());
+	}
+}
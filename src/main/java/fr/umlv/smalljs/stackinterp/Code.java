@@ -2,11 +2,32 @@ package fr.umlv.smalljs.stackinterp;
 
 import static java.util.Objects.requireNonNull;
 
-public record Code(int[] instrs, int parameterCount, int slotCount) {
+// the code of a function, maxStack is the maximum height of the operand stack (see InstrRewriter.maxStack()),
+// compact is the byte encoding of the instructions used by the compact dispatch, null if the code
+// was not created for that dispatch (see CompactCode),
+// tier counts the invocations of the code and stores its compiled form once it is hot (see Jit)
+public record Code(int[] instrs, int parameterCount, int slotCount, int maxStack, CompactCode compact, Jit.Tier tier) {
 	public Code {
 		if (parameterCount < 1 || slotCount < 1 || parameterCount > slotCount) {
 			throw new IllegalArgumentException("invalid parameter or slot count");
 		}
 		requireNonNull(instrs);
+		if (maxStack < 0) {
+			throw new IllegalArgumentException("invalid max stack " + maxStack);
+		}
+		requireNonNull(tier);
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount, int maxStack, CompactCode compact) {
+		this(instrs, parameterCount, slotCount, maxStack, compact, new Jit.Tier());
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount, int maxStack) {
+		this(instrs, parameterCount, slotCount, maxStack, null);
+	}
+
+	// an instruction pushes at most one value per int, so the number of ints is a bound of the operand stack
+	public Code(int[] instrs, int parameterCount, int slotCount) {
+		this(instrs, parameterCount, slotCount, instrs.length);
 	}
-}
\ No newline at end of file
+}
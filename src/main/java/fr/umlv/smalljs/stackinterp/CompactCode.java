@@ -0,0 +1,140 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+
+import java.util.ArrayList;
+
+// the instructions of a Code encoded as bytes, executed by the compact dispatch (see CompactInterpreter),
+// an opcode is one byte and its operands are variable-length unsigned ints (LEB128), 7 bits per byte,
+// the high bit of a byte is set if another byte follows, so a slot index, an argument count or a label
+// lower than 128 takes one byte instead of four
+//   - the tag values of CONST, CONST_RET and LOOKUP_CONST are zigzag encoded, so the negative small ints are short
+//   - the labels of GOTO and JUMP_IF_FALSE are offsets in the bytes
+//   - the operand of LOOKUP, LOOKUP_CONST, GET, PUT, FUNCALL and TAILCALL is an index in sites, the caches of
+//     the instructions, so the bytes are never quickened (a cache index may not have the length of the operand)
+//   - the operand of REGISTER, NEW and the operators is a dictionary index
+record CompactCode(byte[] bytes, Object[] sites) {
+	// encode the instructions, they may be already quickened
+	static CompactCode encode(int[] instrs, Dictionary dict) {
+		// the offset of each instruction depends on the length of the labels before it,
+		// so the offsets are computed again until they are stable, they can only grow
+		var offsets = new int[instrs.length + 1];
+		for (var stable = false; !stable;) {
+			stable = true;
+			var writer = new Writer(null);
+			for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+				if (offsets[pc] != writer.position) {
+					offsets[pc] = writer.position;
+					stable = false;
+				}
+				encode(instrs, pc, offsets, writer, dict);
+			}
+			offsets[instrs.length] = writer.position;
+		}
+
+		var writer = new Writer(new byte[offsets[instrs.length]]);
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			encode(instrs, pc, offsets, writer, dict);
+		}
+		return new CompactCode(writer.bytes, writer.sites.toArray());
+	}
+
+	private static void encode(int[] instrs, int pc, int[] offsets, Writer writer, Dictionary dict) {
+		var opcode = instrs[pc];
+		switch (opcode) {
+			case Instructions.DUP, Instructions.POP, Instructions.SWAP, Instructions.RET, Instructions.PRINT -> writer.opcode(opcode);
+			case Instructions.CONST, Instructions.CONST_RET -> writer.opcode(opcode).signed(instrs[pc + 1]);
+			case Instructions.LOAD, Instructions.STORE -> writer.opcode(opcode).unsigned(instrs[pc + 1]);
+			case Instructions.LOAD_LOAD, Instructions.STORE_LOAD -> writer.opcode(opcode).unsigned(instrs[pc + 1]).unsigned(instrs[pc + 2]);
+			case Instructions.GOTO, Instructions.JUMP_IF_FALSE -> writer.opcode(opcode).unsigned(offsets[instrs[pc + 1]]);
+			case Instructions.REGISTER, Instructions.NEW,
+					Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+					Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE ->
+					writer.opcode(opcode).unsigned(instrs[pc + 1]);
+			case Instructions.LOOKUP, Instructions.LOOKUP_CACHED ->
+					writer.opcode(Instructions.LOOKUP).site(ClosureInterpreter.globalCache(opcode, instrs[pc + 1], dict));
+			case Instructions.LOOKUP_CONST, Instructions.LOOKUP_CONST_CACHED ->
+					writer.opcode(Instructions.LOOKUP_CONST).site(ClosureInterpreter.globalCache(opcode, instrs[pc + 1], dict)).signed(instrs[pc + 2]);
+			case Instructions.GET, Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.GET_MEGAMORPHIC ->
+					writer.opcode(Instructions.GET).site(ClosureInterpreter.fieldNode(instrs, pc, dict));
+			case Instructions.PUT, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC, Instructions.PUT_MEGAMORPHIC ->
+					writer.opcode(Instructions.PUT).site(ClosureInterpreter.fieldNode(instrs, pc, dict));
+			case Instructions.FUNCALL, Instructions.TAILCALL -> writer.opcode(opcode).site(new CallCache(instrs[pc + 1]));
+			case Instructions.FUNCALL_CACHED -> writer.opcode(Instructions.FUNCALL).site(decodeDictObject(instrs[pc + 1], dict));
+			case Instructions.TAILCALL_CACHED -> writer.opcode(Instructions.TAILCALL).site(decodeDictObject(instrs[pc + 1], dict));
+			default -> throw new IllegalArgumentException("unknown instruction " + opcode + " at " + pc);
+		}
+	}
+
+	// write the instructions, or only compute their length if bytes is null
+	private static final class Writer {
+		private final byte[] bytes;
+		private final ArrayList<Object> sites = new ArrayList<>();
+		private int position;
+
+		private Writer(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private Writer opcode(int opcode) {
+			if (bytes != null) {
+				bytes[position] = (byte) opcode;
+			}
+			position++;
+			return this;
+		}
+
+		private Writer unsigned(int value) {
+			if (bytes != null) {
+				for (; (value & ~0x7F) != 0; value >>>= 7) {
+					bytes[position++] = (byte) (value & 0x7F | 0x80);
+				}
+				bytes[position++] = (byte) value;
+				return this;
+			}
+			position += sizeOf(value);
+			return this;
+		}
+
+		private Writer signed(int value) {
+			return unsigned(zigzag(value));
+		}
+
+		private Writer site(Object site) {
+			unsigned(sites.size());
+			sites.add(site);
+			return this;
+		}
+	}
+
+	// the unsigned operand at index pc
+	static int operand(byte[] bytes, int pc) {
+		int value = bytes[pc];
+		return (value >= 0) ? value : longOperand(bytes, pc);
+	}
+
+	private static int longOperand(byte[] bytes, int pc) {
+		var value = 0;
+		for (var shift = 0;; shift += 7) {
+			var b = bytes[pc++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	// number of bytes of the unsigned operand
+	static int sizeOf(int value) {
+		return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+	}
+
+	// the small magnitudes, positive or negative, are encoded as small unsigned ints
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,335 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.CompactCode.operand;
+import static fr.umlv.smalljs.stackinterp.CompactCode.sizeOf;
+import static fr.umlv.smalljs.stackinterp.CompactCode.unzigzag;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.CODE_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUNCALL_PREFIX;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.INITIAL_STACK_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.NO_RESULT;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.QUALIFIER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.callNative;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.callOperator;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.frameSize;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.growStack;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.print;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.register;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveCall;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.smallIntOperation;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.stackOverflow;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.tailCall;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.wrongArgumentCount;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.util.IdentityHashMap;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the compact dispatch (see Config.Dispatch), it executes the byte encoding of the instructions (see CompactCode)
+// with the same tagged values, the same heap and the same frame layout as StackInterpreter,
+// the pc saved in an activation zone is an offset in the bytes.
+// The caches are stored in the sites of the CompactCode, so the bytes are never rewritten.
+final class CompactInterpreter {
+	private CompactInterpreter() {
+		throw new AssertionError();
+	}
+
+	static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Config config) {
+		var code = InstrRewriter.code(function);
+		var functionIndex = encodeDictObject(function, dict);
+		var codeIndex = encodeDictObject(code, dict);
+		var stack = Memory.allocate(config.storage(), Math.max(INITIAL_STACK_SIZE, frameSize(code)));
+		var machine = new Machine(dict, globalEnv, config, new Heap(dict, config), stack);
+
+		// initialize all local variables and the activation zone, the pc 0 ends the interpreter
+		for (var i = 0; i < code.slotCount(); i++) {
+			stack.set(i, machine.undefined);
+		}
+		stack.set(code.slotCount() + BP_OFFSET, encodeSmallInt(0));
+		stack.set(code.slotCount() + PC_OFFSET, encodeSmallInt(0));
+		stack.set(code.slotCount() + FUN_OFFSET, functionIndex);
+		stack.set(code.slotCount() + CODE_OFFSET, codeIndex);
+
+		var result = run(machine, code, functionIndex, codeIndex);
+		if (config.verboseGC()) {
+			System.err.println(machine.heap.stats());
+		}
+		return decodeAnyValue(result, dict, machine.heap.memory());
+	}
+
+	// the encoding of the code, the codes not created for the compact dispatch are encoded on their first call
+	private static CompactCode compactCode(Code code, IdentityHashMap<Code, CompactCode> encodings, Dictionary dict) {
+		var compact = code.compact();
+		if (compact != null) {
+			return compact;
+		}
+		return encodings.computeIfAbsent(code, c -> CompactCode.encode(c.instrs(), dict));
+	}
+
+	// interpret the main function until it returns, return the encoded result,
+	// an operand is read with CompactCode.operand() then skipped with CompactCode.sizeOf()
+	private static int run(Machine machine, Code code, int functionIndex, int codeIndex) {
+		var dict = machine.dict;
+		var globalEnv = machine.globalEnv;
+		var heap = machine.heap;
+		var stack = machine.stack;
+		var undefined = machine.undefined;
+		var maxCallDepth = machine.config.maxCallDepth();
+		var encodings = new IdentityHashMap<Code, CompactCode>();
+		var compact = compactCode(code, encodings, dict);
+		var bytes = compact.bytes();
+		var sites = compact.sites();
+
+		var pc = 0; // offset in the bytes
+		var bp = 0; // base pointer
+		var sp = code.slotCount() + ACTIVATION_SIZE; // stack pointer
+
+		for (;;) {
+			switch (bytes[pc++]) {
+				case Instructions.CONST -> {
+					var constant = operand(bytes, pc);
+					pc += sizeOf(constant);
+					stack.set(sp++, unzigzag(constant));
+				}
+				case Instructions.LOOKUP -> {
+					var site = operand(bytes, pc);
+					pc += sizeOf(site);
+					stack.set(sp++, ((GlobalCache) sites[site]).value(globalEnv, dict));
+				}
+				case Instructions.LOOKUP_CONST -> {
+					var site = operand(bytes, pc);
+					pc += sizeOf(site);
+					var constant = operand(bytes, pc);
+					pc += sizeOf(constant);
+					stack.set(sp++, ((GlobalCache) sites[site]).value(globalEnv, dict));
+					stack.set(sp++, unzigzag(constant));
+				}
+				case Instructions.REGISTER -> {
+					var name = operand(bytes, pc);
+					pc += sizeOf(name);
+					register(name, stack.get(--sp), globalEnv, dict, heap);
+				}
+				case Instructions.LOAD -> {
+					var offset = operand(bytes, pc);
+					pc += sizeOf(offset);
+					stack.set(sp++, stack.get(bp + offset));
+				}
+				case Instructions.STORE -> {
+					var offset = operand(bytes, pc);
+					pc += sizeOf(offset);
+					stack.set(bp + offset, stack.get(--sp));
+				}
+				case Instructions.LOAD_LOAD -> {
+					var offset1 = operand(bytes, pc);
+					pc += sizeOf(offset1);
+					var offset2 = operand(bytes, pc);
+					pc += sizeOf(offset2);
+					stack.set(sp++, stack.get(bp + offset1));
+					stack.set(sp++, stack.get(bp + offset2));
+				}
+				case Instructions.STORE_LOAD -> {
+					var offset1 = operand(bytes, pc);
+					pc += sizeOf(offset1);
+					var offset2 = operand(bytes, pc);
+					pc += sizeOf(offset2);
+					stack.set(bp + offset1, stack.get(--sp));
+					stack.set(sp++, stack.get(bp + offset2));
+				}
+				case Instructions.DUP -> {
+					var value = stack.get(sp - 1);
+					stack.set(sp++, value);
+				}
+				case Instructions.POP -> --sp;
+				case Instructions.SWAP -> {
+					var value1 = stack.get(--sp);
+					var value2 = stack.get(--sp);
+					stack.set(sp++, value1);
+					stack.set(sp++, value2);
+				}
+				case Instructions.GOTO -> pc = operand(bytes, pc);
+				case Instructions.JUMP_IF_FALSE -> {
+					var label = operand(bytes, pc);
+					pc += sizeOf(label);
+					if (stack.get(--sp) == TagValues.FALSE) {
+						pc = label;
+					}
+				}
+				case Instructions.FUNCALL, Instructions.TAILCALL -> {
+					var tailCall = bytes[pc - 1] == Instructions.TAILCALL;
+					var site = operand(bytes, pc);
+					pc += sizeOf(site);
+					var cache = (CallCache) sites[site];
+					var argumentCount = cache.argumentCount();
+					var baseArg = sp - argumentCount;
+
+					// decode qualifier, unless it's the function of the last call
+					var functionValue = stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+					if (!cache.hit(functionValue)) {
+						cache = resolveCall(cache, functionValue, dict, heap.memory());
+						sites[site] = cache;
+					}
+
+					var newCode = cache.code();
+					if (newCode == null) {
+						// native call, drop the qualifier and the receiver and push the result
+						var result = callNative(cache, stack, baseArg, heap);
+						sp = baseArg - FUNCALL_PREFIX;
+						stack.set(sp++, result);
+						continue;
+					}
+					if (newCode.parameterCount() != argumentCount + 1/* this */) {
+						throw wrongArgumentCount(cache.function(), newCode, argumentCount);
+					}
+
+					if (tailCall) {
+						// bp is unchanged, the function called returns directly to the caller of the current function
+						stack = tailCall(machine, stack, bp, code, newCode, baseArg, argumentCount);
+					} else {
+						// check the call depth and that the stack has enough room for the new frame
+						if (++machine.callDepth > maxCallDepth) {
+							throw stackOverflow(cache.function(), maxCallDepth, stack, bp, code, functionIndex, dict);
+						}
+						if (baseArg - 1 + frameSize(newCode) > stack.size()) {
+							stack = machine.stack = growStack(stack, baseArg - 1 + frameSize(newCode));
+						}
+
+						// save bp/pc/function/code in the activation zone of the new frame
+						var activation = baseArg - 1 + newCode.slotCount();
+						stack.set(activation + BP_OFFSET, encodeSmallInt(bp));
+						stack.set(activation + PC_OFFSET, encodeSmallInt(pc));
+						stack.set(activation + FUN_OFFSET, functionIndex);
+						stack.set(activation + CODE_OFFSET, codeIndex);
+						bp = baseArg - 1;
+					}
+
+					// initialize all locals that are not parameters
+					for (var i = bp + newCode.parameterCount(); i < bp + newCode.slotCount(); i++) {
+						stack.set(i, undefined);
+					}
+
+					// switch to the new function
+					code = newCode;
+					functionIndex = functionValue;
+					codeIndex = cache.codeIndex();
+					compact = compactCode(newCode, encodings, dict);
+					bytes = compact.bytes();
+					sites = compact.sites();
+					pc = 0;
+					sp = bp + newCode.slotCount() + ACTIVATION_SIZE;
+				}
+				case Instructions.RET, Instructions.CONST_RET -> {
+					// get the return value from the top of the stack or from the instructions
+					int result = (bytes[pc - 1] == Instructions.CONST_RET) ? unzigzag(operand(bytes, pc)) : stack.get(--sp);
+
+					// find activation and restore pc
+					var activation = bp + code.slotCount();
+					pc = decodeSmallInt(stack.get(activation + PC_OFFSET));
+					if (pc == 0) {
+						// end of the interpreter
+						return result;
+					}
+					machine.callDepth--;
+					// restore sp, function, bp and the bytes of the caller
+					sp = bp - 1;
+					functionIndex = stack.get(activation + FUN_OFFSET);
+					codeIndex = stack.get(activation + CODE_OFFSET);
+					bp = decodeSmallInt(stack.get(activation + BP_OFFSET));
+					code = (Code) decodeDictObject(codeIndex, dict);
+					compact = compactCode(code, encodings, dict);
+					bytes = compact.bytes();
+					sites = compact.sites();
+
+					stack.set(sp++, result);
+				}
+				case Instructions.NEW -> {
+					var vClass = operand(bytes, pc);
+					pc += sizeOf(vClass);
+					var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+
+					// allocate the object and write its header,
+					// if out of memory the GC rewrites the references on the stack
+					var ref = heap.allocate(vClass, length, stack, sp);
+					var memory = heap.memory();
+
+					// pop the fields values and write them on heap
+					sp = sp - length;
+					for (var i = 0; i < length; i++) {
+						memory.set(ref + OBJECT_HEADER_SIZE + i, stack.get(sp + i));
+					}
+					stack.set(sp++, encodeReference(ref));
+				}
+				case Instructions.GET -> {
+					var site = operand(bytes, pc);
+					pc += sizeOf(site);
+					var field = (ClosureInterpreter.FieldNode) sites[site];
+					var value = stack.get(--sp);
+					if (!isReference(value)) {
+						throw new Failure("can not get field " + field.name(dict) + " of " + decodeAnyValue(value, dict, heap.memory()));
+					}
+					var ref = decodeReference(value);
+					var memory = heap.memory();
+					var fieldIndex = field.fieldIndex(memory.get(ref), dict);
+					stack.set(sp++, (fieldIndex == -1) ? undefined : memory.get(ref + OBJECT_HEADER_SIZE + fieldIndex));
+				}
+				case Instructions.PUT -> {
+					var site = operand(bytes, pc);
+					pc += sizeOf(site);
+					var field = (ClosureInterpreter.FieldNode) sites[site];
+					var value = stack.get(--sp);
+					var refValue = stack.get(--sp);
+					if (!isReference(refValue)) {
+						throw new Failure("can not set field " + field.name(dict) + " of " + decodeAnyValue(refValue, dict, heap.memory()));
+					}
+					var ref = decodeReference(refValue);
+					var memory = heap.memory();
+					var fieldIndex = field.fieldIndex(memory.get(ref), dict);
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + field.name(dict));
+					}
+					var address = ref + OBJECT_HEADER_SIZE + fieldIndex;
+					var oldValue = memory.get(address);
+					memory.set(address, value);
+					// the GC must know if the old space references the nursery or if a reference is overwritten
+					heap.writeBarrier(address, oldValue, value);
+				}
+				case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+						Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+					var opcode = bytes[pc - 1];
+					var operator = operand(bytes, pc);
+					pc += sizeOf(operator);
+					var right = stack.get(--sp);
+					var left = stack.get(--sp);
+					// check that the operator has not been redefined
+					var result = NO_RESULT;
+					if (isSmallInt(left) && isSmallInt(right) && machine.operatorBinding(opcode) == operator) {
+						result = smallIntOperation(opcode, left, right);
+					}
+					if (result == NO_RESULT) {
+						// generic case
+						result = callOperator(opcode, left, right, globalEnv, heap, stack, sp);
+					}
+					stack.set(sp++, result);
+				}
+				case Instructions.PRINT -> {
+					print(stack.get(--sp), globalEnv, heap, stack, sp);
+					stack.set(sp++, undefined);
+				}
+				default -> throw new AssertionError("unknown instruction " + bytes[pc - 1]);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Locale;
+
+// configuration of the stack interpreter
+//   nurserySize: size of the nursery of the heap (in slots)
+//   heapSize, maxHeapSize: initial and maximum size of the old space of the heap (in slots)
+//   marking: how the major collections mark the old space
+//   verboseGC: print the GC pause times at the end of the execution
+//   storage: where the stack and the heap are stored, in Java arrays, in off-heap memory
+//            or in off-heap memory mapped on temporary files
+//   maxCallDepth: maximum number of nested calls of functions
+//   peephole: fuse the common sequences of instructions into superinstructions
+//   reclaimDictionary: the major collections reclaim the dictionary indexes of the values created at runtime
+//                      that are not referenced anymore (see Dictionary)
+//   representation: the values are either 32 bits tagged ints (see TagValues) or 64 bits NaN boxed longs
+//                   (see NanBoxValues), in the later case the heap is a semi-space heap (see NanBoxHeap)
+//                   and marking, storage and reclaimDictionary are ignored
+//   dispatch: the instructions are either executed by the switch of StackInterpreter, translated once
+//             to an array of pre-decoded nodes (see ClosureInterpreter) or encoded to bytes with variable-length
+//             operands (see CompactCode and CompactInterpreter), ignored by the NaN boxing representation
+//   jitThreshold: number of invocations of a function before its code is compiled to JVM bytecode (see Jit),
+//                 0 to never compile, only used by the switch dispatch of the tagged representation
+//   inlineThreshold: number of calls of a call site before the small functions called by the hot call sites
+//                    are inlined in the code that contains them (see Inliner), 0 to never inline,
+//                    only used by the switch dispatch of the tagged representation
+public record Config(int nurserySize, int heapSize, int maxHeapSize, Marking marking, boolean verboseGC, Storage storage,
+                     int maxCallDepth, boolean peephole, boolean reclaimDictionary, Representation representation,
+                     Dispatch dispatch, int jitThreshold, int inlineThreshold) {
+	public enum Marking { SERIAL, PARALLEL, INCREMENTAL }
+	public enum Storage { ARRAY, DIRECT, MAPPED }
+	public enum Representation { TAGGED, NAN_BOXING }
+	public enum Dispatch { SWITCH, CLOSURE, COMPACT }
+
+	public static final Config DEFAULT = new Config(1024, 4096, 1 << 28, Marking.SERIAL, false, Storage.ARRAY,
+			10_000, true, false, Representation.TAGGED, Dispatch.SWITCH, 0, 0);
+
+	public Config {
+		if (nurserySize < TagValues.OBJECT_HEADER_SIZE) {
+			throw new IllegalArgumentException("invalid nursery size " + nurserySize);
+		}
+		if (heapSize < TagValues.OBJECT_HEADER_SIZE || maxHeapSize < heapSize) {
+			throw new IllegalArgumentException("invalid heap size " + heapSize + " " + maxHeapSize);
+		}
+		requireNonNull(representation);
+		requireNonNull(dispatch);
+		if (representation == Representation.TAGGED && (long) nurserySize + maxHeapSize > TagValues.MAX_REFERENCE + 1L) {
+			throw new IllegalArgumentException("heap too big to be referenced " + nurserySize + " " + maxHeapSize);
+		}
+		requireNonNull(marking);
+		requireNonNull(storage);
+		if (maxCallDepth < 1) {
+			throw new IllegalArgumentException("invalid max call depth " + maxCallDepth);
+		}
+		if (jitThreshold < 0) {
+			throw new IllegalArgumentException("invalid jit threshold " + jitThreshold);
+		}
+		if (inlineThreshold < 0) {
+			throw new IllegalArgumentException("invalid inline threshold " + inlineThreshold);
+		}
+	}
+
+	// configuration from the system properties
+	//   -Dsmalljs.marking=serial|parallel|incremental
+	//   -Dsmalljs.verbosegc=true
+	//   -Dsmalljs.storage=array|direct|mapped
+	//   -Dsmalljs.maxcalldepth=10000
+	//   -Dsmalljs.peephole=false
+	//   -Dsmalljs.reclaimdictionary=true
+	//   -Dsmalljs.representation=tagged|nan_boxing
+	//   -Dsmalljs.dispatch=switch|closure|compact
+	//   -Dsmalljs.jitthreshold=1000
+	//   -Dsmalljs.inlinethreshold=1000
+	// (the tracing of the switch interpreter is enabled by -Dsmalljs.trace=true, see StackInterpreter.TRACE,
+	//  and its profiling by -Dsmalljs.profile=true, see StackInterpreter.PROFILE)
+	public static Config fromSystemProperties() {
+		var config = DEFAULT;
+		var marking = System.getProperty("smalljs.marking");
+		if (marking != null) {
+			config = config.withMarking(Marking.valueOf(marking.toUpperCase(Locale.ROOT)));
+		}
+		if (Boolean.getBoolean("smalljs.verbosegc")) {
+			config = config.withVerboseGC(true);
+		}
+		var storage = System.getProperty("smalljs.storage");
+		if (storage != null) {
+			config = config.withStorage(Storage.valueOf(storage.toUpperCase(Locale.ROOT)));
+		}
+		config = config.withMaxCallDepth(Integer.getInteger("smalljs.maxcalldepth", config.maxCallDepth()));
+		var peephole = System.getProperty("smalljs.peephole");
+		if (peephole != null) {
+			config = config.withPeephole(Boolean.parseBoolean(peephole));
+		}
+		if (Boolean.getBoolean("smalljs.reclaimdictionary")) {
+			config = config.withReclaimDictionary(true);
+		}
+		var representation = System.getProperty("smalljs.representation");
+		if (representation != null) {
+			config = config.withRepresentation(Representation.valueOf(representation.toUpperCase(Locale.ROOT)));
+		}
+		var dispatch = System.getProperty("smalljs.dispatch");
+		if (dispatch != null) {
+			config = config.withDispatch(Dispatch.valueOf(dispatch.toUpperCase(Locale.ROOT)));
+		}
+		config = config.withJitThreshold(Integer.getInteger("smalljs.jitthreshold", config.jitThreshold()));
+		config = config.withInlineThreshold(Integer.getInteger("smalljs.inlinethreshold", config.inlineThreshold()));
+		return config;
+	}
+
+	public Config withNurserySize(int nurserySize) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withHeapSize(int heapSize, int maxHeapSize) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withMarking(Marking marking) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withVerboseGC(boolean verboseGC) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withStorage(Storage storage) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withMaxCallDepth(int maxCallDepth) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withPeephole(boolean peephole) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withReclaimDictionary(boolean reclaimDictionary) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withRepresentation(Representation representation) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withDispatch(Dispatch dispatch) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withJitThreshold(int jitThreshold) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+
+	public Config withInlineThreshold(int inlineThreshold) {
+		return new Config(nurserySize, heapSize, maxHeapSize, marking, verboseGC, storage, maxCallDepth, peephole, reclaimDictionary,
+				representation, dispatch, jitThreshold, inlineThreshold);
+	}
+}
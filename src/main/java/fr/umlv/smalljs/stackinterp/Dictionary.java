@@ -1,21 +1,204 @@
 package fr.umlv.smalljs.stackinterp;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
+// the dictionary associates an index to each constant (strings, numbers, functions, caches, etc),
+// the strings, the numbers and the booleans are compared with equals(), the other objects by identity.
+//
+// It's an open addressing hash table with linear probing, the slots of the table contain the indexes
+// and the constants and their hash codes are stored in arrays indexed by the indexes.
+//
+// An index is either
+//   pinned     the constant is used by the instructions, a cache or the interpreter,
+//   transient  the constant is the result of a native function or an operator (see HandleScope.encode()).
+// If the reclamation is enabled (see Config.reclaimDictionary), a major collection marks the transient
+// indexes still referenced by the stack, the handles or the live objects, the other transient indexes
+// are removed and reused.
 public class Dictionary {
-	private final HashMap<Object, Integer> indexMap = new HashMap<>();
-	private final ArrayList<Object> constants = new ArrayList<>();
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
 
+	private static final byte FREE = 0;
+	private static final byte PINNED = 1;
+	private static final byte TRANSIENT = 2;
+
+	private int[] table = new int[32];  // power of 2, an index, EMPTY or DELETED
+	private int used;                   // number of slots of the table not EMPTY
+
+	private Object[] constants = new Object[16];
+	private int[] hashes = new int[16];
+	private byte[] states = new byte[16];
+	private int size;                   // indexes in [0, size[ have been allocated once
+
+	// indexes removed by the reclamation, reused first
+	private int[] freeIndexes = new int[0];
+	private int freeCount;
+
+	// indexes marked during the reclamation
+	private long[] marks = new long[0];
+
+	{
+		Arrays.fill(table, EMPTY);
+	}
+
+	private static boolean isValue(Object constant) {
+		return constant instanceof String || constant instanceof Number || constant instanceof Boolean;
+	}
+
+	private static int hash(Object constant) {
+		var hash = isValue(constant) ? constant.hashCode() : System.identityHashCode(constant);
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean same(Object constant, Object other) {
+		return constant == other || (isValue(constant) && constant.equals(other));
+	}
+
+	// the pinned index of the constant
 	public int index(Object constant) {
-		return indexMap.computeIfAbsent(constant, key -> {
-			var index = constants.size();
-			constants.add(key);
+		return index(constant, PINNED);
+	}
+
+	// the index of the constant, reclaimable if the constant has no index yet
+	int transientIndex(Object constant) {
+		return index(constant, TRANSIENT);
+	}
+
+	private int index(Object constant, byte state) {
+		var hash = hash(constant);
+		var mask = table.length - 1;
+		var deleted = -1;
+		for (var slot = hash & mask;; slot = (slot + 1) & mask) {
+			var index = table[slot];
+			if (index == EMPTY) {
+				break;
+			}
+			if (index == DELETED) {
+				if (deleted == -1) {
+					deleted = slot;
+				}
+				continue;
+			}
+			if (hashes[index] == hash && same(constant, constants[index])) {
+				if (state == PINNED) {
+					states[index] = PINNED;
+				}
+				return index;
+			}
+		}
+		var index = newIndex(constant, hash, state);
+		if (deleted != -1) {
+			table[deleted] = index;
 			return index;
-		});
+		}
+		insert(index, hash);
+		return index;
+	}
+
+	private int newIndex(Object constant, int hash, byte state) {
+		int index;
+		if (freeCount != 0) {
+			index = freeIndexes[--freeCount];
+		} else {
+			index = size++;
+			if (index == constants.length) {
+				var capacity = index << 1;
+				constants = Arrays.copyOf(constants, capacity);
+				hashes = Arrays.copyOf(hashes, capacity);
+				states = Arrays.copyOf(states, capacity);
+			}
+		}
+		constants[index] = constant;
+		hashes[index] = hash;
+		states[index] = state;
+		return index;
+	}
+
+	private void insert(int index, int hash) {
+		// keep the table at most half full
+		if ((used + 1) << 1 > table.length) {
+			rehash();
+		}
+		var mask = table.length - 1;
+		var slot = hash & mask;
+		while (table[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index;
+		used++;
+	}
+
+	private void rehash() {
+		var live = size - freeCount;
+		var capacity = Integer.highestOneBit(Math.max(16, live) << 2);
+		table = new int[capacity];
+		Arrays.fill(table, EMPTY);
+		used = 0;
+		var mask = capacity - 1;
+		for (var index = 0; index < size; index++) {
+			if (states[index] == FREE) {
+				continue;
+			}
+			var slot = hashes[index] & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = index;
+			used++;
+		}
 	}
 
 	public Object getConst(int index) {
-		return constants.get(index);
+		if (index >= size || states[index] == FREE) {
+			throw new IndexOutOfBoundsException("invalid dictionary index " + index);
+		}
+		return constants[index];
+	}
+
+	// number of constants in the dictionary
+	int count() {
+		return size - freeCount;
+	}
+
+	// reclamation, clearMarks() then mark() each index in use then reclaim()
+	void clearMarks() {
+		var length = (size + 63) >>> 6;
+		if (marks.length < length) {
+			marks = new long[length];
+		} else {
+			Arrays.fill(marks, 0L);
+		}
+	}
+
+	void mark(int index) {
+		marks[index >>> 6] |= 1L << index;
+	}
+
+	// remove the transient indexes not marked, return the number of indexes removed
+	int reclaim() {
+		var removed = 0;
+		for (var index = 0; index < size; index++) {
+			if (states[index] != TRANSIENT || (marks[index >>> 6] & (1L << index)) != 0) {
+				continue;
+			}
+			remove(index);
+			removed++;
+		}
+		return removed;
+	}
+
+	private void remove(int index) {
+		var mask = table.length - 1;
+		var slot = hashes[index] & mask;
+		while (table[slot] != index) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = DELETED;
+		constants[index] = null;
+		states[index] = FREE;
+		if (freeCount == freeIndexes.length) {
+			freeIndexes = Arrays.copyOf(freeIndexes, Math.max(16, freeCount << 1));
+		}
+		freeIndexes[freeCount++] = index;
 	}
 }
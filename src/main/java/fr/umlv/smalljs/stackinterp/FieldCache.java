@@ -0,0 +1,57 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+
+// inline cache of a quickened GET or PUT instruction,
+// the pairs of class (dictionary index) and index of the field in the class already seen by the instruction
+final class FieldCache {
+	// a cache is polymorphic until it has seen POLYMORPHIC_SIZE classes, it's megamorphic after
+	static final int POLYMORPHIC_SIZE = 4;
+	// result of a lookup for a class not in the cache
+	static final int MISS = -2;
+
+	private final int fieldName;  // dictionary index of the field name
+	private final int[] classes = new int[POLYMORPHIC_SIZE];
+	private final int[] fieldIndexes = new int[POLYMORPHIC_SIZE];
+	private int count;
+
+	FieldCache(int fieldName, int vClass, int fieldIndex) {
+		this.fieldName = fieldName;
+		add(vClass, fieldIndex);
+	}
+
+	int fieldName() {
+		return fieldName;
+	}
+
+	// the field index of the first class, MISS if vClass is not that class
+	int lookupMonomorphic(int vClass) {
+		return classes[0] == vClass ? fieldIndexes[0] : MISS;
+	}
+
+	// the field index of the class vClass, MISS if vClass is not in the cache
+	int lookup(int vClass) {
+		for (var i = 0; i < count; i++) {
+			if (classes[i] == vClass) {
+				return fieldIndexes[i];
+			}
+		}
+		return MISS;
+	}
+
+	// add a new class to the cache, return false if the cache is full
+	boolean add(int vClass, int fieldIndex) {
+		if (count == POLYMORPHIC_SIZE) {
+			return false;
+		}
+		classes[count] = vClass;
+		fieldIndexes[count] = fieldIndex;
+		count++;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "cache " + Arrays.toString(Arrays.copyOf(classes, count)) + " " + Arrays.toString(Arrays.copyOf(fieldIndexes, count));
+	}
+}
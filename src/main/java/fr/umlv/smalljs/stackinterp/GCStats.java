@@ -0,0 +1,65 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.concurrent.TimeUnit;
+
+// pause times of the GC of a heap
+final class GCStats {
+	private final Config.Marking marking;
+	private int minorCount;
+	private int majorCount;
+	private int incrementalCount;
+	private long totalNanos;
+	private long maxPauseNanos;
+	private long reclaimedCount;  // number of dictionary indexes reclaimed
+
+	GCStats(Config.Marking marking) {
+		this.marking = marking;
+	}
+
+	void minor(long pauseNanos) {
+		minorCount++;
+		pause(pauseNanos);
+	}
+
+	void major(long pauseNanos) {
+		majorCount++;
+		pause(pauseNanos);
+	}
+
+	void incremental(long pauseNanos) {
+		incrementalCount++;
+		pause(pauseNanos);
+	}
+
+	void reclaimed(int count) {
+		reclaimedCount += count;
+	}
+
+	private void pause(long pauseNanos) {
+		totalNanos += pauseNanos;
+		maxPauseNanos = Math.max(maxPauseNanos, pauseNanos);
+	}
+
+	int minorCount() {
+		return minorCount;
+	}
+
+	int majorCount() {
+		return majorCount;
+	}
+
+	long reclaimedCount() {
+		return reclaimedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "gc " + marking.name().toLowerCase()
+				+ " minor: " + minorCount
+				+ " major: " + majorCount
+				+ " incremental steps: " + incrementalCount
+				+ " reclaimed constants: " + reclaimedCount
+				+ " total: " + TimeUnit.NANOSECONDS.toMicros(totalNanos) + "us"
+				+ " max pause: " + TimeUnit.NANOSECONDS.toMicros(maxPauseNanos) + "us";
+	}
+}
@@ -0,0 +1,38 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeAnyValue;
+
+import java.lang.invoke.SwitchPoint;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// cache of a quickened LOOKUP instruction, the encoded value of a global,
+// the value is looked up again only if the global environment has changed since the last lookup,
+// the switch point of the global environment is replaced each time a global is registered
+final class GlobalCache {
+	private final String name;
+	private SwitchPoint switchPoint;
+	private int value;
+
+	GlobalCache(String name) {
+		this.name = name;
+	}
+
+	String name() {
+		return name;
+	}
+
+	int value(JSObject globalEnv, Dictionary dict) {
+		var switchPoint = globalEnv.getSwitchPoint();
+		if (this.switchPoint != switchPoint) {
+			value = encodeAnyValue(globalEnv.lookup(name), dict);
+			this.switchPoint = switchPoint;
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "cache " + name;
+	}
+}
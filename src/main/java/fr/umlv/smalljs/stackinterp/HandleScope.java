@@ -0,0 +1,177 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeTransientValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.fitsSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isBox;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.unbox;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// a scope of handles, the objects of the heap are seen by the native functions as views (HeapView)
+// that reference the objects through handles, so the views stay valid if the GC moves the objects,
+// the views can not be used once the scope is closed.
+// Encoding an int that is not a small int allocates a box, the roots of the GC are the handles
+// and the values of the stack between 0 and sp.
+//
+//   try (var scope = heap.openScope(stack, sp)) {
+//     var value = scope.decode(tagValue);   // a HeapView if tagValue is a reference
+//     ...
+//     return scope.encode(result);
+//   }
+final class HandleScope implements AutoCloseable {
+	private final Heap heap;
+	private final Memory stack;
+	private final int sp;
+	private final int handleMark;
+	private boolean closed;
+
+	HandleScope(Heap heap, Memory stack, int sp, int handleMark) {
+		this.heap = heap;
+		this.stack = stack;
+		this.sp = sp;
+		this.handleMark = handleMark;
+	}
+
+	Heap heap() {
+		return heap;
+	}
+
+	void checkOpen() {
+		if (closed) {
+			throw new Failure("heap object used outside of its handle scope");
+		}
+	}
+
+	// decode a tagged value, a reference is decoded as a view on the object, a box as an int
+	Object decode(int tagValue) {
+		if (isSmallInt(tagValue)) {
+			return decodeSmallInt(tagValue);
+		}
+		if (isReference(tagValue)) {
+			checkOpen();
+			var ref = decodeReference(tagValue);
+			if (isBox(ref, heap.dict(), heap.memory())) {
+				return unbox(ref, heap.memory());
+			}
+			return new View(heap.newHandle(tagValue));
+		}
+		return decodeDictObject(tagValue, heap.dict());
+	}
+
+	// encode a value, a view is encoded as a reference on its object, an int that is not a small int is boxed,
+	// the other objects are created at runtime so their dictionary indexes are transient
+	int encode(Object value) {
+		if (value instanceof View view) {
+			return encodeReference(view.ref());
+		}
+		if (value instanceof Integer intValue && !fitsSmallInt(intValue)) {
+			checkOpen();
+			return encodeReference(heap.box(intValue, stack, sp));
+		}
+		return encodeTransientValue(value, heap.dict());
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		heap.closeScope(handleMark);
+	}
+
+	// a view on an object of the heap through a handle of this scope
+	final class View implements HeapView {
+		private final int handle;
+
+		private View(int handle) {
+			this.handle = handle;
+		}
+
+		// the current address of the object
+		private int ref() {
+			checkOpen();
+			return decodeReference(heap.handle(handle));
+		}
+
+		private JSObject clazz(int ref) {
+			return (JSObject) decodeDictObject(heap.memory().get(ref), heap.dict());
+		}
+
+		private int address(int ref, String name) {
+			var slotOrUndefined = clazz(ref).lookup(name);
+			if (slotOrUndefined == UNDEFINED) {
+				return -1;
+			}
+			return ref + OBJECT_HEADER_SIZE + (int) slotOrUndefined;
+		}
+
+		@Override
+		public int length() {
+			return clazz(ref()).length();
+		}
+
+		@Override
+		public Object get(String name) {
+			var address = address(ref(), name);
+			if (address == -1) {
+				return UNDEFINED;
+			}
+			return decode(heap.memory().get(address));
+		}
+
+		@Override
+		public void set(String name, Object value) {
+			// encoding an int that is not a small int allocates a box, the GC may move the object,
+			// so the address of the field is computed after
+			var newValue = encode(value);
+			var address = address(ref(), name);
+			if (address == -1) {
+				throw new Failure("invalid field " + name);
+			}
+			var oldValue = heap.memory().get(address);
+			heap.memory().set(address, newValue);
+			heap.writeBarrier(address, oldValue, newValue);
+		}
+
+		@Override
+		public String toString() {
+			var builder = new StringBuilder();
+			toString(ref(), builder, new HashSet<>());
+			return builder.toString();
+		}
+
+		private void toString(int ref, StringBuilder builder, Set<Integer> seen) {
+			if (!seen.add(ref)) {
+				builder.append("... // object");
+				return;
+			}
+			var dict = heap.dict();
+			builder.append("{ // object\n");
+			clazz(ref).forEach((key, slot) -> {
+				builder.append("  ").append(key).append(": ");
+				var value = heap.memory().get(ref + OBJECT_HEADER_SIZE + (int) slot);
+				if (isReference(value) && !isBox(decodeReference(value), dict, heap.memory())) {
+					toString(decodeReference(value), builder, seen);
+				} else {
+					builder.append(TagValues.decodeAnyValue(value, dict, heap.memory()));
+				}
+				builder.append("\n");
+			});
+			builder.append("  proto: null\n");
+			builder.append("}");
+		}
+	}
+}
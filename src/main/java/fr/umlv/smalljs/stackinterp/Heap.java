@@ -0,0 +1,505 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// a generational heap of tagged values
+//   [0, nurserySize[            the nursery, objects are allocated here by bumping a pointer
+//   [nurserySize, memory.size()[ the old space, objects that survive a minor collection are promoted here
+//
+// A minor collection copies the live objects of the nursery into the old space,
+// the roots are the stack and the dirty cards of the old space.
+// A major collection is the in place mark-compact GC of the old space (see stack_interpreter.md).
+//
+// Because object headers are never encoded as references (the class is a dictionary index and
+// the GC slot is GC_EMPTY), all the slots of a card can be scanned without parsing the objects.
+//
+// The marking of a major collection is either
+//   SERIAL      done at once by the current thread
+//   PARALLEL    done at once by the tasks of a fork/join pool
+//   INCREMENTAL done a little at each allocation, once the old space is filled above MARK_START_THRESHOLD.
+//               It's a snapshot at the beginning marking, the roots are marked when the marking starts,
+//               the write barrier marks the references that are overwritten and the objects promoted
+//               or allocated in the old space while marking are allocated already marked.
+// For all modes, the whole nursery is a root of the old space.
+//
+// The handles are the references to the objects of the heap used by the views of the native functions
+// (see HandleScope), they are roots of the GC like the stack.
+//
+// If reclaimDictionary is true, a major collection also reclaims the transient dictionary indexes
+// that are not referenced by the stack, the handles, the nursery or the live objects of the old space
+// (see Dictionary).
+final class Heap {
+	static final int GC_OFFSET = 1;
+	static final int GC_MARK = -1;
+	static final int GC_EMPTY = -2;
+
+	// if after a major collection the live objects use more than this ratio of the old space, the old space grows
+	private static final double GROWTH_THRESHOLD = 0.5;
+
+	// a card covers 2^CARD_SHIFT slots of the old space
+	private static final int CARD_SHIFT = 5;
+	private static final byte CLEAN = 0;
+	private static final byte DIRTY = 1;
+
+	// incremental marking starts when the old space is filled above this ratio
+	private static final double MARK_START_THRESHOLD = 0.75;
+	// number of slots scanned by an incremental marking step
+	private static final int MARK_STEP_SIZE = 128;
+
+	private final Dictionary dict;
+	private final int nurserySize;
+	private final int maxSize;
+	private final Config.Marking markingMode;
+	private final boolean reclaimDictionary;
+	private final int vBoxClass;
+	private final GCStats stats;
+	private Memory memory;
+	private byte[] cards;
+	private int nurseryHp; // heap pointer of the nursery
+	private int oldHp;     // heap pointer of the old space
+
+	// GC work list, the grey objects
+	private int[] work = new int[16];
+	private int workTop;
+	// true if an incremental marking is in progress
+	private boolean marking;
+
+	// handles of the open handle scopes
+	private Memory handles = Memory.allocate(Config.Storage.ARRAY, 16);
+	private int handleCount;
+
+	Heap(Dictionary dict, Config config) {
+		this(dict, config.nurserySize(), config.heapSize(), config.maxHeapSize(), config.marking(), config.storage(),
+				config.reclaimDictionary());
+	}
+
+	Heap(Dictionary dict, int nurserySize, int initialSize, int maxSize, Config.Marking markingMode, Config.Storage storage,
+	     boolean reclaimDictionary) {
+		if (nurserySize < OBJECT_HEADER_SIZE || initialSize < OBJECT_HEADER_SIZE || maxSize < initialSize) {
+			throw new IllegalArgumentException("invalid heap size " + nurserySize + " " + initialSize + " " + maxSize);
+		}
+		this.dict = dict;
+		this.nurserySize = nurserySize;
+		this.maxSize = maxSize;
+		this.markingMode = markingMode;
+		this.reclaimDictionary = reclaimDictionary;
+		this.vBoxClass = encodeDictObject(TagValues.BOX_CLASS, dict);
+		this.stats = new GCStats(markingMode);
+		this.memory = Memory.allocate(storage, nurserySize + initialSize);
+		this.cards = new byte[cardCount(initialSize)];
+		this.oldHp = nurserySize;
+	}
+
+	private static int cardCount(int oldSize) {
+		return (oldSize + (1 << CARD_SHIFT) - 1) >> CARD_SHIFT;
+	}
+
+	Memory memory() {
+		return memory;
+	}
+
+	GCStats stats() {
+		return stats;
+	}
+
+	Dictionary dict() {
+		return dict;
+	}
+
+	// open a new scope, the handles created until the scope is closed are roots of the GC,
+	// the values of the stack between 0 and sp are the other roots if a box is allocated in the scope
+	HandleScope openScope(Memory stack, int sp) {
+		return new HandleScope(this, stack, sp, handleCount);
+	}
+
+	void closeScope(int handleMark) {
+		handleCount = handleMark;
+	}
+
+	// create a handle on the reference value
+	int newHandle(int value) {
+		if (handleCount == handles.size()) {
+			handles = handles.resize(handleCount << 1);
+		}
+		handles.set(handleCount, value);
+		return handleCount++;
+	}
+
+	// the reference value of the handle, up to date even if the object has been moved
+	int handle(int handle) {
+		return handles.get(handle);
+	}
+
+	// allocate an object of class vClass with fieldCount fields and initialize its header,
+	// the roots are the values of the stack between 0 and sp,
+	// references on the stack are rewritten if a collection occurs
+	int allocate(int vClass, int fieldCount, Memory stack, int sp) {
+		if (marking) {
+			markStep(stack, sp);
+		} else if (markingMode == Config.Marking.INCREMENTAL
+				&& oldHp - nurserySize > (memory.size() - nurserySize) * MARK_START_THRESHOLD) {
+			startMarking(stack, sp);
+		}
+
+		var size = OBJECT_HEADER_SIZE + fieldCount;
+		int ref;
+		if (size > nurserySize) {
+			ref = allocateOld(size, stack, sp);
+		} else {
+			if (nurseryHp + size > nurserySize) {
+				// in the worst case, all objects of the nursery survive
+				ensureOldSpace(nurseryHp, stack, sp);
+				minorCollect(stack, sp);
+			}
+			ref = nurseryHp;
+			nurseryHp += size;
+		}
+		memory.set(ref, vClass);
+		memory.set(ref + GC_OFFSET, (marking && ref >= nurserySize) ? GC_MARK : GC_EMPTY);
+		return ref;
+	}
+
+	// allocate a box for an int that is not a small int (see TagValues.BOX_CLASS)
+	int box(int value, Memory stack, int sp) {
+		var ref = allocate(vBoxClass, 2, stack, sp);
+		memory.set(ref + OBJECT_HEADER_SIZE, encodeSmallInt(value >> 16));
+		memory.set(ref + OBJECT_HEADER_SIZE + 1, encodeSmallInt(value & 0xFFFF));
+		return ref;
+	}
+
+	private int allocateOld(int size, Memory stack, int sp) {
+		ensureOldSpace(size, stack, sp);
+		var ref = oldHp;
+		oldHp += size;
+		// the fields are initialized by the caller and may reference the nursery
+		for (var card = (ref - nurserySize) >> CARD_SHIFT; card <= (oldHp - 1 - nurserySize) >> CARD_SHIFT; card++) {
+			cards[card] = DIRTY;
+		}
+		return ref;
+	}
+
+	// write barrier, must be called each time newValue replaces oldValue in a field at address
+	void writeBarrier(int address, int oldValue, int newValue) {
+		if (marking) {
+			// snapshot at the beginning, the overwritten object may be only reachable from here
+			markValue(oldValue);
+		}
+		if (address >= nurserySize) {
+			markCard(address, newValue);
+		}
+	}
+
+	private void markCard(int address, int value) {
+		if (isReference(value) && decodeReference(value) < nurserySize) {
+			cards[(address - nurserySize) >> CARD_SHIFT] = DIRTY;
+		}
+	}
+
+	private void ensureOldSpace(int size, Memory stack, int sp) {
+		if (oldHp + size <= memory.size()) {
+			return;
+		}
+		majorCollect(stack, sp);
+		var required = oldHp - nurserySize + size;
+		if (required > (memory.size() - nurserySize) * GROWTH_THRESHOLD) {
+			grow(required);
+		}
+	}
+
+	private void grow(int required) {
+		var oldSize = memory.size() - nurserySize;
+		var newSize = (long) oldSize;
+		while (required > newSize * GROWTH_THRESHOLD && newSize < maxSize) {
+			newSize = newSize << 1;
+		}
+		newSize = Math.min(newSize, maxSize);
+		if (required > newSize) {
+			throw new Failure("out of memory, heap size " + oldSize + " max heap size " + maxSize);
+		}
+		memory = memory.resize(nurserySize + (int) newSize);
+		cards = Arrays.copyOf(cards, cardCount((int) newSize));
+	}
+
+	private int sizeOf(int ref) {
+		var clazz = (JSObject) decodeDictObject(memory.get(ref), dict);
+		return OBJECT_HEADER_SIZE + clazz.length();
+	}
+
+	private void minorCollect(Memory stack, int sp) {
+		var startTime = System.nanoTime();
+		var scan = oldHp;
+
+		// 1. promote the objects referenced by the stack and the handles
+		for (var i = 0; i < sp; i++) {
+			stack.set(i, promote(stack.get(i)));
+		}
+		for (var i = 0; i < handleCount; i++) {
+			handles.set(i, promote(handles.get(i)));
+		}
+
+		// 2. promote the objects referenced by the dirty cards
+		for (var card = 0; card < cards.length; card++) {
+			if (cards[card] == DIRTY) {
+				cards[card] = CLEAN;
+				var start = nurserySize + (card << CARD_SHIFT);
+				var end = Math.min(start + (1 << CARD_SHIFT), scan);
+				for (var i = start; i < end; i++) {
+					memory.set(i, promote(memory.get(i)));
+				}
+			}
+		}
+
+		// 3. promote the objects referenced by the promoted objects
+		while (scan < oldHp) {
+			var end = scan + sizeOf(scan);
+			for (var i = scan + OBJECT_HEADER_SIZE; i < end; i++) {
+				memory.set(i, promote(memory.get(i)));
+			}
+			scan = end;
+		}
+		nurseryHp = 0;
+		stats.minor(System.nanoTime() - startTime);
+	}
+
+	private int promote(int value) {
+		if (!isReference(value)) {
+			return value;
+		}
+		var ref = decodeReference(value);
+		if (ref >= nurserySize) {
+			return value;
+		}
+		var forward = memory.get(ref + GC_OFFSET);
+		if (forward != GC_EMPTY) {  // already promoted
+			return encodeReference(forward);
+		}
+		var size = sizeOf(ref);
+		var newRef = oldHp;
+		memory.copy(ref, newRef, size);
+		if (marking) {  // allocated already marked
+			memory.set(newRef + GC_OFFSET, GC_MARK);
+		}
+		memory.set(ref + GC_OFFSET, newRef);
+		oldHp += size;
+		return encodeReference(newRef);
+	}
+
+	private void startMarking(Memory stack, int sp) {
+		var startTime = System.nanoTime();
+		marking = true;
+		markRoots(stack, sp);
+		stats.incremental(System.nanoTime() - startTime);
+	}
+
+	private void markStep(Memory stack, int sp) {
+		var startTime = System.nanoTime();
+		if (!markGreyObjects(MARK_STEP_SIZE)) {
+			stats.incremental(System.nanoTime() - startTime);
+			return;
+		}
+		// no more grey object, the marking is finished
+		marking = false;
+		reclaimDictionary(stack, sp);
+		compact(stack, sp);
+		stats.major(System.nanoTime() - startTime);
+	}
+
+	private void majorCollect(Memory stack, int sp) {
+		var startTime = System.nanoTime();
+
+		// 1. mark all reachable objects in the old space
+		if (marking) {
+			// finish the incremental marking
+			markGreyObjects(Integer.MAX_VALUE);
+			marking = false;
+		} else {
+			mark(stack, sp);
+		}
+
+		reclaimDictionary(stack, sp);
+		compact(stack, sp);
+		stats.major(System.nanoTime() - startTime);
+	}
+
+	// the marked objects of the old space are the live objects, free the transient dictionary indexes
+	// that are only referenced by dead objects
+	private void reclaimDictionary(Memory stack, int sp) {
+		if (!reclaimDictionary) {
+			return;
+		}
+		dict.clearMarks();
+		markDictIndexes(stack, 0, sp);
+		markDictIndexes(handles, 0, handleCount);
+		// the GC slot of the headers may look like a dictionary index, so the objects are scanned one by one
+		for (var scan = 0; scan < nurseryHp;) {
+			var size = sizeOf(scan);
+			markDictIndexes(memory, scan + OBJECT_HEADER_SIZE, scan + size);
+			scan += size;
+		}
+		for (var scan = nurserySize; scan < oldHp;) {
+			var size = sizeOf(scan);
+			if (memory.get(scan + GC_OFFSET) == GC_MARK) {
+				markDictIndexes(memory, scan + OBJECT_HEADER_SIZE, scan + size);
+			}
+			scan += size;
+		}
+		stats.reclaimed(dict.reclaim());
+	}
+
+	private void markDictIndexes(Memory memory, int start, int end) {
+		for (var i = start; i < end; i++) {
+			var value = memory.get(i);
+			if (isDictObject(value)) {
+				dict.mark(value >>> 2);
+			}
+		}
+	}
+
+	private void compact(Memory stack, int sp) {
+		// 2. scan the old space to find the new addresses of all live objects
+		var free = nurserySize;
+		for (var scan = nurserySize; scan < oldHp;) {
+			var size = sizeOf(scan);
+			if (memory.get(scan + GC_OFFSET) == GC_MARK) {
+				memory.set(scan + GC_OFFSET, free);
+				free += size;
+			}
+			scan += size;
+		}
+
+		// 3. nothing to free
+		if (free == oldHp) {
+			for (var scan = nurserySize; scan < oldHp;) {
+				memory.set(scan + GC_OFFSET, GC_EMPTY);
+				scan += sizeOf(scan);
+			}
+			return;
+		}
+
+		// 4. scan the heap to rewrite all field references,
+		// the cards are recomputed using the new addresses
+		Arrays.fill(cards, CLEAN);
+		for (var scan = nurserySize; scan < oldHp;) {
+			var size = sizeOf(scan);
+			var newRef = memory.get(scan + GC_OFFSET);
+			if (newRef != GC_EMPTY) {
+				for (var i = OBJECT_HEADER_SIZE; i < size; i++) {
+					var value = forward(memory.get(scan + i));
+					memory.set(scan + i, value);
+					markCard(newRef + i, value);
+				}
+			}
+			scan += size;
+		}
+		for (var i = 0; i < nurseryHp; i++) {
+			memory.set(i, forward(memory.get(i)));
+		}
+
+		// 5. scan the stack and the handles to rewrite all references
+		for (var i = 0; i < sp; i++) {
+			stack.set(i, forward(stack.get(i)));
+		}
+		for (var i = 0; i < handleCount; i++) {
+			handles.set(i, forward(handles.get(i)));
+		}
+
+		// 6. scan the old space and move the live objects to their new addresses
+		for (var scan = nurserySize; scan < oldHp;) {
+			var size = sizeOf(scan);
+			var newRef = memory.get(scan + GC_OFFSET);
+			if (newRef != GC_EMPTY) {
+				memory.copy(scan, newRef, size);
+				memory.set(newRef + GC_OFFSET, GC_EMPTY);
+			}
+			scan += size;
+		}
+		oldHp = free;
+	}
+
+	private int forward(int value) {
+		if (!isReference(value)) {
+			return value;
+		}
+		var ref = decodeReference(value);
+		if (ref < nurserySize) {  // nursery objects don't move
+			return value;
+		}
+		return encodeReference(memory.get(ref + GC_OFFSET));
+	}
+
+	private void mark(Memory stack, int sp) {
+		if (markingMode == Config.Marking.PARALLEL) {
+			var parallelMark = new ParallelMark(memory, nurserySize, dict);
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(parallelMark.roots(stack, 0, sp), parallelMark.roots(handles, 0, handleCount),
+						parallelMark.roots(memory, 0, nurseryHp));
+				}
+			});
+			return;
+		}
+		markRoots(stack, sp);
+		markGreyObjects(Integer.MAX_VALUE);
+	}
+
+	private void markRoots(Memory stack, int sp) {
+		for (var i = 0; i < sp; i++) {
+			markValue(stack.get(i));
+		}
+		for (var i = 0; i < handleCount; i++) {
+			markValue(handles.get(i));
+		}
+		// the headers of the nursery objects are not references, so the nursery can be scanned slot by slot
+		for (var i = 0; i < nurseryHp; i++) {
+			markValue(memory.get(i));
+		}
+	}
+
+	// mark the fields of the grey objects, scanning at most budget slots,
+	// return true if there is no more grey object
+	private boolean markGreyObjects(int budget) {
+		while (workTop != 0) {
+			if (budget <= 0) {
+				return false;
+			}
+			var ref = work[--workTop];
+			var size = sizeOf(ref);
+			for (var i = ref + OBJECT_HEADER_SIZE; i < ref + size; i++) {
+				markValue(memory.get(i));
+			}
+			budget -= size;
+		}
+		return true;
+	}
+
+	private void markValue(int value) {
+		if (!isReference(value)) {
+			return;
+		}
+		var ref = decodeReference(value);
+		if (ref < nurserySize || memory.get(ref + GC_OFFSET) != GC_EMPTY) {
+			return;
+		}
+		memory.set(ref + GC_OFFSET, GC_MARK);
+		// use an explicit work list to not overflow the Java stack on long chains of objects
+		if (workTop == work.length) {
+			work = Arrays.copyOf(work, workTop << 1);
+		}
+		work[workTop++] = ref;
+	}
+}
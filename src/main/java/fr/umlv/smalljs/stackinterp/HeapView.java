@@ -0,0 +1,19 @@
+package fr.umlv.smalljs.stackinterp;
+
+// a view on an object of the heap given to the native functions,
+// the fields are read and written directly in the heap, no copy is done,
+// the view is only valid while its handle scope is open.
+// The views of the tagged representation are created by HandleScope, the views of the NaN boxing representation
+// by NanBoxHandleScope, so a native function works the same way with both representations.
+// The method toString() uses the same format as JSObject.toString() for an object without proto.
+public sealed interface HeapView permits HandleScope.View, NanBoxHandleScope.View {
+	// number of fields of the object
+	int length();
+
+	// value of the field, undefined if there is no field with that name,
+	// an object of the heap is returned as a view in the same scope
+	Object get(String name);
+
+	// change the value of an existing field
+	void set(String name, Object value);
+}
@@ -0,0 +1,260 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL_CACHED;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET_CACHED;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET_POLYMORPHIC;
+import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.INLINE_GUARD;
+import static fr.umlv.smalljs.stackinterp.Instructions.INLINE_RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.PUT;
+import static fr.umlv.smalljs.stackinterp.Instructions.PUT_CACHED;
+import static fr.umlv.smalljs.stackinterp.Instructions.PUT_POLYMORPHIC;
+import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE_LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL_CACHED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.stackinterp.InstrRewriter.InstrBuffer;
+
+// inlining of the calls to small functions, guided by the number of calls of each call site (see CallCache),
+// when a call site has called interpreted functions Config.inlineThreshold times, the code of the function
+// that contains it is rewritten, each call site that has reached half the threshold and that calls a small function
+// that calls no function (at most MAX_INLINED_SIZE ints of instructions) is replaced by the instructions of the function
+//   args; FUNCALL_CACHED cache  ->  args; INLINE_GUARD function argument_count slow
+//                                   CONST undefined (for each local of the function that is not a parameter)
+//                                   the instructions of the function, a RET is an INLINE_RET then a GOTO end
+//                              end: ...
+//                                   (after the last instruction of the code)
+//                             slow: FUNCALL_CACHED cache; GOTO end
+// The guard checks that the qualifier, usually the value of a global, is still the function inlined,
+// otherwise the call is done as before (a TAILCALL_CACHED is inlined the same way, its slow path ends with a RET).
+//
+// There is no new frame, the locals of the function inlined are the values of the operand stack that start
+// at the receiver, the height of the operand stack is known statically (see InstrRewriter.stackHeights()),
+// so a local is accessed by a LOAD or a STORE of a slot after the activation zone, then INLINE_RET replaces
+// the qualifier and the locals by the result.
+// The new code replaces the code of the function, the call caches of the old code miss (see Jit.Tier.replaced)
+// and the frames that execute the old code are unchanged.
+final class Inliner {
+	private Inliner() {
+		throw new AssertionError();
+	}
+
+	// maximum number of ints of the instructions of a function inlined
+	static final int MAX_INLINED_SIZE = 32;
+
+	// a call site of a code of the function has become hot, replace the current code of the function,
+	// which may not be the code of the call site if it has already been replaced, by a code with the hot calls inlined
+	static void inline(Machine machine, int functionIndex) {
+		if (isReference(functionIndex)) {
+			return;
+		}
+		var function = (JSObject) decodeDictObject(functionIndex, machine.dict);
+		if (!(function.lookup("__code__") instanceof Code code)) {
+			return;
+		}
+		var newCode = inline(code, machine.dict, machine.config.inlineThreshold(), machine.undefined);
+		if (newCode != null) {
+			function.register("__code__", newCode);
+			code.tier().replace();
+		}
+	}
+
+	// rewrite the instructions of the code, return null if no call site can be inlined
+	static Code inline(Code code, Dictionary dict, int threshold, int undefined) {
+		var instrs = code.instrs();
+		var heights = InstrRewriter.stackHeights(instrs, dict);
+
+		// 1. the calls of the slow paths are already inlined
+		var slowPaths = new boolean[instrs.length];
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (instrs[pc] == INLINE_GUARD) {
+				slowPaths[instrs[pc + 3]] = true;
+			}
+		}
+
+		// 2. copy the instructions and inline the calls, newPcs maps the index of an instruction to its new index
+		var buffer = new InstrBuffer();
+		var newPcs = new int[instrs.length + 1];
+		var jumps = new int[8];
+		var jumpCount = 0;
+		var calls = new int[8];  // pairs of the index of a call inlined and the index of the label of its guard
+		var callCount = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = buffer.label();
+			var instr = instrs[pc];
+			var next = pc + Instructions.length(instr);
+			switch (instr) {
+				case GOTO, JUMP_IF_FALSE, INLINE_GUARD -> {
+					// the target is patched once all the new indexes are known
+					if (jumpCount == jumps.length) {
+						jumps = Arrays.copyOf(jumps, jumpCount << 1);
+					}
+					jumps[jumpCount++] = buffer.label() + (instr == INLINE_GUARD ? 3 : 1);
+				}
+				case FUNCALL_CACHED, TAILCALL_CACHED -> {
+					var cache = (CallCache) decodeDictObject(instrs[pc + 1], dict);
+					var callee = (slowPaths[pc] || heights[pc] == -1) ? null : inlinable(cache, threshold, dict);
+					if (callee != null) {
+						// the receiver is below the arguments
+						var base = code.slotCount() + ACTIVATION_SIZE + heights[pc] - cache.argumentCount() - 1;
+						var guard = inline(buffer, cache, callee, base, undefined, dict);
+						if (callCount == calls.length) {
+							calls = Arrays.copyOf(calls, callCount << 1);
+						}
+						calls[callCount++] = pc;
+						calls[callCount++] = guard;
+						pc = next;
+						continue;
+					}
+				}
+				default -> {
+					// no rewrite
+				}
+			}
+			copy(buffer, instrs, pc, dict);
+			pc = next;
+		}
+		newPcs[instrs.length] = buffer.label();
+		if (callCount == 0) {
+			return null;
+		}
+
+		// 3. emit the slow paths, the call then a jump after the inlined instructions, or a RET after a tail call
+		for (var i = 0; i < callCount; i += 2) {
+			var pc = calls[i];
+			buffer.patch(calls[i + 1], buffer.label());
+			buffer.emit(instrs[pc]).emit(instrs[pc + 1]);
+			if (instrs[pc] == TAILCALL_CACHED) {
+				buffer.emit(RET);
+			} else {
+				buffer.emit(GOTO).emit(newPcs[pc + Instructions.length(instrs[pc])]);
+			}
+		}
+
+		// 4. patch the jumps with the new indexes
+		var newInstrs = buffer.toInstrs();
+		for (var i = 0; i < jumpCount; i++) {
+			newInstrs[jumps[i]] = newPcs[newInstrs[jumps[i]]];
+		}
+		return new Code(newInstrs, code.parameterCount(), code.slotCount(), InstrRewriter.maxStack(newInstrs, dict));
+	}
+
+	// the code of the function called by the call site if the call should be inlined, null otherwise
+	private static Code inlinable(CallCache cache, int threshold, Dictionary dict) {
+		var callee = cache.code();
+		if (cache.callCount() < threshold / 2 || callee == null || callee.tier().replaced()
+				|| callee.instrs().length > MAX_INLINED_SIZE || callee.parameterCount() != cache.argumentCount() + 1/* this */) {
+			return null;
+		}
+		var instrs = callee.instrs();
+		var heights = InstrRewriter.stackHeights(instrs, dict);
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			switch (instrs[pc]) {
+				case FUNCALL, FUNCALL_CACHED, TAILCALL, TAILCALL_CACHED, INLINE_GUARD -> {
+					// only the functions that call no function are inlined
+					return null;
+				}
+				case RET, CONST_RET -> {
+					// the result must be the only value on the operand stack
+					if (heights[pc] != -1 && heights[pc] != (instrs[pc] == RET ? 1 : 0)) {
+						return null;
+					}
+				}
+				default -> {
+					// can be inlined
+				}
+			}
+		}
+		return callee;
+	}
+
+	// emit the guard and the instructions of the callee, the local of the callee at slot s is at the slot base + s
+	// of the code, return the index of the label of the guard
+	private static int inline(InstrBuffer buffer, CallCache cache, Code callee, int base, int undefined, Dictionary dict) {
+		buffer.emit(INLINE_GUARD).emit(cache.qualifier()).emit(cache.argumentCount());
+		var guard = buffer.placeholder();
+		for (var slot = callee.parameterCount(); slot < callee.slotCount(); slot++) {
+			buffer.emit(CONST).emit(undefined);
+		}
+
+		// the unreachable instructions are dropped, the last instruction falls through to the end
+		var instrs = callee.instrs();
+		var heights = InstrRewriter.stackHeights(instrs, dict);
+		var last = 0;
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (heights[pc] != -1) {
+				last = pc;
+			}
+		}
+
+		// the jumps of the callee are patched with calleePcs, the returns with the end
+		var calleePcs = new int[instrs.length];
+		var jumps = new int[instrs.length];
+		var jumpCount = 0;
+		var returns = new int[instrs.length];
+		var returnCount = 0;
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (heights[pc] == -1) {
+				continue;
+			}
+			calleePcs[pc] = buffer.label();
+			switch (instrs[pc]) {
+				case LOAD, STORE -> buffer.emit(instrs[pc]).emit(base + instrs[pc + 1]);
+				case LOAD_LOAD, STORE_LOAD -> buffer.emit(instrs[pc]).emit(base + instrs[pc + 1]).emit(base + instrs[pc + 2]);
+				case GOTO, JUMP_IF_FALSE -> {
+					buffer.emit(instrs[pc]);
+					jumps[jumpCount++] = buffer.label();
+					buffer.emit(instrs[pc + 1]);
+				}
+				case RET, CONST_RET -> {
+					if (instrs[pc] == CONST_RET) {
+						buffer.emit(CONST).emit(instrs[pc + 1]);
+					}
+					// drop the qualifier and the locals
+					buffer.emit(INLINE_RET).emit(1 + callee.slotCount());
+					if (pc != last) {
+						buffer.emit(GOTO);
+						returns[returnCount++] = buffer.placeholder();
+					}
+				}
+				default -> copy(buffer, instrs, pc, dict);
+			}
+		}
+		for (var i = 0; i < jumpCount; i++) {
+			buffer.patch(jumps[i], calleePcs[buffer.get(jumps[i])]);
+		}
+		for (var i = 0; i < returnCount; i++) {
+			buffer.patch(returns[i], buffer.label());
+		}
+		return guard;
+	}
+
+	// copy the instruction at pc, a quickened GET or PUT is copied unquickened because
+	// its field cache is tied to the instruction that has quickened it
+	private static void copy(InstrBuffer buffer, int[] instrs, int pc, Dictionary dict) {
+		switch (instrs[pc]) {
+			case GET_CACHED, GET_POLYMORPHIC -> buffer.emit(GET).emit(((FieldCache) decodeDictObject(instrs[pc + 1], dict)).fieldName());
+			case PUT_CACHED, PUT_POLYMORPHIC -> buffer.emit(PUT).emit(((FieldCache) decodeDictObject(instrs[pc + 1], dict)).fieldName());
+			default -> {
+				for (var i = pc; i < pc + Instructions.length(instrs[pc]); i++) {
+					buffer.emit(instrs[i]);
+				}
+			}
+		}
+	}
+}
@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.Block;
@@ -59,19 +60,46 @@ public class InstrRewriter {
 		}
 
 		int placeholder() {
-			return size++;
+			emit(0);
+			return size - 1;
 		}
 
 		void patch(int position, int label) {
 			instrs[position] = label;
 		}
 
+		int get(int position) {
+			return instrs[position];
+		}
+
 		int[] toInstrs() {
 			return Arrays.copyOf(instrs, size);
 		}
 	}
 
-	public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv) {
+	public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv, Config config) {
+		var function = newFunction(name, dict, globalEnv, config);
+		function.register("__code__", compile(parameters, body, dict, globalEnv, config));
+		return function;
+	}
+
+	// create a function whose body is compiled on its first call (see LazyCode)
+	static JSObject createLazyFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv, Config config) {
+		var function = newFunction(name, dict, globalEnv, config);
+		function.register("__code__", new LazyCode(function, parameters, body, dict, globalEnv, config));
+		return function;
+	}
+
+	private static JSObject newFunction(Optional<String> name, Dictionary dict, JSObject globalEnv, Config config) {
+		return JSObject.newFunction(name.orElse("lambda"), (self, receiver, args) -> {
+			if (receiver != UNDEFINED || args.length != 0) {
+				throw new Failure("can not interpret a function with a receiver and/or arguments");
+			}
+			return StackInterpreter.execute(self, dict, globalEnv, config);
+		});
+	}
+
+	private static Code compile(List<String> parameters, Block body, Dictionary dict, JSObject globalEnv, Config config) {
 		var env = JSObject.newEnv(null);
 
 		env.register("this", 0);
@@ -79,24 +107,164 @@ public class InstrRewriter {
 			env.register(parameter, env.length());
 		}
 		visitVariable(body, env);
+		scalarReplacement(body, body, env);
 
 		var buffer = new InstrBuffer();
-		visit(body, env, buffer, dict, globalEnv);
+		visit(body, env, buffer, dict, globalEnv, config);
 		buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
 		buffer.emit(RET);
 
 		var instrs = buffer.toInstrs();
-		Instructions.dump(instrs, dict);
+		if (config.peephole()) {
+			instrs = Peephole.optimize(instrs);
+		}
+		if (StackInterpreter.TRACE) {
+			Instructions.dump(instrs, dict);
+		}
 
-		var code = new Code(instrs, parameters.size() + 1 /* this */, env.length());
-		var function = JSObject.newFunction(name.orElse("lambda"), (self, receiver, args) -> {
-			if (receiver != UNDEFINED || args.length != 0) {
-				throw new Failure("can not interpret a function with a receiver and/or arguments");
+		// the compact dispatch executes the instructions encoded as bytes
+		var compact = (config.dispatch() == Config.Dispatch.COMPACT) ? CompactCode.encode(instrs, dict) : null;
+		return new Code(instrs, parameters.size() + 1 /* this */, env.length(), maxStack(instrs, dict), compact);
+	}
+
+	// the __code__ of a function that has not been called yet, it keeps the AST of the body
+	// and is replaced by the compiled Code on the first call, so a function never called is never compiled
+	static final class LazyCode {
+		private final JSObject function;
+		private final List<String> parameters;
+		private final Block body;
+		private final Dictionary dict;
+		private final JSObject globalEnv;
+		private final Config config;
+
+		private LazyCode(JSObject function, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv, Config config) {
+			this.function = function;
+			this.parameters = parameters;
+			this.body = body;
+			this.dict = dict;
+			this.globalEnv = globalEnv;
+			this.config = config;
+		}
+
+		// compile the body and replace the __code__ of the function
+		Code compile() {
+			var code = InstrRewriter.compile(parameters, body, dict, globalEnv, config);
+			function.register("__code__", code);
+			return code;
+		}
+
+		@Override
+		public String toString() {
+			return "LazyCode[" + function.getName() + "]";
+		}
+	}
+
+	// the code of a function, compiled if it's the first call, null if the function is a native function
+	static Code code(JSObject function) {
+		var maybeCode = function.lookup("__code__");
+		if (maybeCode instanceof LazyCode lazyCode) {
+			return lazyCode.compile();
+		}
+		return (maybeCode == UNDEFINED) ? null : (Code) maybeCode;
+	}
+
+	// number of values popped by the instruction at pc
+	private static int popCount(int[] instrs, int pc, Dictionary dict) {
+		return switch (instrs[pc]) {
+			case CONST, LOOKUP, LOOKUP_CACHED, LOAD, LOAD_LOAD, LOOKUP_CONST, LOOKUP_CONST_CACHED, GOTO, CONST_RET,
+			     INLINE_GUARD -> 0;
+			case REGISTER, STORE, DUP, POP, RET, JUMP_IF_FALSE, GET, GET_CACHED, GET_POLYMORPHIC, GET_MEGAMORPHIC,
+			     STORE_LOAD, PRINT -> 1;
+			case SWAP, PUT, PUT_CACHED, PUT_POLYMORPHIC, PUT_MEGAMORPHIC, ADD, SUB, MUL, DIV, REM, LT, LE, GT, GE, EQ, NE -> 2;
+			case FUNCALL, TAILCALL -> instrs[pc + 1] + 2;  // the arguments, the receiver and the qualifier
+			case INLINE_RET -> instrs[pc + 1] + 1;
+			case FUNCALL_CACHED, TAILCALL_CACHED -> ((CallCache) TagValues.decodeDictObject(instrs[pc + 1], dict)).argumentCount() + 2;
+			case NEW -> ((JSObject) TagValues.decodeDictObject(instrs[pc + 1], dict)).length();
+			default -> throw new IllegalArgumentException("unknown instruction " + instrs[pc] + " at " + pc);
+		};
+	}
+
+	// number of values pushed by the instruction
+	private static int pushCount(int opcode) {
+		return switch (opcode) {
+			case REGISTER, STORE, POP, RET, CONST_RET, GOTO, JUMP_IF_FALSE, PUT, PUT_CACHED, PUT_POLYMORPHIC, PUT_MEGAMORPHIC,
+			     INLINE_GUARD -> 0;
+			case DUP, SWAP, LOAD_LOAD, LOOKUP_CONST, LOOKUP_CONST_CACHED -> 2;
+			default -> 1;
+		};
+	}
+
+	// dataflow analysis of the instructions, return the maximum height of the operand stack,
+	// check that the stack never underflows and that the heights agree at each jump target
+	static int maxStack(int[] instrs, Dictionary dict) {
+		var heights = stackHeights(instrs, dict);
+		var maxStack = 0;
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (heights[pc] != -1) {
+				maxStack = Math.max(maxStack, heights[pc] - popCount(instrs, pc, dict) + pushCount(instrs[pc]));
 			}
-			return StackInterpreter.execute(self, dict, globalEnv);
-		});
-		function.register("__code__", code);
-		return function;
+		}
+		return maxStack;
+	}
+
+	// height of the operand stack before each instruction, -1 if the instruction is not reachable
+	// or if the index is an operand
+	static int[] stackHeights(int[] instrs, Dictionary dict) {
+		var heights = new int[instrs.length];  // height before the instruction + 1, 0 if not yet seen
+		var work = new int[instrs.length];
+		var workTop = 0;
+		heights[0] = 1;
+		work[workTop++] = 0;
+		while (workTop != 0) {
+			var pc = work[--workTop];
+			var height = heights[pc] - 1;
+			// a straight line of instructions
+			for (;;) {
+				var opcode = instrs[pc];
+				var pop = popCount(instrs, pc, dict);
+				if (height < pop) {
+					throw new IllegalArgumentException("stack underflow at " + pc);
+				}
+				height = height - pop + pushCount(opcode);
+				if (opcode == RET || opcode == CONST_RET) {
+					break;
+				}
+				var next = pc + Instructions.length(opcode);
+				if (opcode == GOTO || opcode == JUMP_IF_FALSE || opcode == INLINE_GUARD) {
+					var target = instrs[pc + (opcode == INLINE_GUARD ? 3 : 1)];
+					if (mergeHeight(heights, target, height)) {
+						work[workTop++] = target;
+					}
+					if (opcode == GOTO) {
+						break;
+					}
+				}
+				if (next >= instrs.length) {
+					throw new IllegalArgumentException("no return at the end of the instructions");
+				}
+				if (!mergeHeight(heights, next, height)) {
+					break;
+				}
+				pc = next;
+			}
+		}
+		for (var i = 0; i < heights.length; i++) {
+			heights[i]--;
+		}
+		return heights;
+	}
+
+	// record the height of the stack at pc, return true if pc was not seen before
+	private static boolean mergeHeight(int[] heights, int pc, int height) {
+		if (heights[pc] == 0) {
+			heights[pc] = height + 1;
+			return true;
+		}
+		if (heights[pc] != height + 1) {
+			throw new IllegalArgumentException("inconsistent stack height at " + pc + ", "
+					+ (heights[pc] - 1) + " and " + height);
+		}
+		return false;
 	}
 
 	private static void visitVariable(Expr expression, JSObject env) {
@@ -116,7 +284,8 @@ public class InstrRewriter {
 				// do nothing
 			}
 			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
-				if (declaration) {
+				// a variable can be declared several times, it still uses only one slot
+				if (declaration && env.lookup(name) == UNDEFINED) {
 					env.register(name, env.length());
 				}
 			}
@@ -145,13 +314,115 @@ public class InstrRewriter {
 		};
 	}
 
-	private static void visit(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict, JSObject globalEnv) {
+	// escape analysis, a local variable initialized with an object literal and only used after, in the same block,
+	// to get or set the fields of the literal does not escape, so the object is not allocated,
+	// each field is stored in its own local slot registered in env as "variable.field"
+	// (see visit() of LocalVarAssignment, FieldAccess and FieldAssignment)
+	private static void scalarReplacement(Block block, Block body, JSObject env) {
+		var instrs = block.instrs();
+		for (var i = 0; i < instrs.size(); i++) {
+			var instr = instrs.get(i);
+			if (instr instanceof If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber)) {
+				scalarReplacement(trueBlock, body, env);
+				scalarReplacement(falseBlock, body, env);
+				continue;
+			}
+			if (!(instr instanceof LocalVarAssignment(String name, New(Map<String, Expr> initMap, int newLineNumber), boolean declaration, int lineNumber))
+					|| !declaration || initMap.isEmpty() || env.lookup(name + "." + initMap.keySet().iterator().next()) != UNDEFINED) {
+				continue;
+			}
+			// the variable is only used by the declaration and by the instructions after it in the block
+			var fields = initMap.keySet();
+			var rest = new Block(instrs.subList(i + 1, instrs.size()), lineNumber);
+			if (useCount(body, name) == 1 + useCount(rest, name) && onlyFieldAccesses(rest, name, fields)) {
+				for (var field : fields) {
+					env.register(name + "." + field, env.length());
+				}
+			}
+		}
+	}
+
+	// number of accesses and assignments of the local variable
+	private static int useCount(Expr expression, String name) {
+		return switch (expression) {
+			case Block(List<Expr> instrs, int lineNumber) -> instrs.stream().mapToInt(instr -> useCount(instr, name)).sum();
+			case Literal<?>(Object value, int lineNumber) -> 0;
+			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) ->
+					useCount(qualifier, name) + args.stream().mapToInt(arg -> useCount(arg, name)).sum();
+			case LocalVarAccess(String varName, int lineNumber) -> varName.equals(name) ? 1 : 0;
+			case LocalVarAssignment(String varName, Expr expr, boolean declaration, int lineNumber) ->
+					(varName.equals(name) ? 1 : 0) + useCount(expr, name);
+			// a function can not access the local variables of the enclosing function
+			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> 0;
+			case Return(Expr expr, int lineNumber) -> useCount(expr, name);
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) ->
+					useCount(condition, name) + useCount(trueBlock, name) + useCount(falseBlock, name);
+			case New(Map<String, Expr> initMap, int lineNumber) -> initMap.values().stream().mapToInt(expr -> useCount(expr, name)).sum();
+			case FieldAccess(Expr receiver, String field, int lineNumber) -> useCount(receiver, name);
+			case FieldAssignment(Expr receiver, String field, Expr expr, int lineNumber) -> useCount(receiver, name) + useCount(expr, name);
+			case MethodCall(Expr receiver, String field, List<Expr> args, int lineNumber) ->
+					useCount(receiver, name) + args.stream().mapToInt(arg -> useCount(arg, name)).sum();
+		};
+	}
+
+	// true if the variable is only used to get or set one of the fields, so it is not assigned
+	// and its value never escapes
+	private static boolean onlyFieldAccesses(Expr expression, String name, Set<String> fields) {
+		return switch (expression) {
+			case Block(List<Expr> instrs, int lineNumber) -> instrs.stream().allMatch(instr -> onlyFieldAccesses(instr, name, fields));
+			case Literal<?>(Object value, int lineNumber) -> true;
+			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) ->
+					onlyFieldAccesses(qualifier, name, fields) && args.stream().allMatch(arg -> onlyFieldAccesses(arg, name, fields));
+			case LocalVarAccess(String varName, int lineNumber) -> !varName.equals(name);
+			case LocalVarAssignment(String varName, Expr expr, boolean declaration, int lineNumber) ->
+					!varName.equals(name) && onlyFieldAccesses(expr, name, fields);
+			// a function can not access the local variables of the enclosing function
+			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> true;
+			case Return(Expr expr, int lineNumber) -> onlyFieldAccesses(expr, name, fields);
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) ->
+					onlyFieldAccesses(condition, name, fields) && onlyFieldAccesses(trueBlock, name, fields) && onlyFieldAccesses(falseBlock, name, fields);
+			case New(Map<String, Expr> initMap, int lineNumber) -> initMap.values().stream().allMatch(expr -> onlyFieldAccesses(expr, name, fields));
+			case FieldAccess(Expr receiver, String field, int lineNumber) ->
+					isVariable(receiver, name) ? fields.contains(field) : onlyFieldAccesses(receiver, name, fields);
+			case FieldAssignment(Expr receiver, String field, Expr expr, int lineNumber) ->
+					(isVariable(receiver, name) ? fields.contains(field) : onlyFieldAccesses(receiver, name, fields))
+							&& onlyFieldAccesses(expr, name, fields);
+			case MethodCall(Expr receiver, String field, List<Expr> args, int lineNumber) ->
+					onlyFieldAccesses(receiver, name, fields) && args.stream().allMatch(arg -> onlyFieldAccesses(arg, name, fields));
+		};
+	}
+
+	private static boolean isVariable(Expr expression, String name) {
+		return expression instanceof LocalVarAccess(String varName, int lineNumber) && varName.equals(name);
+	}
+
+	// the slot of the field of a variable replaced by its fields (see scalarReplacement()), UNDEFINED otherwise
+	private static Object fieldSlot(Expr receiver, String field, JSObject env) {
+		if (!(receiver instanceof LocalVarAccess(String name, int lineNumber))) {
+			return UNDEFINED;
+		}
+		return env.lookup(name + "." + field);
+	}
+
+	// return the operator opcode if the call is a call to a global operator, -1 otherwise
+	private static int operatorOpcode(Expr qualifier, List<Expr> args, JSObject env, JSObject globalEnv) {
+		if (!(qualifier instanceof LocalVarAccess(String name, int lineNumber)) || args.size() != 2) {
+			return -1;
+		}
+		var index = OPERATOR_NAMES.indexOf(name);
+		if (index == -1 || env.lookup(name) != UNDEFINED || globalEnv.lookup(name) == UNDEFINED) {
+			return -1;
+		}
+		return ADD + index;
+	}
+
+	private static void visit(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict, JSObject globalEnv, Config config) {
 		switch (expression) {
 			case Block(List<Expr> instrs, int lineNumber) -> {
 				// for each expression of the block
 				for (var instr : instrs) {
 					// visit the expression
-					visit(instr, env, buffer, dict, globalEnv);
+					visit(instr, env, buffer, dict, globalEnv, config);
 					// if the expression is an instruction (i.e. return void)
 					if (!(instr instanceof Instr)) {
 						// ask to top the top of the stack
@@ -161,8 +432,8 @@ public class InstrRewriter {
 			}
 			case Literal<?>(Object literalValue, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO Literal");
-				// test if the literal value is a positive integers
-				if (literalValue instanceof Integer value && value >= 0) {
+				// test if the literal value is a small int
+				if (literalValue instanceof Integer value && TagValues.fitsSmallInt(value)) {
 					// emit a small int
 					buffer.emit(CONST).emit(encodeSmallInt(value));
 				} else {
@@ -172,13 +443,22 @@ public class InstrRewriter {
 			}
 			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO FunCall");
+				// a call to a global operator with two arguments uses the operator opcode
+				var operator = operatorOpcode(qualifier, args, env, globalEnv);
+				if (operator != -1) {
+					visit(args.get(0), env, buffer, dict, globalEnv, config);
+					visit(args.get(1), env, buffer, dict, globalEnv, config);
+					var name = OPERATOR_NAMES.get(operator - ADD);
+					buffer.emit(operator).emit(encodeDictObject(globalEnv.lookup(name), dict));
+					return;
+				}
 				// visit the qualifier
-				visit(qualifier, env, buffer, dict, globalEnv);
+				visit(qualifier, env, buffer, dict, globalEnv, config);
 				// emit undefined
 				buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
 				// visit all arguments
 				for (var arg : args) {
-					visit(arg, env, buffer, dict, globalEnv);
+					visit(arg, env, buffer, dict, globalEnv, config);
 				}
 				// emit the funcall
 				buffer.emit(FUNCALL).emit(args.size());
@@ -199,8 +479,17 @@ public class InstrRewriter {
 			}
 			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO LocalVarAssignment");
+				// an object literal that does not escape, store each field in its slot
+				if (expr instanceof New(Map<String, Expr> initMap, int newLineNumber)
+						&& !initMap.isEmpty() && env.lookup(name + "." + initMap.keySet().iterator().next()) != UNDEFINED) {
+					initMap.forEach((fieldName, fieldExpr) -> {
+						visit(fieldExpr, env, buffer, dict, globalEnv, config);
+						buffer.emit(STORE).emit((int) env.lookup(name + "." + fieldName));
+					});
+					return;
+				}
 				// visit the expression
-				visit(expr, env, buffer, dict, globalEnv);
+				visit(expr, env, buffer, dict, globalEnv, config);
 				// find if there is a local variable in the env from the name
 				var slotOrUndefined = env.lookup(name);
 				if (slotOrUndefined == UNDEFINED) {
@@ -211,8 +500,8 @@ public class InstrRewriter {
 			}
 			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO Fun");
-				// create a JSObject function
-				var function = createFunction(optName, parameters, body, dict, globalEnv);
+				// create a JSObject function, its body is compiled on the first call
+				var function = createLazyFunction(optName, parameters, body, dict, globalEnv, config);
 				// emit a const on the function
 				buffer.emit(CONST).emit(encodeDictObject(function, dict));
 				// if the name is present emit a code to register the function in the global environment
@@ -224,24 +513,29 @@ public class InstrRewriter {
 			case Return(Expr expr, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO Return");
 				// emit a visit of the expression
-				visit(expr, env, buffer, dict, globalEnv);
+				visit(expr, env, buffer, dict, globalEnv, config);
+				// a call in tail position reuses the frame of the current function,
+				// the RET is still needed if the function called is a native function
+				if ((expr instanceof FunCall || expr instanceof MethodCall) && buffer.get(buffer.label() - 2) == FUNCALL) {
+					buffer.patch(buffer.label() - 2, TAILCALL);
+				}
 				// emit a RET
                 buffer.emit(RET);
 			}
 			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
 				//throw new UnsupportedOperationException("TODO If");
 				// visit the condition
-				visit(condition, env, buffer, dict, globalEnv);
+				visit(condition, env, buffer, dict, globalEnv, config);
 				// emit a JUMP_IF_FALSE and a placeholder
 				var falsePlaceHolder = buffer.emit(JUMP_IF_FALSE).placeholder();
 				// visit the true block
-				visit(trueBlock, env, buffer, dict, globalEnv);
+				visit(trueBlock, env, buffer, dict, globalEnv, config);
 				// emit a goto with another placeholder
 				var endPlaceHolder = buffer.emit(GOTO).placeholder();
 				// patch the first placeholder
 				buffer.patch(falsePlaceHolder, buffer.label());
 				// visit the false block
-				visit(falseBlock, env, buffer, dict, globalEnv);
+				visit(falseBlock, env, buffer, dict, globalEnv, config);
 				// patch the second placeholder
 				buffer.patch(endPlaceHolder, buffer.label());
 			}
@@ -252,43 +546,54 @@ public class InstrRewriter {
 				// loop over all the field initializations
 				initMap.forEach((fieldName, expr) -> {
 				//  register the field name with the right slot
-				  clazz.register(fieldName, expr);
+				  clazz.register(fieldName, clazz.length());
 				//   visit the initialization expression
-				  visit(expr, env, buffer, dict, globalEnv);
+				  visit(expr, env, buffer, dict, globalEnv, config);
 				});
 				// emit a NEW with the class
 				buffer.emit(NEW).emit(encodeDictObject(clazz, dict));
 			}
 			case FieldAccess(Expr receiver, String name, int lineNumber) -> {
-				throw new UnsupportedOperationException("TODO FieldAccess");
+				//throw new UnsupportedOperationException("TODO FieldAccess");
+				// the field of an object that does not escape is a local variable
+				if (fieldSlot(receiver, name, env) instanceof Integer slot) {
+					buffer.emit(LOAD).emit(slot);
+					return;
+				}
 				// visit the receiver
-				//visit(...);
+				visit(receiver, env, buffer, dict, globalEnv, config);
 				// emit a GET with the field name
-				//buffer.emit(...).emit(...);
+				buffer.emit(GET).emit(encodeDictObject(name, dict));
 			}
 			case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) -> {
-				throw new UnsupportedOperationException("TODO FieldAssignment");
+				//throw new UnsupportedOperationException("TODO FieldAssignment");
+				// the field of an object that does not escape is a local variable
+				if (fieldSlot(receiver, name, env) instanceof Integer slot) {
+					visit(expr, env, buffer, dict, globalEnv, config);
+					buffer.emit(STORE).emit(slot);
+					return;
+				}
 				// visit the receiver
-				//visit(...);
+				visit(receiver, env, buffer, dict, globalEnv, config);
 				// visit the expression
-				//visit(...);
+				visit(expr, env, buffer, dict, globalEnv, config);
 				// emit a PUT with the field name
-				//buffer.emit(...).emit(...);
+				buffer.emit(PUT).emit(encodeDictObject(name, dict));
 			}
 			case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) -> {
-				throw new UnsupportedOperationException("TODO MethodCall");
+				//throw new UnsupportedOperationException("TODO MethodCall");
 				// visit the receiver
-				//visit(...);
+				visit(receiver, env, buffer, dict, globalEnv, config);
 				// emit a DUP, get the field name and emit a SWAP of the qualifier and the receiver
-				//buffer.emit(DUP);
-				//buffer.emit(...).emit(...);
-				//buffer.emit(SWAP);
+				buffer.emit(DUP);
+				buffer.emit(GET).emit(encodeDictObject(name, dict));
+				buffer.emit(SWAP);
 				// visit all arguments
-				//for (var arg : args) {
-				//visit(...);
-				//}
+				for (var arg : args) {
+					visit(arg, env, buffer, dict, globalEnv, config);
+				}
 				// emit the funcall
-				//buffer.emit(...).emit(...);
+				buffer.emit(FUNCALL).emit(args.size());
 			}
 		}
 	}
@@ -1,5 +1,10 @@
 package fr.umlv.smalljs.stackinterp;
 
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public interface Instructions {
 	int CONST = 1; // CONST tag_value (smallint or dictionary_index)
 	int LOOKUP = 2; // LOOKUP dictionary_index (String global_name)
@@ -19,39 +24,138 @@ public interface Instructions {
 
 	int PRINT = 20;
 
+	// operators on small ints, the operands are on the stack, if one operand is not a small int,
+	// if the result overflows or if the global operator has been redefined, the global operator is called
+	int ADD = 21; // ADD dictionary_index (JSObject operator)
+	int SUB = 22; // SUB dictionary_index (JSObject operator)
+	int MUL = 23; // MUL dictionary_index (JSObject operator)
+	int DIV = 24; // DIV dictionary_index (JSObject operator)
+	int REM = 25; // REM dictionary_index (JSObject operator)
+	int LT = 26; // LT dictionary_index (JSObject operator)
+	int LE = 27; // LE dictionary_index (JSObject operator)
+	int GT = 28; // GT dictionary_index (JSObject operator)
+	int GE = 29; // GE dictionary_index (JSObject operator)
+	int EQ = 30; // EQ dictionary_index (JSObject operator)
+	int NE = 31; // NE dictionary_index (JSObject operator)
+
+	// superinstructions, see Peephole
+	int LOAD_LOAD = 32; // LOAD_LOAD slot_index slot_index
+	int STORE_LOAD = 33; // STORE_LOAD slot_index slot_index
+	int CONST_RET = 34; // CONST_RET tag_value (smallint or dictionary_index)
+	int LOOKUP_CONST = 35; // LOOKUP_CONST dictionary_index (String global_name) tag_value (smallint or dictionary_index)
+
+	// quickened forms of GET and PUT, GET and PUT rewrite themselves on their first execution
+	// into the CACHED form, then into the POLYMORPHIC form if a second class is seen,
+	// then into the MEGAMORPHIC form if more than FieldCache.POLYMORPHIC_SIZE classes are seen
+	int GET_CACHED = 36; // GET_CACHED dictionary_index (FieldCache cache)
+	int GET_POLYMORPHIC = 37; // GET_POLYMORPHIC dictionary_index (FieldCache cache)
+	int GET_MEGAMORPHIC = 38; // GET_MEGAMORPHIC dictionary_index (String field_name)
+	int PUT_CACHED = 39; // PUT_CACHED dictionary_index (FieldCache cache)
+	int PUT_POLYMORPHIC = 40; // PUT_POLYMORPHIC dictionary_index (FieldCache cache)
+	int PUT_MEGAMORPHIC = 41; // PUT_MEGAMORPHIC dictionary_index (String field_name)
+
+	// quickened forms of LOOKUP and LOOKUP_CONST, rewritten on their first execution
+	int LOOKUP_CACHED = 42; // LOOKUP_CACHED dictionary_index (GlobalCache cache)
+	int LOOKUP_CONST_CACHED = 43; // LOOKUP_CONST_CACHED dictionary_index (GlobalCache cache) tag_value (smallint or dictionary_index)
+
+	// quickened form of FUNCALL, rewritten on its first execution
+	int FUNCALL_CACHED = 44; // FUNCALL_CACHED dictionary_index (CallCache cache)
+
+	// call in tail position, always followed by a RET, the frame of the current function is reused
+	int TAILCALL = 45; // TAILCALL argument_count
+	int TAILCALL_CACHED = 46; // TAILCALL_CACHED dictionary_index (CallCache cache)
+
+	// call inlined by Inliner, the guard falls through to the instructions of the function inlined
+	// if the qualifier below the arguments is that function, otherwise jumps to the call,
+	// the return pops the result, pops the qualifier and the locals of the function inlined then pushes the result
+	int INLINE_GUARD = 47; // INLINE_GUARD tag_value (dictionary_index of the function) argument_count instr_index
+	int INLINE_RET = 48; // INLINE_RET value_count
+
+	// name of the global operators, indexed by opcode - ADD
+	List<String> OPERATOR_NAMES = List.of("+", "-", "*", "/", "%", "<", "<=", ">", ">=", "==", "!=");
+
+	// number of ints used by the instruction, the opcode and its operands
+	static int length(int opcode) {
+		return switch (opcode) {
+			case DUP, POP, SWAP, RET, PRINT -> 1;
+			case LOAD_LOAD, STORE_LOAD, LOOKUP_CONST, LOOKUP_CONST_CACHED -> 3;
+			case INLINE_GUARD -> 4;
+			default -> 2;
+		};
+	}
+
+	// name of the instructions, indexed by opcode, null if the opcode is not used
+	List<String> NAMES = Collections.unmodifiableList(Arrays.asList(null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE",
+			"DUP", "POP", "SWAP", "FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT",
+			"ADD", "SUB", "MUL", "DIV", "REM", "LT", "LE", "GT", "GE", "EQ", "NE",
+			"LOAD_LOAD", "STORE_LOAD", "CONST_RET", "LOOKUP_CONST",
+			"GET_CACHED", "GET_POLYMORPHIC", "GET_MEGAMORPHIC", "PUT_CACHED", "PUT_POLYMORPHIC", "PUT_MEGAMORPHIC",
+			"LOOKUP_CACHED", "LOOKUP_CONST_CACHED", "FUNCALL_CACHED", "TAILCALL", "TAILCALL_CACHED", "INLINE_GUARD", "INLINE_RET"));
+
 	static void dump(int[] instrs, Dictionary dict) {
-		var strings = new String[] { null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE", "DUP", "POP", "SWAP",
-				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT" };
+		dump(instrs, dict, System.err, null);
+	}
+
+	// print the instructions on out, each one prefixed by the number of times it was executed if counts is not null
+	static void dump(int[] instrs, Dictionary dict, PrintStream out, long[] counts) {
 		for (var pc = 0; pc < instrs.length;) {
-			System.err.print(pc + " ");
+			if (counts != null) {
+				out.printf("%12d ", counts[pc]);
+			}
+			out.print(pc + " ");
 			var instr = instrs[pc++];
 			switch (instr) {
 				// no-arg instr
 				case DUP, POP, SWAP, RET, PRINT -> {
-					System.err.println(strings[instr]);
+					out.println(NAMES.get(instr));
 				}
 				// int arg instr
-				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL -> {
+				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL, TAILCALL, INLINE_RET -> {
 					var operand = instrs[pc++];
-					System.err.println(strings[instr] + " " + operand);
+					out.println(NAMES.get(instr) + " " + operand);
 				}
 				// dictionary constant arg instr
-				case LOOKUP, REGISTER, NEW, GET, PUT -> {
+				case LOOKUP, REGISTER, NEW, GET, PUT, ADD, SUB, MUL, DIV, REM, LT, LE, GT, GE, EQ, NE,
+						GET_CACHED, GET_POLYMORPHIC, GET_MEGAMORPHIC, PUT_CACHED, PUT_POLYMORPHIC, PUT_MEGAMORPHIC, LOOKUP_CACHED, FUNCALL_CACHED,
+						TAILCALL_CACHED -> {
 					var operand = instrs[pc++];
-					System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
+					out.println(NAMES.get(instr) + " " + TagValues.decodeDictObject(operand, dict));
+				}
+				// two int args instr
+				case LOAD_LOAD, STORE_LOAD -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					out.println(NAMES.get(instr) + " " + operand1 + " " + operand2);
+				}
+				// dictionary constant and int or dictionary args instr
+				case LOOKUP_CONST, LOOKUP_CONST_CACHED -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					out.println(NAMES.get(instr) + " " + TagValues.decodeDictObject(operand1, dict) + " "
+							+ constantToString(operand2, dict));
+				}
+				// function, argument count and label
+				case INLINE_GUARD -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					var operand3 = instrs[pc++];
+					out.println(NAMES.get(instr) + " " + constantToString(operand1, dict) + " " + operand2 + " " + operand3);
 				}
 				// int or dictionary arg instr
-				case CONST -> {
+				case CONST, CONST_RET -> {
 					var operand = instrs[pc++];
-					if (TagValues.isSmallInt(operand)) {
-						System.err.println(strings[instr] + " " + TagValues.decodeSmallInt(operand));
-					} else {
-						System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
-					}
+					out.println(NAMES.get(instr) + " " + constantToString(operand, dict));
 				}
 				default -> throw new AssertionError("unknown instr " + instr);
 			}
 		}
-		System.err.println();
+		out.println();
+	}
+
+	private static String constantToString(int constant, Dictionary dict) {
+		if (TagValues.isSmallInt(constant)) {
+			return String.valueOf(TagValues.decodeSmallInt(constant));
+		}
+		return String.valueOf(TagValues.decodeDictObject(constant, dict));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,728 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.CODE_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.NO_RESULT;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.QUALIFIER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.frameSize;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.growStack;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveCall;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.smallIntOperation;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.stackOverflow;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+import static java.lang.invoke.MethodType.methodType;
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.IADD;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IF_ICMPEQ;
+import static org.objectweb.asm.Opcodes.IF_ICMPNE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V21;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the baseline JIT of the tagged representation (see Config.jitThreshold),
+// once a code has been invoked jitThreshold times, its instructions are translated to the method
+// of a hidden class (see Compiled), the next calls of the code invoke that method instead of interpreting it.
+//
+// The compiled code uses the same values, heap and frames as StackInterpreter, the locals of the function
+// stay in the stack, but the operand stack is mapped to JVM locals, its height at each instruction
+// is known statically (see InstrRewriter.stackHeights()), so there is no pc and no sp.
+// Before an instruction that may trigger a collection (NEW, FUNCALL, PRINT and an operator not on small ints),
+// the operands are spilled to the stack so the GC sees them, then they are reloaded because the GC may move
+// the objects they reference.
+// A function called by a compiled code is either compiled or interpreted in a nested loop (see StackInterpreter.run()),
+// so each call between a compiled code and the interpreter uses JVM frames, their number is bounded
+// by MAX_NESTED_CALLS, after that the calls are interpreted in the loop of the last nested interpreter,
+// so the JVM stack can not overflow before Config.maxCallDepth is reached.
+// A tail call of the function itself is compiled as a jump to the start of the method, another tail call
+// replaces the frame and returns TAIL_CALL, the call is done by the loop of callCode(), so the tail calls
+// run in constant space like in the interpreter.
+final class Jit {
+	private Jit() {
+		throw new AssertionError();
+	}
+
+	// maximum number of calls running in a nested JVM frame (see Machine.nestedCalls)
+	static final int MAX_NESTED_CALLS = 256;
+
+	// returned by a compiled code, encoded as a dictionary object (see Machine.tailCall), instead of a result
+	// when its frame has been replaced by the frame of a tail call (see tailCall())
+	static final Object TAIL_CALL = new Object() {
+		@Override
+		public String toString() {
+			return "tail call";
+		}
+	};
+
+	// the entry point of a compiled code, bp is the base of its frame, already initialized by the caller,
+	// functionIndex is the dictionary index of the function called, return the result of the call or Machine.tailCall
+	interface Compiled {
+		int invoke(Machine machine, int bp, int functionIndex);
+	}
+
+	// the execution tier of a code, it counts the invocations then stores the compiled code,
+	// replaced is true once the code of the function has been replaced by a code with inlined calls (see Inliner)
+	static final class Tier {
+		private int invocationCount;
+		private Compiled compiled;
+		private boolean notCompilable;
+		private boolean replaced;
+
+		Compiled compiled() {
+			return compiled;
+		}
+
+		boolean replaced() {
+			return replaced;
+		}
+
+		void replace() {
+			replaced = true;
+		}
+
+		@Override
+		public String toString() {
+			return compiled != null ? "compiled" : "interpreted " + invocationCount;
+		}
+	}
+
+	// count an invocation of the code, compile the code when it becomes hot,
+	// return the compiled code or null if the code is interpreted
+	static Compiled tierUp(Code code, Machine machine) {
+		var tier = code.tier();
+		if (tier.compiled != null) {
+			return tier.compiled;
+		}
+		var threshold = machine.config.jitThreshold();
+		if (threshold == 0 || tier.notCompilable || ++tier.invocationCount < threshold) {
+			return null;
+		}
+		try {
+			tier.compiled = compile(code, machine.dict);
+		} catch (IllegalArgumentException e) {
+			// stay in the interpreter
+			tier.notCompilable = true;
+		}
+		return tier.compiled;
+	}
+
+	// call the function of the cache with a frame at baseArg - 1, the caller is at bp,
+	// the compiled code is null if the code of the function is interpreted,
+	// the tail calls returned by the compiled codes (see tailCall()) are done in the same frame
+	static int callCode(Machine machine, CallCache cache, Compiled compiled, int baseArg, int bp, int functionIndex, int codeIndex) {
+		var code = cache.code();
+		var dict = machine.dict;
+		var callDepth = machine.callDepth;
+		if (callDepth + 1 > machine.config.maxCallDepth()) {
+			throw stackOverflow(cache.function(), machine.config.maxCallDepth(), machine.stack, bp,
+					(Code) decodeDictObject(codeIndex, dict), functionIndex, dict);
+		}
+		var newBp = baseArg - 1;
+		var stack = machine.stack;
+		if (newBp + frameSize(code) > stack.size()) {
+			stack = machine.stack = growStack(stack, newBp + frameSize(code));
+		}
+
+		// the pc 0 stops the nested interpreter loop
+		var activation = newBp + code.slotCount();
+		stack.set(activation + BP_OFFSET, encodeSmallInt(bp));
+		stack.set(activation + PC_OFFSET, encodeSmallInt(0));
+		stack.set(activation + FUN_OFFSET, functionIndex);
+		stack.set(activation + CODE_OFFSET, codeIndex);
+		for (var i = newBp + code.parameterCount(); i < newBp + code.slotCount(); i++) {
+			stack.set(i, machine.undefined);
+		}
+
+		var qualifier = stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+		machine.callDepth = callDepth + 1;
+		machine.nestedCalls++;
+		try {
+			for (;;) {
+				var result = (compiled != null)
+						? compiled.invoke(machine, newBp, qualifier)
+						: StackInterpreter.run(machine, cache.code(), qualifier, cache.codeIndex(), newBp);
+				if (result != machine.tailCall) {
+					return result;
+				}
+				cache = machine.tailCallCache;
+				qualifier = machine.tailCallFunction;
+				compiled = tierUp(cache.code(), machine);
+			}
+		} finally {
+			// also restored if a failure is thrown, the frames of a nested interpreter are not popped in that case
+			machine.callDepth = callDepth;
+			machine.nestedCalls--;
+		}
+	}
+
+	private static void checkArgumentCount(CallCache cache) {
+		var code = cache.code();
+		if (code.parameterCount() != cache.argumentCount() + 1/* this */) {
+			throw new Failure("wrong number of arguments for " + cache.function().getName() + " expected "
+					+ (code.parameterCount() - 1) + " but was " + cache.argumentCount());
+		}
+	}
+
+	// the helpers called by the compiled code
+
+	static int lookup(GlobalCache cache, Machine machine) {
+		return cache.value(machine.globalEnv, machine.dict);
+	}
+
+	static void register(String name, int value, Machine machine) {
+		machine.globalEnv.register(name, decodeAnyValue(value, machine.dict, machine.heap.memory()));
+	}
+
+	// operation on two small ints, NO_RESULT if the operands are not small ints or if the operator has been redefined
+	static int operation(int left, int right, int opcode, int operator, Machine machine) {
+		if (!isSmallInt(left) || !isSmallInt(right) || machine.operatorBinding(opcode) != operator) {
+			return NO_RESULT;
+		}
+		return smallIntOperation(opcode, left, right);
+	}
+
+	static int callOperator(int left, int right, int opcode, Machine machine, int sp) {
+		return StackInterpreter.callOperator(opcode, left, right, machine.globalEnv, machine.heap, machine.stack, sp);
+	}
+
+	static int newObject(int vClass, int length, Machine machine, int sp) {
+		var stack = machine.stack;
+		var ref = machine.heap.allocate(vClass, length, stack, sp);
+		var memory = machine.heap.memory();
+		var baseArg = sp - length;
+		for (var i = 0; i < length; i++) {
+			memory.set(ref + OBJECT_HEADER_SIZE + i, stack.get(baseArg + i));
+		}
+		return encodeReference(ref);
+	}
+
+	static int get(int value, ClosureInterpreter.FieldNode field, Machine machine) {
+		var dict = machine.dict;
+		if (!isReference(value)) {
+			throw new Failure("can not get field " + field.name(dict) + " of " + decodeAnyValue(value, dict, machine.heap.memory()));
+		}
+		var ref = decodeReference(value);
+		var memory = machine.heap.memory();
+		var fieldIndex = field.fieldIndex(memory.get(ref), dict);
+		return (fieldIndex == -1) ? machine.undefined : memory.get(ref + OBJECT_HEADER_SIZE + fieldIndex);
+	}
+
+	static void put(int refValue, int value, ClosureInterpreter.FieldNode field, Machine machine) {
+		var dict = machine.dict;
+		if (!isReference(refValue)) {
+			throw new Failure("can not set field " + field.name(dict) + " of " + decodeAnyValue(refValue, dict, machine.heap.memory()));
+		}
+		var ref = decodeReference(refValue);
+		var memory = machine.heap.memory();
+		var fieldIndex = field.fieldIndex(memory.get(ref), dict);
+		if (fieldIndex == -1) {
+			throw new Failure("invalid field " + field.name(dict));
+		}
+		var address = ref + OBJECT_HEADER_SIZE + fieldIndex;
+		var oldValue = memory.get(address);
+		memory.set(address, value);
+		machine.heap.writeBarrier(address, oldValue, value);
+	}
+
+	static int print(int value, Machine machine, int sp) {
+		var print = (JSObject) machine.globalEnv.lookup("print");
+		try (var scope = machine.heap.openScope(machine.stack, sp)) {
+			print.invoke(UNDEFINED, new Object[] { scope.decode(value) });
+		}
+		return machine.undefined;
+	}
+
+	static int funcall(CallCache cache, Machine machine, int sp, int bp, int functionIndex, int codeIndex) {
+		var baseArg = sp - cache.argumentCount();
+		var qualifier = machine.stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+		if (!cache.hit(qualifier)) {
+			cache = resolveCall(cache, qualifier, machine.dict, machine.heap.memory());
+		}
+		if (cache.code() == null) {  // native call
+			return StackInterpreter.callNative(cache, machine.stack, baseArg, machine.heap);
+		}
+		checkArgumentCount(cache);
+		var compiled = tierUp(cache.code(), machine);
+		if (machine.nestedCalls >= MAX_NESTED_CALLS) {
+			// the function and all the functions it calls are interpreted in the same nested loop
+			compiled = null;
+		}
+		return callCode(machine, cache, compiled, baseArg, bp, functionIndex, codeIndex);
+	}
+
+	// a tail call that is not a self call replaces the frame at bp of the code by the frame of the function called
+	// and returns Machine.tailCall, the function is called by the loop of callCode(),
+	// a native function is called directly and its result is returned
+	static int tailCall(CallCache cache, Code code, Machine machine, int sp, int bp) {
+		var argumentCount = cache.argumentCount();
+		var baseArg = sp - argumentCount;
+		var stack = machine.stack;
+		var qualifier = stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+		if (!cache.hit(qualifier)) {
+			cache = resolveCall(cache, qualifier, machine.dict, machine.heap.memory());
+		}
+		if (cache.code() == null) {  // native call
+			return StackInterpreter.callNative(cache, stack, baseArg, machine.heap);
+		}
+		checkArgumentCount(cache);
+		var newCode = cache.code();
+		stack = StackInterpreter.tailCall(machine, stack, bp, code, newCode, baseArg, argumentCount);
+		for (var i = bp + newCode.parameterCount(); i < bp + newCode.slotCount(); i++) {
+			stack.set(i, machine.undefined);
+		}
+		machine.tailCallCache = cache;
+		machine.tailCallFunction = qualifier;
+		return machine.tailCall;
+	}
+
+	// true if the tail call calls the code itself with the right number of arguments
+	static boolean isSelfCall(int qualifier, CallCache cache, Code code, Machine machine) {
+		if (!cache.hit(qualifier)) {
+			cache = resolveCall(cache, qualifier, machine.dict, machine.heap.memory());
+		}
+		return cache.code() == code && code.parameterCount() == cache.argumentCount() + 1;
+	}
+
+	// the translation to JVM bytecode
+
+	private static final String JIT = Type.getInternalName(Jit.class);
+	private static final String MACHINE = Type.getInternalName(Machine.class);
+	private static final String MEMORY = Type.getInternalName(Memory.class);
+	private static final String MACHINE_DESC = Type.getDescriptor(Machine.class);
+	private static final String MEMORY_DESC = Type.getDescriptor(Memory.class);
+
+	// the JVM locals of the method invoke
+	private static final int THIS_SLOT = 0;
+	private static final int MACHINE_SLOT = 1;
+	private static final int BP_SLOT = 2;
+	private static final int FUNCTION_SLOT = 3;
+	private static final int STACK_SLOT = 4;
+	private static final int RESULT_SLOT = 5;
+	private static final int OPERAND_SLOT = 6;
+
+	// translate the instructions of the code, they may be already quickened,
+	// throw an IllegalArgumentException if the code can not be compiled
+	static Compiled compile(Code code, Dictionary dict) {
+		var instrs = code.instrs();
+		var heights = InstrRewriter.stackHeights(instrs, dict);
+		var className = Jit.class.getPackageName().replace('.', '/') + "/CompiledCode";
+		var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		writer.visit(V21, ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object",
+				new String[] { Type.getInternalName(Compiled.class) });
+		writer.visitField(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;", null, null);
+
+		var init = writer.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		init.visitVarInsn(ALOAD, 0);
+		init.visitVarInsn(ALOAD, 1);
+		init.visitFieldInsn(PUTFIELD, className, "constants", "[Ljava/lang/Object;");
+		init.visitInsn(RETURN);
+		init.visitMaxs(-1, -1);
+		init.visitEnd();
+
+		var mv = writer.visitMethod(ACC_PUBLIC, "invoke", "(" + MACHINE_DESC + "II)I", null, null);
+		mv.visitCode();
+		var translator = new Translator(mv, className, code, dict, heights);
+		translator.translate();
+		mv.visitMaxs(-1, -1);
+		mv.visitEnd();
+		writer.visitEnd();
+
+		try {
+			var lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+			var constructor = lookup.findConstructor(lookup.lookupClass(), methodType(void.class, Object[].class));
+			return (Compiled) constructor.invoke(translator.constants.toArray());
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static final class Translator {
+		private final MethodVisitor mv;
+		private final String className;
+		private final Code code;
+		private final Dictionary dict;
+		private final int[] heights;
+		private final Label[] labels;
+		private final Label start = new Label();
+		private final ArrayList<Object> constants = new ArrayList<>();
+		private final int codeConstant;
+
+		private Translator(MethodVisitor mv, String className, Code code, Dictionary dict, int[] heights) {
+			this.mv = mv;
+			this.className = className;
+			this.code = code;
+			this.dict = dict;
+			this.heights = heights;
+			this.labels = new Label[heights.length];
+			this.codeConstant = constant(code);
+		}
+
+		private int constant(Object value) {
+			constants.add(value);
+			return constants.size() - 1;
+		}
+
+		private Label label(int pc) {
+			var label = labels[pc];
+			if (label == null) {
+				label = labels[pc] = new Label();
+			}
+			return label;
+		}
+
+		private void pushInt(int value) {
+			mv.visitLdcInsn(value);
+		}
+
+		private void loadConstant(int constant, Class<?> type) {
+			mv.visitVarInsn(ALOAD, THIS_SLOT);
+			mv.visitFieldInsn(GETFIELD, className, "constants", "[Ljava/lang/Object;");
+			pushInt(constant);
+			mv.visitInsn(AALOAD);
+			mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+		}
+
+		private void loadOperand(int index) {
+			mv.visitVarInsn(ILOAD, OPERAND_SLOT + index);
+		}
+
+		private void storeOperand(int index) {
+			mv.visitVarInsn(ISTORE, OPERAND_SLOT + index);
+		}
+
+		// push bp + offset
+		private void slot(int offset) {
+			mv.visitVarInsn(ILOAD, BP_SLOT);
+			pushInt(offset);
+			mv.visitInsn(IADD);
+		}
+
+		// the offset from bp of the operand at index in the stack
+		private int operandOffset(int index) {
+			return code.slotCount() + ACTIVATION_SIZE + index;
+		}
+
+		private void loadLocal(int offset) {
+			mv.visitVarInsn(ALOAD, STACK_SLOT);
+			slot(offset);
+			mv.visitMethodInsn(INVOKEINTERFACE, MEMORY, "get", "(I)I", true);
+		}
+
+		// store the value on top of the JVM stack in a local of the function
+		private void storeLocal(int offset) {
+			mv.visitVarInsn(ISTORE, RESULT_SLOT);
+			mv.visitVarInsn(ALOAD, STACK_SLOT);
+			slot(offset);
+			mv.visitVarInsn(ILOAD, RESULT_SLOT);
+			mv.visitMethodInsn(INVOKEINTERFACE, MEMORY, "set", "(II)V", true);
+		}
+
+		// a slot after the activation zone is a value of the operand stack, a local of a function inlined (see Inliner)
+		private void loadSlot(int slot) {
+			if (slot >= operandOffset(0)) {
+				loadOperand(slot - operandOffset(0));
+			} else {
+				loadLocal(slot);
+			}
+		}
+
+		private void storeSlot(int slot) {
+			if (slot >= operandOffset(0)) {
+				storeOperand(slot - operandOffset(0));
+			} else {
+				storeLocal(slot);
+			}
+		}
+
+		// write the operands between 0 and count in the stack, so the GC sees them
+		private void spill(int count) {
+			for (var i = 0; i < count; i++) {
+				mv.visitVarInsn(ALOAD, STACK_SLOT);
+				slot(operandOffset(i));
+				loadOperand(i);
+				mv.visitMethodInsn(INVOKEINTERFACE, MEMORY, "set", "(II)V", true);
+			}
+		}
+
+		// read the operands between 0 and count from the stack, the stack may have been replaced
+		private void reload(int count) {
+			mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+			mv.visitFieldInsn(GETFIELD, MACHINE, "stack", MEMORY_DESC);
+			mv.visitVarInsn(ASTORE, STACK_SLOT);
+			for (var i = 0; i < count; i++) {
+				loadLocal(operandOffset(i));
+				storeOperand(i);
+			}
+		}
+
+		private void callHelper(String name, String descriptor) {
+			mv.visitMethodInsn(INVOKESTATIC, JIT, name, descriptor, false);
+		}
+
+		private void translate() {
+			mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+			mv.visitFieldInsn(GETFIELD, MACHINE, "stack", MEMORY_DESC);
+			mv.visitVarInsn(ASTORE, STACK_SLOT);
+			mv.visitLabel(start);
+
+			var instrs = code.instrs();
+			for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+				if (heights[pc] == -1) {  // unreachable
+					continue;
+				}
+				mv.visitLabel(label(pc));
+				translate(instrs, pc, heights[pc]);
+			}
+		}
+
+		private void translate(int[] instrs, int pc, int height) {
+			var opcode = instrs[pc];
+			switch (opcode) {
+				case Instructions.CONST -> {
+					pushInt(instrs[pc + 1]);
+					storeOperand(height);
+				}
+				case Instructions.LOOKUP, Instructions.LOOKUP_CACHED -> lookup(instrs[pc], instrs[pc + 1], height);
+				case Instructions.LOOKUP_CONST, Instructions.LOOKUP_CONST_CACHED -> {
+					lookup(instrs[pc], instrs[pc + 1], height);
+					pushInt(instrs[pc + 2]);
+					storeOperand(height + 1);
+				}
+				case Instructions.REGISTER -> {
+					mv.visitLdcInsn(decodeDictObject(instrs[pc + 1], dict));
+					loadOperand(height - 1);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					callHelper("register", "(Ljava/lang/String;I" + MACHINE_DESC + ")V");
+				}
+				case Instructions.LOAD -> {
+					loadSlot(instrs[pc + 1]);
+					storeOperand(height);
+				}
+				case Instructions.STORE -> {
+					loadOperand(height - 1);
+					storeSlot(instrs[pc + 1]);
+				}
+				case Instructions.LOAD_LOAD -> {
+					loadSlot(instrs[pc + 1]);
+					storeOperand(height);
+					loadSlot(instrs[pc + 2]);
+					storeOperand(height + 1);
+				}
+				case Instructions.STORE_LOAD -> {
+					loadOperand(height - 1);
+					storeSlot(instrs[pc + 1]);
+					loadSlot(instrs[pc + 2]);
+					storeOperand(height - 1);
+				}
+				case Instructions.DUP -> {
+					loadOperand(height - 1);
+					storeOperand(height);
+				}
+				case Instructions.POP -> {
+					// the operand is dead
+				}
+				case Instructions.SWAP -> {
+					loadOperand(height - 1);
+					loadOperand(height - 2);
+					storeOperand(height - 1);
+					storeOperand(height - 2);
+				}
+				case Instructions.GOTO -> mv.visitJumpInsn(GOTO, label(instrs[pc + 1]));
+				case Instructions.INLINE_GUARD -> {
+					loadOperand(height - instrs[pc + 2] + StackInterpreter.QUALIFIER_BASE_ARG_OFFSET);
+					pushInt(instrs[pc + 1]);
+					mv.visitJumpInsn(IF_ICMPNE, label(instrs[pc + 3]));
+				}
+				case Instructions.INLINE_RET -> {
+					loadOperand(height - 1);
+					storeOperand(height - 1 - instrs[pc + 1]);
+				}
+				case Instructions.JUMP_IF_FALSE -> {
+					loadOperand(height - 1);
+					pushInt(TagValues.FALSE);
+					mv.visitJumpInsn(IF_ICMPEQ, label(instrs[pc + 1]));
+				}
+				case Instructions.RET -> {
+					loadOperand(height - 1);
+					mv.visitInsn(IRETURN);
+				}
+				case Instructions.CONST_RET -> {
+					pushInt(instrs[pc + 1]);
+					mv.visitInsn(IRETURN);
+				}
+				case Instructions.FUNCALL, Instructions.FUNCALL_CACHED, Instructions.TAILCALL, Instructions.TAILCALL_CACHED -> {
+					var cache = (opcode == Instructions.FUNCALL || opcode == Instructions.TAILCALL)
+							? new CallCache(instrs[pc + 1])
+							: (CallCache) decodeDictObject(instrs[pc + 1], dict);
+					var cacheConstant = constant(cache);
+					if (opcode == Instructions.TAILCALL || opcode == Instructions.TAILCALL_CACHED) {
+						selfTailCall(cache.argumentCount(), cacheConstant, height);
+						tailCall(cacheConstant, height);
+					} else {
+						spill(height);
+						loadConstant(cacheConstant, CallCache.class);
+						mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+						slot(operandOffset(height));
+						mv.visitVarInsn(ILOAD, BP_SLOT);
+						mv.visitVarInsn(ILOAD, FUNCTION_SLOT);
+						pushInt(TagValues.encodeDictObject(code, dict));
+						callHelper("funcall", "(" + Type.getDescriptor(CallCache.class) + MACHINE_DESC + "IIII)I");
+						var resultIndex = height - cache.argumentCount() - StackInterpreter.FUNCALL_PREFIX;
+						storeOperand(resultIndex);
+						reload(resultIndex);
+					}
+				}
+				case Instructions.NEW -> {
+					var vClass = instrs[pc + 1];
+					var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+					spill(height);
+					pushInt(vClass);
+					pushInt(length);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					slot(operandOffset(height));
+					callHelper("newObject", "(II" + MACHINE_DESC + "I)I");
+					storeOperand(height - length);
+					reload(height - length);
+				}
+				case Instructions.GET, Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.GET_MEGAMORPHIC -> {
+					loadOperand(height - 1);
+					loadConstant(constant(ClosureInterpreter.fieldNode(instrs, pc, dict)), ClosureInterpreter.FieldNode.class);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					callHelper("get", "(I" + Type.getDescriptor(ClosureInterpreter.FieldNode.class) + MACHINE_DESC + ")I");
+					storeOperand(height - 1);
+				}
+				case Instructions.PUT, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC, Instructions.PUT_MEGAMORPHIC -> {
+					loadOperand(height - 2);
+					loadOperand(height - 1);
+					loadConstant(constant(ClosureInterpreter.fieldNode(instrs, pc, dict)), ClosureInterpreter.FieldNode.class);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					callHelper("put", "(II" + Type.getDescriptor(ClosureInterpreter.FieldNode.class) + MACHINE_DESC + ")V");
+				}
+				case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+						Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+					var done = new Label();
+					loadOperand(height - 2);
+					loadOperand(height - 1);
+					pushInt(opcode);
+					pushInt(instrs[pc + 1]);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					callHelper("operation", "(IIII" + MACHINE_DESC + ")I");
+					mv.visitVarInsn(ISTORE, RESULT_SLOT);
+					mv.visitVarInsn(ILOAD, RESULT_SLOT);
+					mv.visitJumpInsn(IFNE, done);  // NO_RESULT is 0
+					// generic case, the operator may allocate
+					spill(height - 2);
+					loadOperand(height - 2);
+					loadOperand(height - 1);
+					pushInt(opcode);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					slot(operandOffset(height - 2));
+					callHelper("callOperator", "(III" + MACHINE_DESC + "I)I");
+					mv.visitVarInsn(ISTORE, RESULT_SLOT);
+					reload(height - 2);
+					mv.visitLabel(done);
+					mv.visitVarInsn(ILOAD, RESULT_SLOT);
+					storeOperand(height - 2);
+				}
+				case Instructions.PRINT -> {
+					spill(height - 1);
+					loadOperand(height - 1);
+					mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+					slot(operandOffset(height - 1));
+					callHelper("print", "(I" + MACHINE_DESC + "I)I");
+					storeOperand(height - 1);
+					reload(height - 1);
+				}
+				default -> throw new IllegalArgumentException("unknown instruction " + opcode + " at " + pc);
+			}
+		}
+
+		private void lookup(int opcode, int operand, int height) {
+			var cache = (opcode == Instructions.LOOKUP || opcode == Instructions.LOOKUP_CONST)
+					? new GlobalCache((String) decodeDictObject(operand, dict))
+					: (GlobalCache) decodeDictObject(operand, dict);
+			loadConstant(constant(cache), GlobalCache.class);
+			mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+			callHelper("lookup", "(" + Type.getDescriptor(GlobalCache.class) + MACHINE_DESC + ")I");
+			storeOperand(height);
+		}
+
+		// a tail call of the code itself moves the receiver and the arguments over the locals and jumps to the start
+		private void selfTailCall(int argumentCount, int cacheConstant, int height) {
+			var notSelf = new Label();
+			var receiverIndex = height - argumentCount - 1;
+			loadOperand(receiverIndex - 1);  // the qualifier
+			loadConstant(cacheConstant, CallCache.class);
+			loadConstant(codeConstant, Code.class);
+			mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+			callHelper("isSelfCall", "(I" + Type.getDescriptor(CallCache.class) + Type.getDescriptor(Code.class) + MACHINE_DESC + ")Z");
+			mv.visitJumpInsn(IFEQ, notSelf);
+			for (var i = 0; i <= argumentCount; i++) {
+				loadOperand(receiverIndex + i);
+				storeLocal(i);
+			}
+			for (var i = code.parameterCount(); i < code.slotCount(); i++) {
+				mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+				mv.visitFieldInsn(GETFIELD, MACHINE, "undefined", "I");
+				storeLocal(i);
+			}
+			mv.visitJumpInsn(GOTO, start);
+			mv.visitLabel(notSelf);
+		}
+
+		// another tail call replaces the frame and returns, the call is done by the caller (see Jit.tailCall())
+		private void tailCall(int cacheConstant, int height) {
+			spill(height);
+			loadConstant(cacheConstant, CallCache.class);
+			loadConstant(codeConstant, Code.class);
+			mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+			slot(operandOffset(height));
+			mv.visitVarInsn(ILOAD, BP_SLOT);
+			callHelper("tailCall", "(" + Type.getDescriptor(CallCache.class) + Type.getDescriptor(Code.class) + MACHINE_DESC + "II)I");
+			mv.visitInsn(IRETURN);
+		}
+	}
+}
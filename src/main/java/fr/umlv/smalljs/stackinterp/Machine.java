@@ -0,0 +1,56 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.operatorBindings;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+
+import java.lang.invoke.SwitchPoint;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// the state of an execution of the tagged representation, shared by the interpreter loops
+// (see StackInterpreter.run()) and the compiled code (see Jit),
+// the stack may be replaced by a bigger one during a call, so it should be read again after a call
+final class Machine {
+	final Dictionary dict;
+	final JSObject globalEnv;
+	final Config config;
+	final Heap heap;
+	final int undefined;
+	final int tailCall;  // the encoded Jit.TAIL_CALL
+	final Profiler profiler;  // null if the profiling is not enabled (see StackInterpreter.PROFILE)
+
+	Memory stack;
+	int callDepth;
+	// number of calls running in a nested JVM frame (see Jit.callCode())
+	int nestedCalls;
+	// the call of a tail call done by a compiled code, run by Jit.callCode() (see Jit.tailCall())
+	CallCache tailCallCache;
+	int tailCallFunction;
+
+	// the operator opcodes are valid only if the global operators have not been redefined
+	private SwitchPoint globalSwitchPoint;
+	private int[] operators;
+
+	Machine(Dictionary dict, JSObject globalEnv, Config config, Heap heap, Memory stack) {
+		this.dict = dict;
+		this.globalEnv = globalEnv;
+		this.config = config;
+		this.heap = heap;
+		this.stack = stack;
+		this.undefined = encodeDictObject(UNDEFINED, dict);
+		this.tailCall = encodeDictObject(Jit.TAIL_CALL, dict);
+		this.profiler = StackInterpreter.PROFILE ? new Profiler(dict) : null;
+		this.globalSwitchPoint = globalEnv.getSwitchPoint();
+		this.operators = operatorBindings(globalEnv, dict);
+	}
+
+	// the dictionary index of the function bound to the operator, recomputed if the global environment has changed
+	int operatorBinding(int opcode) {
+		if (globalEnv.getSwitchPoint() != globalSwitchPoint) {
+			globalSwitchPoint = globalEnv.getSwitchPoint();
+			operators = operatorBindings(globalEnv, dict);
+		}
+		return operators[opcode - Instructions.ADD];
+	}
+}
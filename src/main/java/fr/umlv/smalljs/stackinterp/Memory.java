@@ -0,0 +1,183 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.Failure;
+
+// the memory used to store the stack and the heap, an array of int slots,
+// either a Java array or some off-heap memory that is neither scanned nor moved by the JVM GC
+sealed interface Memory {
+	int size();
+
+	int get(int index);
+
+	void set(int index, int value);
+
+	boolean compareAndSet(int index, int expectedValue, int newValue);
+
+	// copy length slots from srcIndex to dstIndex, the two ranges may overlap
+	void copy(int srcIndex, int dstIndex, int length);
+
+	// return a memory of newSize slots with the same content, this memory should not be used anymore
+	Memory resize(int newSize);
+
+	static Memory allocate(Config.Storage storage, int size) {
+		return switch (storage) {
+			case ARRAY -> new ArrayMemory(new int[size]);
+			case DIRECT, MAPPED -> new OffHeapMemory(storage, size);
+		};
+	}
+
+	final class ArrayMemory implements Memory {
+		private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(int[].class);
+
+		private final int[] array;
+
+		private ArrayMemory(int[] array) {
+			this.array = array;
+		}
+
+		@Override
+		public int size() {
+			return array.length;
+		}
+
+		@Override
+		public int get(int index) {
+			return array[index];
+		}
+
+		@Override
+		public void set(int index, int value) {
+			array[index] = value;
+		}
+
+		@Override
+		public boolean compareAndSet(int index, int expectedValue, int newValue) {
+			return SLOT.compareAndSet(array, index, expectedValue, newValue);
+		}
+
+		@Override
+		public void copy(int srcIndex, int dstIndex, int length) {
+			System.arraycopy(array, srcIndex, array, dstIndex, length);
+		}
+
+		@Override
+		public Memory resize(int newSize) {
+			return new ArrayMemory(Arrays.copyOf(array, newSize));
+		}
+	}
+
+	final class OffHeapMemory implements Memory {
+		private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+		// a byte buffer is limited to 2G, so the memory is split in chunks of 2^CHUNK_SHIFT slots
+		private static final int CHUNK_SHIFT = 26;
+		private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+		private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+		private final Config.Storage storage;
+		private final ByteBuffer[] chunks;
+		private final int size;
+
+		private OffHeapMemory(Config.Storage storage, int size) {
+			this(storage, new ByteBuffer[chunkCount(size)], size);
+			for (var i = 0; i < chunks.length; i++) {
+				chunks[i] = allocateChunk(storage, chunkSize(i, size));
+			}
+		}
+
+		private OffHeapMemory(Config.Storage storage, ByteBuffer[] chunks, int size) {
+			this.storage = storage;
+			this.chunks = chunks;
+			this.size = size;
+		}
+
+		private static int chunkCount(int size) {
+			return (int) (((long) size + CHUNK_MASK) >> CHUNK_SHIFT);
+		}
+
+		private static int chunkSize(int chunk, int size) {
+			return Math.min(CHUNK_SIZE, size - (chunk << CHUNK_SHIFT));
+		}
+
+		private static ByteBuffer allocateChunk(Config.Storage storage, int slots) {
+			var bytes = slots << 2;
+			if (storage == Config.Storage.DIRECT) {
+				return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+			}
+			// the mapping stays valid after the channel is closed and the file deleted
+			try (var channel = FileChannel.open(Files.createTempFile("smalljs", ".memory"), READ, WRITE, DELETE_ON_CLOSE)) {
+				return channel.map(READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+			} catch (IOException e) {
+				throw new Failure("can not map the memory " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public int get(int index) {
+			return chunks[index >>> CHUNK_SHIFT].getInt((index & CHUNK_MASK) << 2);
+		}
+
+		@Override
+		public void set(int index, int value) {
+			chunks[index >>> CHUNK_SHIFT].putInt((index & CHUNK_MASK) << 2, value);
+		}
+
+		@Override
+		public boolean compareAndSet(int index, int expectedValue, int newValue) {
+			return SLOT.compareAndSet(chunks[index >>> CHUNK_SHIFT], (index & CHUNK_MASK) << 2, expectedValue, newValue);
+		}
+
+		@Override
+		public void copy(int srcIndex, int dstIndex, int length) {
+			if (dstIndex <= srcIndex) {
+				for (var i = 0; i < length; i++) {
+					set(dstIndex + i, get(srcIndex + i));
+				}
+			} else {
+				for (var i = length; --i >= 0;) {
+					set(dstIndex + i, get(srcIndex + i));
+				}
+			}
+		}
+
+		@Override
+		public Memory resize(int newSize) {
+			if (newSize < size) {
+				throw new IllegalArgumentException("can not shrink the memory " + newSize);
+			}
+			// the full chunks are shared, only the last chunk is copied
+			var newChunks = Arrays.copyOf(chunks, chunkCount(newSize));
+			for (var i = 0; i < newChunks.length; i++) {
+				var chunkSize = chunkSize(i, newSize);
+				var chunk = newChunks[i];
+				if (chunk == null) {
+					newChunks[i] = allocateChunk(storage, chunkSize);
+				} else if (chunk.capacity() != chunkSize << 2) {
+					var newChunk = allocateChunk(storage, chunkSize);
+					newChunk.put(0, chunk, 0, chunk.capacity());
+					newChunks[i] = newChunk;
+				}
+			}
+			return new OffHeapMemory(storage, newChunks, newSize);
+		}
+	}
+}
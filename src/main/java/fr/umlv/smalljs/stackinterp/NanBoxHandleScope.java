@@ -0,0 +1,158 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeDouble;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeInt;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isDouble;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isInt;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isReference;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// a scope of handles of the NaN boxing representation, the same as HandleScope for the tagged representation,
+// the objects of the heap are seen by the native functions as views (HeapView) that reference the objects
+// through handles, so a native function can change an object or return it, the views can not be used
+// once the scope is closed.
+// The ints and the doubles are stored in the values, so encoding a value never allocates.
+//
+//   try (var scope = heap.openScope()) {
+//     var value = scope.decode(value);   // a HeapView if value is a reference
+//     ...
+//     return scope.encode(result);
+//   }
+final class NanBoxHandleScope implements AutoCloseable {
+	private final NanBoxHeap heap;
+	private final int handleMark;
+	private boolean closed;
+
+	NanBoxHandleScope(NanBoxHeap heap, int handleMark) {
+		this.heap = heap;
+		this.handleMark = handleMark;
+	}
+
+	void checkOpen() {
+		if (closed) {
+			throw new Failure("heap object used outside of its handle scope");
+		}
+	}
+
+	// decode a value, a reference is decoded as a view on the object
+	Object decode(long value) {
+		if (isDouble(value)) {
+			return decodeDouble(value);
+		}
+		if (isInt(value)) {
+			return decodeInt(value);
+		}
+		if (isReference(value)) {
+			checkOpen();
+			return new View(heap.newHandle(value));
+		}
+		return decodeDictObject(value, heap.dict());
+	}
+
+	// encode a value, a view is encoded as a reference on its object
+	long encode(Object value) {
+		if (value instanceof View view) {
+			return encodeReference(view.ref());
+		}
+		return encodeAnyValue(value, heap.dict());
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		heap.closeScope(handleMark);
+	}
+
+	// a view on an object of the heap through a handle of this scope
+	final class View implements HeapView {
+		private final int handle;
+
+		private View(int handle) {
+			this.handle = handle;
+		}
+
+		// the current address of the object
+		private int ref() {
+			checkOpen();
+			return decodeReference(heap.handle(handle));
+		}
+
+		private JSObject clazz(int ref) {
+			return (JSObject) decodeDictObject(heap.memory()[ref], heap.dict());
+		}
+
+		private int address(int ref, String name) {
+			var slotOrUndefined = clazz(ref).lookup(name);
+			if (slotOrUndefined == UNDEFINED) {
+				return -1;
+			}
+			return ref + OBJECT_HEADER_SIZE + (int) slotOrUndefined;
+		}
+
+		@Override
+		public int length() {
+			return clazz(ref()).length();
+		}
+
+		@Override
+		public Object get(String name) {
+			var address = address(ref(), name);
+			if (address == -1) {
+				return UNDEFINED;
+			}
+			return decode(heap.memory()[address]);
+		}
+
+		@Override
+		public void set(String name, Object value) {
+			var newValue = encode(value);
+			var address = address(ref(), name);
+			if (address == -1) {
+				throw new Failure("invalid field " + name);
+			}
+			heap.memory()[address] = newValue;
+		}
+
+		@Override
+		public String toString() {
+			var builder = new StringBuilder();
+			toString(ref(), builder, new HashSet<>());
+			return builder.toString();
+		}
+
+		private void toString(int ref, StringBuilder builder, Set<Integer> seen) {
+			if (!seen.add(ref)) {
+				builder.append("... // object");
+				return;
+			}
+			var memory = heap.memory();
+			builder.append("{ // object\n");
+			clazz(ref).forEach((key, slot) -> {
+				builder.append("  ").append(key).append(": ");
+				var value = memory[ref + OBJECT_HEADER_SIZE + (int) slot];
+				if (isReference(value)) {
+					toString(decodeReference(value), builder, seen);
+				} else {
+					builder.append(NanBoxValues.decodeAnyValue(value, heap.dict(), memory));
+				}
+				builder.append("\n");
+			});
+			builder.append("  proto: null\n");
+			builder.append("}");
+		}
+	}
+}
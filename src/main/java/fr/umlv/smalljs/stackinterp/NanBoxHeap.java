@@ -0,0 +1,156 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isReference;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the heap of the NaN boxing representation, the slots are longs (see NanBoxValues)
+//
+// It's a semi-space copying GC, the objects are allocated by bumping a pointer in the current space,
+// when the space is full, the live objects are copied (Cheney's algorithm) into a new space,
+// the roots are the values of the stack between 0 and sp and the handles of the open handle scopes
+// (see NanBoxHandleScope).
+// If after a collection the live objects use more than GROWTH_THRESHOLD of the space, the space grows.
+// The references have 48 bits but a space is a Java array so it's limited to 2^31 slots.
+final class NanBoxHeap {
+	private static final double GROWTH_THRESHOLD = 0.5;
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final Dictionary dict;
+	private final int maxSize;
+	private final GCStats stats;
+	private long[] space;
+	private int hp;  // heap pointer
+
+	// handles of the open handle scopes
+	private long[] handles = new long[16];
+	private int handleCount;
+
+	NanBoxHeap(Dictionary dict, Config config) {
+		this.dict = dict;
+		this.maxSize = (int) Math.min(MAX_ARRAY_SIZE, (long) config.nurserySize() + config.maxHeapSize());
+		this.stats = new GCStats(config.marking());
+		this.space = new long[config.nurserySize() + config.heapSize()];
+	}
+
+	long[] memory() {
+		return space;
+	}
+
+	GCStats stats() {
+		return stats;
+	}
+
+	Dictionary dict() {
+		return dict;
+	}
+
+	// open a new scope, the handles created until the scope is closed are roots of the GC
+	NanBoxHandleScope openScope() {
+		return new NanBoxHandleScope(this, handleCount);
+	}
+
+	void closeScope(int handleMark) {
+		handleCount = handleMark;
+	}
+
+	// create a handle on the reference value
+	int newHandle(long value) {
+		if (handleCount == handles.length) {
+			handles = Arrays.copyOf(handles, handleCount << 1);
+		}
+		handles[handleCount] = value;
+		return handleCount++;
+	}
+
+	// the reference value of the handle, up to date even if the object has been moved
+	long handle(int handle) {
+		return handles[handle];
+	}
+
+	// allocate an object of class vClass with fieldCount fields and initialize its header,
+	// the roots are the values of the stack between 0 and sp,
+	// references on the stack are rewritten if a collection occurs
+	int allocate(long vClass, int fieldCount, long[] stack, int sp) {
+		var size = OBJECT_HEADER_SIZE + fieldCount;
+		if (hp + size > space.length) {
+			collect(stack, sp, size);
+		}
+		var ref = hp;
+		hp += size;
+		space[ref] = vClass;
+		return ref;
+	}
+
+	private int sizeOf(long[] space, int ref) {
+		var clazz = (JSObject) decodeDictObject(space[ref], dict);
+		return OBJECT_HEADER_SIZE + clazz.length();
+	}
+
+	private void collect(long[] stack, int sp, int required) {
+		var startTime = System.nanoTime();
+		var from = space;
+		// in the worst case, all objects are alive
+		var to = new long[from.length];
+		var scan = 0;
+		hp = 0;
+
+		// 1. copy the objects referenced by the stack and the handles
+		for (var i = 0; i < sp; i++) {
+			stack[i] = copy(stack[i], from, to);
+		}
+		for (var i = 0; i < handleCount; i++) {
+			handles[i] = copy(handles[i], from, to);
+		}
+
+		// 2. copy the objects referenced by the copied objects
+		while (scan < hp) {
+			var end = scan + sizeOf(to, scan);
+			for (var i = scan + OBJECT_HEADER_SIZE; i < end; i++) {
+				to[i] = copy(to[i], from, to);
+			}
+			scan = end;
+		}
+
+		// 3. grow the space if the live objects use too much of it
+		var needed = (long) hp + required;
+		if (needed > to.length * GROWTH_THRESHOLD) {
+			var newSize = (long) to.length;
+			while (needed > newSize * GROWTH_THRESHOLD && newSize < maxSize) {
+				newSize = newSize << 1;
+			}
+			newSize = Math.min(newSize, maxSize);
+			if (needed > newSize) {
+				throw new Failure("out of memory, heap size " + to.length + " max heap size " + maxSize);
+			}
+			to = Arrays.copyOf(to, (int) newSize);
+		}
+		space = to;
+		stats.major(System.nanoTime() - startTime);
+	}
+
+	private long copy(long value, long[] from, long[] to) {
+		if (!isReference(value)) {
+			return value;
+		}
+		var ref = decodeReference(value);
+		var header = from[ref];
+		if (isReference(header)) {  // already copied
+			return header;
+		}
+		var size = sizeOf(from, ref);
+		var newRef = hp;
+		System.arraycopy(from, ref, to, newRef, size);
+		hp += size;
+		var forward = encodeReference(newRef);
+		from[ref] = forward;
+		return forward;
+	}
+}
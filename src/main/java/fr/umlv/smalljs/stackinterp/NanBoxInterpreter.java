@@ -0,0 +1,471 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.BOX;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.FALSE;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.TRUE;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeDouble;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeInt;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeDictIndex;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeDouble;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeInt;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.fromTagValue;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isDictObject;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isDouble;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isInt;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.isReference;
+import static fr.umlv.smalljs.stackinterp.NanBoxValues.toTagValue;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.CALL_CHAIN_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.CODE_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUNCALL_PREFIX;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.INITIAL_STACK_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.QUALIFIER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.RECEIVER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.fieldIndex;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.fieldName;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.frameSize;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.operatorBindings;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveCall;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the interpreter of the NaN boxing representation (see Config.Representation),
+// it executes the same instructions as StackInterpreter, with the same frame layout,
+// but the slots of the stack and of the heap are longs (see NanBoxValues),
+// so the doubles and the ints on 32 bits are stored without boxing.
+//
+// The caches of the quickened instructions (GlobalCache, FieldCache and CallCache) are shared with
+// StackInterpreter, they use tagged values that are converted with NanBoxValues.fromTagValue()
+// and NanBoxValues.toTagValue().
+// The native functions receive views on the objects of the heap (see NanBoxHandleScope),
+// like with StackInterpreter.
+final class NanBoxInterpreter {
+	private NanBoxInterpreter() {
+		throw new AssertionError();
+	}
+
+	// a boxed value with an unused tag, so not the result of an operation
+	private static final long NO_RESULT = BOX | 3L << 48;
+
+	private static long[] growStack(long[] stack, int required) {
+		var newSize = stack.length;
+		while (newSize < required) {
+			newSize = newSize << 1;
+		}
+		return Arrays.copyOf(stack, newSize);
+	}
+
+	private static Failure stackOverflow(JSObject newFunction, int callDepth, long[] stack, int bp, Code code, long functionValue, Dictionary dict) {
+		var builder = new StringBuilder()
+				.append("stack overflow, call depth ").append(callDepth)
+				.append(" exceeded when calling ").append(newFunction.getName());
+		for (var i = 0;; i++) {
+			if (i == CALL_CHAIN_SIZE) {
+				builder.append("\n  ...");
+				break;
+			}
+			builder.append("\n  at ").append(((JSObject) decodeDictObject(functionValue, dict)).getName());
+			var activation = bp + code.slotCount();
+			if (decodeInt(stack[activation + PC_OFFSET]) == 0) {  // main function
+				break;
+			}
+			functionValue = stack[activation + FUN_OFFSET];
+			code = (Code) decodeDictObject(stack[activation + CODE_OFFSET], dict);
+			bp = decodeInt(stack[activation + BP_OFFSET]);
+		}
+		return new Failure(builder.toString());
+	}
+
+	private static boolean isNumber(long value) {
+		return isInt(value) || isDouble(value);
+	}
+
+	private static double toDouble(long value) {
+		return isInt(value) ? decodeInt(value) : decodeDouble(value);
+	}
+
+	private static long bool(boolean value) {
+		return value ? TRUE : FALSE;
+	}
+
+	// operation on two numbers, an int and a double are added as doubles,
+	// return NO_RESULT if the operands are not numbers or if the result of an operation on ints is not an int
+	static long numberOperation(int opcode, long left, long right) {
+		if (isInt(left) && isInt(right)) {
+			return intOperation(opcode, decodeInt(left), decodeInt(right));
+		}
+		if (!isNumber(left) || !isNumber(right)) {
+			return NO_RESULT;
+		}
+		return doubleOperation(opcode, toDouble(left), toDouble(right));
+	}
+
+	private static long intOperation(int opcode, int left, int right) {
+		return switch (opcode) {
+			case Instructions.ADD -> {
+				var result = (long) left + right;
+				yield result != (int) result ? NO_RESULT : encodeInt((int) result);
+			}
+			case Instructions.SUB -> {
+				var result = (long) left - right;
+				yield result != (int) result ? NO_RESULT : encodeInt((int) result);
+			}
+			case Instructions.MUL -> {
+				var result = (long) left * right;
+				yield result != (int) result ? NO_RESULT : encodeInt((int) result);
+			}
+			case Instructions.DIV -> (right == 0 || (left == Integer.MIN_VALUE && right == -1)) ? NO_RESULT : encodeInt(left / right);
+			case Instructions.REM -> right == 0 ? NO_RESULT : encodeInt(left % right);
+			case Instructions.LT -> bool(left < right);
+			case Instructions.LE -> bool(left <= right);
+			case Instructions.GT -> bool(left > right);
+			case Instructions.GE -> bool(left >= right);
+			case Instructions.EQ -> bool(left == right);
+			case Instructions.NE -> bool(left != right);
+			default -> throw new AssertionError("unknown operator " + opcode);
+		};
+	}
+
+	private static long doubleOperation(int opcode, double left, double right) {
+		return switch (opcode) {
+			case Instructions.ADD -> encodeDouble(left + right);
+			case Instructions.SUB -> encodeDouble(left - right);
+			case Instructions.MUL -> encodeDouble(left * right);
+			case Instructions.DIV -> encodeDouble(left / right);
+			case Instructions.REM -> encodeDouble(left % right);
+			case Instructions.LT -> bool(left < right);
+			case Instructions.LE -> bool(left <= right);
+			case Instructions.GT -> bool(left > right);
+			case Instructions.GE -> bool(left >= right);
+			case Instructions.EQ -> bool(left == right);
+			case Instructions.NE -> bool(left != right);
+			default -> throw new AssertionError("unknown operator " + opcode);
+		};
+	}
+
+	// call the function currently bound to the operator in the global environment
+	private static long callOperator(int opcode, long left, long right, JSObject globalEnv, NanBoxHeap heap) {
+		var name = Instructions.OPERATOR_NAMES.get(opcode - Instructions.ADD);
+		if (!(globalEnv.lookup(name) instanceof JSObject operator)) {
+			throw new Failure("operator " + name + " is not a function");
+		}
+		try (var scope = heap.openScope()) {
+			var args = new Object[] { scope.decode(left), scope.decode(right) };
+			return scope.encode(operator.invoke(UNDEFINED, args));
+		}
+	}
+
+	// call the native function of the cache with the arguments on the stack,
+	// the objects of the heap are seen as views that are valid until the end of the call
+	private static long callNative(CallCache cache, long[] stack, int baseArg, NanBoxHeap heap) {
+		try (var scope = heap.openScope()) {
+			var receiver = scope.decode(stack[baseArg + RECEIVER_BASE_ARG_OFFSET]);
+			var args = new Object[cache.argumentCount()];
+			for (var i = 0; i < args.length; i++) {
+				args[i] = scope.decode(stack[baseArg + i]);
+			}
+			return scope.encode(cache.function().invoke(receiver, args));
+		}
+	}
+
+	// invoke the function print of the global environment, an object of the heap is seen as a view
+	private static void print(long value, JSObject globalEnv, NanBoxHeap heap) {
+		var print = (JSObject) globalEnv.lookup("print");
+		try (var scope = heap.openScope()) {
+			print.invoke(UNDEFINED, new Object[] { scope.decode(value) });
+		}
+	}
+
+	static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Config config) {
+		var code = InstrRewriter.code(function);
+		var instrs = code.instrs();
+		// the current function and its code, saved in the activation zone of a call
+		var functionValue = encodeDictObject(function, dict);
+		var codeValue = encodeDictObject(code, dict);
+		var stack = new long[Math.max(INITIAL_STACK_SIZE, frameSize(code))];
+		var heap = new NanBoxHeap(dict, config);
+		var callDepth = 0;
+
+		var undefined = encodeDictObject(UNDEFINED, dict);
+
+		// the operator opcodes are valid only if the global operators have not been redefined
+		var globalSwitchPoint = globalEnv.getSwitchPoint();
+		var operators = operatorBindings(globalEnv, dict);
+
+		var pc = 0; // instruction pointer
+		var bp = 0; // base pointer
+		var sp = bp + code.slotCount() + ACTIVATION_SIZE; // stack pointer
+
+		// initialize all local variables
+		Arrays.fill(stack, 0, code.slotCount(), undefined);
+		// initialize the activation zone
+		stack[code.slotCount() + BP_OFFSET] = encodeInt(0);
+		stack[code.slotCount() + PC_OFFSET] = encodeInt(0);
+		stack[code.slotCount() + FUN_OFFSET] = functionValue;
+		stack[code.slotCount() + CODE_OFFSET] = codeValue;
+
+		for (;;) {
+			switch (instrs[pc++]) {
+				case Instructions.CONST -> {
+					// convert the constant and push it
+					stack[sp++] = fromTagValue(instrs[pc++], dict);
+				}
+				case Instructions.LOOKUP -> {
+					// quicken the instruction with a cache of the global
+					var cache = new GlobalCache((String) TagValues.decodeDictObject(instrs[pc], dict));
+					instrs[pc++] = TagValues.encodeDictObject(cache, dict);
+					instrs[pc - 2] = Instructions.LOOKUP_CACHED;
+					stack[sp++] = fromTagValue(cache.value(globalEnv, dict), dict);
+				}
+				case Instructions.LOOKUP_CACHED -> {
+					var cache = (GlobalCache) TagValues.decodeDictObject(instrs[pc++], dict);
+					stack[sp++] = fromTagValue(cache.value(globalEnv, dict), dict);
+				}
+				case Instructions.REGISTER -> {
+					// decode the name and the value on top of the stack, then register it
+					var name = (String) TagValues.decodeDictObject(instrs[pc++], dict);
+					var value = decodeAnyValue(stack[--sp], dict, heap.memory());
+					globalEnv.register(name, value);
+				}
+				case Instructions.LOAD -> {
+					stack[sp++] = stack[bp + instrs[pc++]];
+				}
+				case Instructions.STORE -> {
+					stack[bp + instrs[pc++]] = stack[--sp];
+				}
+				case Instructions.DUP -> {
+					stack[sp] = stack[sp - 1];
+					sp++;
+				}
+				case Instructions.POP -> {
+					--sp;
+				}
+				case Instructions.SWAP -> {
+					var value = stack[sp - 1];
+					stack[sp - 1] = stack[sp - 2];
+					stack[sp - 2] = value;
+				}
+				case Instructions.FUNCALL, Instructions.FUNCALL_CACHED, Instructions.TAILCALL, Instructions.TAILCALL_CACHED -> {
+					// a tail call reuses the frame of the current function
+					var opcode = instrs[pc - 1];
+					var tailCall = opcode == Instructions.TAILCALL || opcode == Instructions.TAILCALL_CACHED;
+
+					// find the call site cache, the instruction is quickened on its first execution
+					CallCache cache;
+					if (opcode == Instructions.FUNCALL || opcode == Instructions.TAILCALL) {
+						cache = new CallCache(instrs[pc]);
+						instrs[pc] = TagValues.encodeDictObject(cache, dict);
+						instrs[pc - 1] = tailCall ? Instructions.TAILCALL_CACHED : Instructions.FUNCALL_CACHED;
+					} else {
+						cache = (CallCache) TagValues.decodeDictObject(instrs[pc], dict);
+					}
+					pc++;
+					var argumentCount = cache.argumentCount();
+					var baseArg = sp - argumentCount;
+
+					// only the functions of the dictionary can be called
+					var qualifier = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
+					if (!isDictObject(qualifier) || !(decodeDictObject(qualifier, dict) instanceof JSObject newFunction)) {
+						throw new Failure("can not call " + decodeAnyValue(qualifier, dict, heap.memory()));
+					}
+					var tagValue = toTagValue(qualifier);
+					if (!cache.hit(tagValue)) {
+						cache = resolveCall(cache, tagValue, newFunction, dict);
+					}
+
+					if (cache.code() == null) {  // native call
+						var result = callNative(cache, stack, baseArg, heap);
+						sp = baseArg - FUNCALL_PREFIX;
+						stack[sp++] = result;
+						continue;
+					}
+
+					var currentActivation = bp + code.slotCount();
+					code = cache.code();
+					if (code.parameterCount() != argumentCount + 1/* this */) {
+						throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
+								+ (code.parameterCount() - 1) + " but was " + argumentCount);
+					}
+
+					if (tailCall) {
+						// keep the activation zone of the current function, move the receiver and the arguments
+						// over the locals of the current function, then write back the activation zone
+						var saved = Arrays.copyOfRange(stack, currentActivation, currentActivation + ACTIVATION_SIZE);
+						if (bp + frameSize(code) > stack.length) {
+							stack = growStack(stack, bp + frameSize(code));
+						}
+						System.arraycopy(stack, baseArg - 1, stack, bp, argumentCount + 1);
+						var activation = bp + code.slotCount();
+						System.arraycopy(saved, 0, stack, activation, ACTIVATION_SIZE);
+
+						pc = 0;
+						sp = activation + ACTIVATION_SIZE;
+						Arrays.fill(stack, bp + code.parameterCount(), bp + code.slotCount(), undefined);
+
+						functionValue = qualifier;
+						codeValue = encodeDictIndex(cache.codeIndex() >>> 2);
+						instrs = code.instrs();
+						continue;
+					}
+
+					// check the call depth and that the stack has enough room for the new frame
+					if (++callDepth > config.maxCallDepth()) {
+						throw stackOverflow(newFunction, config.maxCallDepth(), stack, bp, (Code) decodeDictObject(codeValue, dict), functionValue, dict);
+					}
+					if (baseArg - 1 + frameSize(code) > stack.length) {
+						stack = growStack(stack, baseArg - 1 + frameSize(code));
+					}
+
+					// save bp/pc/function/code in the activation zone
+					var activation = baseArg - 1 + code.slotCount();
+					stack[activation + BP_OFFSET] = encodeInt(bp);
+					stack[activation + PC_OFFSET] = encodeInt(pc);
+					stack[activation + FUN_OFFSET] = functionValue;
+					stack[activation + CODE_OFFSET] = codeValue;
+
+					// initialize pc, bp and sp, and the locals that are not parameters
+					pc = 0;
+					bp = baseArg - 1;
+					sp = activation + ACTIVATION_SIZE;
+					Arrays.fill(stack, bp + code.parameterCount(), bp + code.slotCount(), undefined);
+
+					functionValue = qualifier;
+					codeValue = encodeDictIndex(cache.codeIndex() >>> 2);
+					instrs = code.instrs();
+				}
+				case Instructions.RET, Instructions.CONST_RET -> {
+					// get the return value from the top of the stack or from the instructions
+					var result = (instrs[pc - 1] == Instructions.CONST_RET) ? fromTagValue(instrs[pc++], dict) : stack[--sp];
+
+					var activation = bp + code.slotCount();
+					pc = decodeInt(stack[activation + PC_OFFSET]);
+					if (pc == 0) {
+						// end of the interpreter
+						if (config.verboseGC()) {
+							System.err.println(heap.stats());
+						}
+						return decodeAnyValue(result, dict, heap.memory());
+					}
+					callDepth--;
+					// restore sp, function, code and bp
+					sp = bp - 1;
+					functionValue = stack[activation + FUN_OFFSET];
+					codeValue = stack[activation + CODE_OFFSET];
+					bp = decodeInt(stack[activation + BP_OFFSET]);
+					code = (Code) decodeDictObject(codeValue, dict);
+					instrs = code.instrs();
+
+					stack[sp++] = result;
+				}
+				case Instructions.GOTO -> {
+					pc = instrs[pc];
+				}
+				case Instructions.JUMP_IF_FALSE -> {
+					var label = instrs[pc++];
+					if (stack[--sp] == FALSE) {
+						pc = label;
+					}
+				}
+				case Instructions.NEW -> {
+					var vClass = instrs[pc++];
+					var clazz = (JSObject) TagValues.decodeDictObject(vClass, dict);
+
+					// allocate the object, if out of memory the GC rewrites the references on the stack
+					var ref = heap.allocate(encodeDictIndex(vClass >>> 2), clazz.length(), stack, sp);
+					var baseArg = sp - clazz.length();
+					System.arraycopy(stack, baseArg, heap.memory(), ref + OBJECT_HEADER_SIZE, clazz.length());
+					sp = baseArg;
+					stack[sp++] = encodeReference(ref);
+				}
+				case Instructions.GET, Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.GET_MEGAMORPHIC -> {
+					var instrPc = pc - 1;
+					pc++;
+					var value = stack[--sp];
+					if (!isReference(value)) {
+						throw new Failure("can not get field " + fieldName(instrs, instrPc, dict) + " of " + decodeAnyValue(value, dict, heap.memory()));
+					}
+					var ref = decodeReference(value);
+					var memory = heap.memory();
+					var fieldIndex = fieldIndex(instrs, instrPc, toTagValue(memory[ref]), dict);
+					stack[sp++] = (fieldIndex == -1) ? undefined : memory[ref + OBJECT_HEADER_SIZE + fieldIndex];
+				}
+				case Instructions.PUT, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC, Instructions.PUT_MEGAMORPHIC -> {
+					var instrPc = pc - 1;
+					pc++;
+					var value = stack[--sp];
+					var refValue = stack[--sp];
+					if (!isReference(refValue)) {
+						throw new Failure("can not set field " + fieldName(instrs, instrPc, dict) + " of " + decodeAnyValue(refValue, dict, heap.memory()));
+					}
+					var ref = decodeReference(refValue);
+					var memory = heap.memory();
+					var fieldIndex = fieldIndex(instrs, instrPc, toTagValue(memory[ref]), dict);
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + fieldName(instrs, instrPc, dict));
+					}
+					// no write barrier, the semi-space GC copies all live objects
+					memory[ref + OBJECT_HEADER_SIZE + fieldIndex] = value;
+				}
+				case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+						Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+					var opcode = instrs[pc - 1];
+					var operator = instrs[pc++];
+					var right = stack[--sp];
+					var left = stack[--sp];
+					// check that the operator has not been redefined
+					if (globalEnv.getSwitchPoint() != globalSwitchPoint) {
+						globalSwitchPoint = globalEnv.getSwitchPoint();
+						operators = operatorBindings(globalEnv, dict);
+					}
+					var result = NO_RESULT;
+					if (operators[opcode - Instructions.ADD] == operator) {
+						result = numberOperation(opcode, left, right);
+					}
+					if (result == NO_RESULT) {
+						// generic case
+						result = callOperator(opcode, left, right, globalEnv, heap);
+					}
+					stack[sp++] = result;
+				}
+				case Instructions.LOAD_LOAD -> {
+					stack[sp++] = stack[bp + instrs[pc++]];
+					stack[sp++] = stack[bp + instrs[pc++]];
+				}
+				case Instructions.STORE_LOAD -> {
+					stack[bp + instrs[pc++]] = stack[--sp];
+					stack[sp++] = stack[bp + instrs[pc++]];
+				}
+				case Instructions.LOOKUP_CONST -> {
+					var cache = new GlobalCache((String) TagValues.decodeDictObject(instrs[pc], dict));
+					instrs[pc++] = TagValues.encodeDictObject(cache, dict);
+					instrs[pc - 2] = Instructions.LOOKUP_CONST_CACHED;
+					stack[sp++] = fromTagValue(cache.value(globalEnv, dict), dict);
+					stack[sp++] = fromTagValue(instrs[pc++], dict);
+				}
+				case Instructions.LOOKUP_CONST_CACHED -> {
+					var cache = (GlobalCache) TagValues.decodeDictObject(instrs[pc++], dict);
+					stack[sp++] = fromTagValue(cache.value(globalEnv, dict), dict);
+					stack[sp++] = fromTagValue(instrs[pc++], dict);
+				}
+				case Instructions.PRINT -> {
+					print(stack[--sp], globalEnv, heap);
+					stack[sp++] = undefined;
+				}
+				default -> throw new AssertionError("unknown instruction " + instrs[pc - 1]);
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.util.HashMap;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+public interface NanBoxValues {
+	// in the NaN boxing representation (see Config.Representation), every value is stored as a 64 bits long,
+	// either a double stored as is, all the NaNs are canonicalized to Double.NaN,
+	// or a negative quiet NaN that boxes a value, the bits 48 and 49 are the tag and the 48 low bits are the payload
+	//   11111111 111111 00 [48 bits] -> int (on 32 bits) or boolean (TRUE/FALSE)
+	//   11111111 111111 01 [48 bits] -> dictionary index
+	//   11111111 111111 10 [48 bits] -> reference on heap
+	//
+	// The instructions are the same as in the tagged representation, the tagged values of the instructions
+	// are converted with fromTagValue().
+
+	long BOX = 0xFFFC_0000_0000_0000L;
+	long TAG_MASK = 0xFFFF_0000_0000_0000L;
+	long PAYLOAD_MASK = (1L << 48) - 1;
+
+	long INT_TAG = BOX;
+	long DICT_TAG = BOX | 1L << 48;
+	long REF_TAG = BOX | 2L << 48;
+
+	static boolean isDouble(long value) {
+		return (value & BOX) != BOX;
+	}
+
+	static long encodeDouble(double value) {
+		return Double.doubleToLongBits(value);  // canonicalize the NaNs
+	}
+	static double decodeDouble(long value) {
+		return Double.longBitsToDouble(value);
+	}
+
+	static boolean isInt(long value) {
+		return (value & TAG_MASK) == INT_TAG;
+	}
+
+	static long encodeInt(int value) {
+		return INT_TAG | (value & 0xFFFF_FFFFL);
+	}
+	static int decodeInt(long value) {
+		return (int) value;
+	}
+
+	static boolean isDictObject(long value) {
+		return (value & TAG_MASK) == DICT_TAG;
+	}
+
+	static long encodeDictObject(Object object, Dictionary dict) {
+		return encodeDictIndex(dict.index(object));
+	}
+	static long encodeDictIndex(int index) {
+		return DICT_TAG | index;
+	}
+	static int decodeDictIndex(long value) {
+		return (int) (value & PAYLOAD_MASK);
+	}
+	static Object decodeDictObject(long value, Dictionary dict) {
+		return dict.getConst(decodeDictIndex(value));
+	}
+
+	static boolean isReference(long value) {
+		return (value & TAG_MASK) == REF_TAG;
+	}
+
+	static long encodeReference(int reference) {
+		return REF_TAG | reference;
+	}
+	static int decodeReference(long value) {
+		return (int) (value & PAYLOAD_MASK);
+	}
+
+	// convert a tagged value of the instructions, the numbers of the dictionary are stored inline
+	static long fromTagValue(int tagValue, Dictionary dict) {
+		if (isSmallInt(tagValue)) {
+			return encodeInt(decodeSmallInt(tagValue));
+		}
+		// the instructions never contain a reference
+		var constant = TagValues.decodeDictObject(tagValue, dict);
+		return switch (constant) {
+			case Integer intValue -> encodeInt(intValue);
+			case Double doubleValue -> encodeDouble(doubleValue);
+			default -> encodeDictIndex(tagValue >>> 2);
+		};
+	}
+
+	// the tagged value of a dictionary object, used by the caches shared with the tagged representation
+	static int toTagValue(long dictValue) {
+		return decodeDictIndex(dictValue) << 2 | 0b10;
+	}
+
+	// decode a value, an object of the heap is copied
+	static Object decodeAnyValue(long value, Dictionary dict, long[] heap) {
+		return decodeAnyValue(value, dict, heap, new HashMap<>());
+	}
+	private static Object decodeAnyValue(long value, Dictionary dict, long[] heap, HashMap<Integer, JSObject> copies) {
+		if (isDouble(value)) {
+			return decodeDouble(value);
+		}
+		if (isInt(value)) {
+			return decodeInt(value);
+		}
+		if (isReference(value)) {
+			var ref = decodeReference(value);
+			var copy = copies.get(ref);
+			if (copy != null) {  // cycle
+				return copy;
+			}
+			var clazz = (JSObject) decodeDictObject(heap[ref], dict);
+			var object = JSObject.newObject(null);
+			copies.put(ref, object);
+			clazz.forEach((key, offset) ->
+					object.register(key, decodeAnyValue(heap[ref + OBJECT_HEADER_SIZE + (int) offset], dict, heap, copies)));
+			return object;
+		}
+		return decodeDictObject(value, dict);
+	}
+
+	static long encodeAnyValue(Object object, Dictionary dict) {
+		return switch (object) {
+			case Integer intValue -> encodeInt(intValue);
+			case Double doubleValue -> encodeDouble(doubleValue);
+			default -> encodeDictObject(object, dict);
+		};
+	}
+
+	long TRUE = encodeInt(1);
+	long FALSE = encodeInt(0);
+
+	// the header of an object is only its class, a dictionary index,
+	// during a collection, the class of a copied object is replaced by the reference of the copy
+	int OBJECT_HEADER_SIZE = 1;
+}
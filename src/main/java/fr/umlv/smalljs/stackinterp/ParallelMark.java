@@ -0,0 +1,116 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Heap.GC_EMPTY;
+import static fr.umlv.smalljs.stackinterp.Heap.GC_MARK;
+import static fr.umlv.smalljs.stackinterp.Heap.GC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// mark the old space of a heap using a fork/join pool,
+// the roots are split in ranges and a task that finds too many objects gives half of them to a new task
+final class ParallelMark {
+	private static final int ROOT_RANGE = 1024;
+	private static final int SPLIT_SIZE = 256;
+
+	private final Memory memory;
+	private final int nurserySize;
+	private final Dictionary dict;
+
+	ParallelMark(Memory memory, int nurserySize, Dictionary dict) {
+		this.memory = memory;
+		this.nurserySize = nurserySize;
+		this.dict = dict;
+	}
+
+	RecursiveAction roots(Memory values, int start, int end) {
+		return new RootTask(values, start, end);
+	}
+
+	@SuppressWarnings("serial")  // a task is never serialized
+	private final class RootTask extends RecursiveAction {
+		private final Memory values;
+		private final int start;
+		private final int end;
+
+		private RootTask(Memory values, int start, int end) {
+			this.values = values;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > ROOT_RANGE) {
+				var middle = (start + end) >>> 1;
+				invokeAll(new RootTask(values, start, middle), new RootTask(values, middle, end));
+				return;
+			}
+			var task = new TraceTask(new int[16], 0);
+			for (var i = start; i < end; i++) {
+				task.markValue(values.get(i));
+			}
+			task.compute();
+		}
+	}
+
+	@SuppressWarnings("serial")  // a task is never serialized
+	private final class TraceTask extends RecursiveAction {
+		private int[] work;
+		private int top;
+
+		private TraceTask(int[] work, int top) {
+			this.work = work;
+			this.top = top;
+		}
+
+		private void markValue(int value) {
+			if (!isReference(value)) {
+				return;
+			}
+			var ref = decodeReference(value);
+			if (ref < nurserySize) {  // the nursery is a root
+				return;
+			}
+			// only one task can win the race to mark an object
+			if (!memory.compareAndSet(ref + GC_OFFSET, GC_EMPTY, GC_MARK)) {
+				return;
+			}
+			if (top == work.length) {
+				work = Arrays.copyOf(work, top << 1);
+			}
+			work[top++] = ref;
+		}
+
+		@Override
+		protected void compute() {
+			var forked = new ArrayList<TraceTask>();
+			while (top != 0) {
+				if (top > SPLIT_SIZE) {
+					// give half of the work to another task
+					var half = top >>> 1;
+					var task = new TraceTask(Arrays.copyOfRange(work, top - half, top), half);
+					task.fork();
+					forked.add(task);
+					top -= half;
+				}
+				var ref = work[--top];
+				var clazz = (JSObject) decodeDictObject(memory.get(ref), dict);
+				var end = ref + OBJECT_HEADER_SIZE + clazz.length();
+				for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+					markValue(memory.get(i));
+				}
+			}
+			for (var task : forked) {
+				task.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP_CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.POP;
+import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER;
+import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE_LOAD;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.stackinterp.InstrRewriter.InstrBuffer;
+
+// peephole optimizer, rewrite the common sequences of instructions generated by the InstrRewriter
+//   LOAD a; LOAD b                  -> LOAD_LOAD a b
+//   STORE a; LOAD b                 -> STORE_LOAD a b
+//   CONST c; RET                    -> CONST_RET c
+//   LOOKUP name; CONST c            -> LOOKUP_CONST name c    (the prefix of a call to a global function)
+//   DUP; REGISTER name; POP         -> REGISTER name          (a function declaration)
+// A sequence is not rewritten if a jump targets one of its instructions except the first one.
+final class Peephole {
+	private Peephole() {
+		throw new AssertionError();
+	}
+
+	static int[] optimize(int[] instrs) {
+		// 1. find the jump targets
+		var targets = new boolean[instrs.length + 1];
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (instrs[pc] == GOTO || instrs[pc] == JUMP_IF_FALSE) {
+				targets[instrs[pc + 1]] = true;
+			}
+		}
+
+		// 2. rewrite the sequences, newPcs maps the index of an instruction to its new index
+		var buffer = new InstrBuffer();
+		var newPcs = new int[instrs.length + 1];
+		var jumps = new int[8];
+		var jumpCount = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = buffer.label();
+			var instr = instrs[pc];
+			var next = pc + Instructions.length(instr);
+			var nextInstr = (next < instrs.length && !targets[next]) ? instrs[next] : -1;
+			switch (instr) {
+				case LOAD, STORE -> {
+					if (nextInstr == LOAD) {
+						buffer.emit(instr == LOAD ? LOAD_LOAD : STORE_LOAD).emit(instrs[pc + 1]).emit(instrs[next + 1]);
+						pc = next + 2;
+						continue;
+					}
+				}
+				case CONST -> {
+					if (nextInstr == RET) {
+						buffer.emit(CONST_RET).emit(instrs[pc + 1]);
+						pc = next + 1;
+						continue;
+					}
+				}
+				case LOOKUP -> {
+					if (nextInstr == CONST) {
+						buffer.emit(LOOKUP_CONST).emit(instrs[pc + 1]).emit(instrs[next + 1]);
+						pc = next + 2;
+						continue;
+					}
+				}
+				case DUP -> {
+					var last = next + 2;
+					if (nextInstr == REGISTER && last < instrs.length && !targets[last] && instrs[last] == POP) {
+						buffer.emit(REGISTER).emit(instrs[next + 1]);
+						pc = last + 1;
+						continue;
+					}
+				}
+				case GOTO, JUMP_IF_FALSE -> {
+					// the target is patched once all the new indexes are known
+					if (jumpCount == jumps.length) {
+						jumps = Arrays.copyOf(jumps, jumpCount << 1);
+					}
+					jumps[jumpCount++] = buffer.label() + 1;
+				}
+				default -> {
+					// no rewrite
+				}
+			}
+			for (var i = pc; i < next; i++) {
+				buffer.emit(instrs[i]);
+			}
+			pc = next;
+		}
+		newPcs[instrs.length] = buffer.label();
+
+		// 3. patch the jumps with the new indexes
+		var newInstrs = buffer.toInstrs();
+		for (var i = 0; i < jumpCount; i++) {
+			newInstrs[jumps[i]] = newPcs[newInstrs[jumps[i]]];
+		}
+		return newInstrs;
+	}
+}
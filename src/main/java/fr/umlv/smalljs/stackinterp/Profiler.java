@@ -0,0 +1,165 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// profile of the instructions executed by the switch interpreter, enabled by -Dsmalljs.profile=true
+// (see StackInterpreter.PROFILE), counts the executions of each opcode, of each pair of opcodes executed
+// one after the other (across calls and returns) and of each instruction of each code.
+// The opcode counted is the opcode before the execution, so the first execution of an instruction
+// is counted with its generic form and the next ones with its quickened form.
+// The report lists the opcodes, the pairs and the ranges of instructions, the instructions of a range are
+// executed one after the other the same number of times, sorted by number of executions,
+// then the instructions of the hottest codes with their counts (see Instructions.dump()).
+// The compiled code (see Jit) is not profiled.
+final class Profiler {
+	private static final int OPCODE_COUNT = Instructions.INLINE_RET + 1;
+	private static final int TOP = 20;
+
+	private final Dictionary dict;
+	private final long[] opcodeCounts = new long[OPCODE_COUNT];
+	private final long[] pairCounts = new long[OPCODE_COUNT * OPCODE_COUNT];
+	private final IdentityHashMap<Code, CodeProfile> profiles = new IdentityHashMap<>();
+	private int previousOpcode;  // 0 before the first instruction
+
+	// the last code profiled, so a straight line of instructions does not look up the map
+	private Code lastCode;
+	private long[] lastCounts;
+
+	private record CodeProfile(Code code, String name, long[] counts) {
+		long total() {
+			var total = 0L;
+			for (var count : counts) {
+				total += count;
+			}
+			return total;
+		}
+	}
+
+	private record Range(CodeProfile profile, int start, int end, long count, int length) {
+		long executions() {
+			return count * length;
+		}
+	}
+
+	Profiler(Dictionary dict) {
+		this.dict = dict;
+	}
+
+	// count the execution of the instruction at pc of the code of the function
+	void count(Code code, int functionIndex, int pc) {
+		if (code != lastCode) {
+			lastCounts = profiles.computeIfAbsent(code,
+					c -> new CodeProfile(c, functionName(functionIndex), new long[c.instrs().length])).counts;
+			lastCode = code;
+		}
+		lastCounts[pc]++;
+		var opcode = code.instrs()[pc];
+		opcodeCounts[opcode]++;
+		if (previousOpcode != 0) {
+			pairCounts[previousOpcode * OPCODE_COUNT + opcode]++;
+		}
+		previousOpcode = opcode;
+	}
+
+	private String functionName(int functionIndex) {
+		if (isReference(functionIndex)) {
+			return "?";
+		}
+		return ((JSObject) decodeDictObject(functionIndex, dict)).getName();
+	}
+
+	long opcodeCount(int opcode) {
+		return opcodeCounts[opcode];
+	}
+
+	long pairCount(int opcode1, int opcode2) {
+		return pairCounts[opcode1 * OPCODE_COUNT + opcode2];
+	}
+
+	void report(PrintStream out) {
+		var total = 0L;
+		for (var count : opcodeCounts) {
+			total += count;
+		}
+		out.println("profile: " + total + " instructions executed");
+
+		out.println("opcodes");
+		var opcodes = new ArrayList<Integer>();
+		for (var opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+			if (opcodeCounts[opcode] != 0) {
+				opcodes.add(opcode);
+			}
+		}
+		opcodes.sort(Comparator.comparingLong((Integer opcode) -> opcodeCounts[opcode]).reversed());
+		for (var opcode : opcodes) {
+			out.printf("%12d %5.1f%% %s%n", opcodeCounts[opcode], percent(opcodeCounts[opcode], total),
+					Instructions.NAMES.get(opcode));
+		}
+
+		out.println("pairs");
+		var pairs = new ArrayList<Integer>();
+		for (var pair = 0; pair < pairCounts.length; pair++) {
+			if (pairCounts[pair] != 0) {
+				pairs.add(pair);
+			}
+		}
+		pairs.sort(Comparator.comparingLong((Integer pair) -> pairCounts[pair]).reversed());
+		for (var pair : pairs.subList(0, Math.min(TOP, pairs.size()))) {
+			out.printf("%12d %5.1f%% %s %s%n", pairCounts[pair], percent(pairCounts[pair], total),
+					Instructions.NAMES.get(pair / OPCODE_COUNT), Instructions.NAMES.get(pair % OPCODE_COUNT));
+		}
+
+		out.println("ranges");
+		var ranges = new ArrayList<Range>();
+		for (var profile : profiles.values()) {
+			ranges(profile, ranges);
+		}
+		ranges.sort(Comparator.comparingLong(Range::executions).reversed());
+		for (var range : ranges.subList(0, Math.min(TOP, ranges.size()))) {
+			out.printf("%12d %5.1f%% %s pc %d-%d, %d instructions executed %d times%n", range.executions(),
+					percent(range.executions(), total), range.profile.name, range.start, range.end, range.length, range.count);
+		}
+
+		var codes = new ArrayList<>(profiles.values());
+		codes.sort(Comparator.comparingLong(CodeProfile::total).reversed());
+		for (var profile : codes.subList(0, Math.min(TOP, codes.size()))) {
+			out.println("code of " + profile.name + ", " + profile.total() + " instructions executed");
+			Instructions.dump(profile.code.instrs(), dict, out, profile.counts);
+		}
+	}
+
+	// split the instructions of the code in ranges of consecutive instructions executed the same number of times
+	private static void ranges(CodeProfile profile, ArrayList<Range> ranges) {
+		var instrs = profile.code.instrs();
+		var counts = profile.counts;
+		var start = 0;
+		var length = 0;
+		var last = 0;
+		for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+			if (counts[pc] != counts[start]) {
+				if (counts[start] != 0) {
+					ranges.add(new Range(profile, start, last, counts[start], length));
+				}
+				start = pc;
+				length = 0;
+			}
+			length++;
+			last = pc;
+		}
+		if (counts[start] != 0) {
+			ranges.add(new Range(profile, start, last, counts[start], length));
+		}
+	}
+
+	private static double percent(long count, long total) {
+		return total == 0 ? 0 : 100.0 * count / total;
+	}
+}
@@ -1,15 +1,25 @@
 package fr.umlv.smalljs.stackinterp;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.FALSE;
 import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.TRUE;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeAnyValue;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.fitsSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
 
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -20,30 +30,30 @@ import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
 
 public class StackInterpreter {
-	private static void push(int[] stack, int sp, int value) {
-		stack[sp] = value;
+	private static void push(Memory stack, int sp, int value) {
+		stack.set(sp, value);
 	}
 
-	private static int pop(int[] stack, int sp) {
-		return stack[sp];
+	private static int pop(Memory stack, int sp) {
+		return stack.get(sp);
 	}
 
-	private static int peek(int[] stack, int sp) {
-		return stack[sp - 1];
+	private static int peek(Memory stack, int sp) {
+		return stack.get(sp - 1);
 	}
 
-	private static void store(int[] stack, int bp, int offset, int value) {
-		stack[bp + offset] = value;
+	private static void store(Memory stack, int bp, int offset, int value) {
+		stack.set(bp + offset, value);
 	}
 
-	private static int load(int[] stack, int bp, int offset) {
-		return stack[bp + offset];
+	private static int load(Memory stack, int bp, int offset) {
+		return stack.get(bp + offset);
 	}
 
-	private static void dumpStack(String message, int[] stack, int sp, int bp, Dictionary dict, int[] heap) {
+	private static void dumpStack(String message, Memory stack, int sp, int bp, Dictionary dict, Memory heap) {
 		System.err.println(message);
 		for (var i = sp - 1; i >= 0; i = i - 1) {
-			var value = stack[i];
+			var value = stack.get(i);
 			try {
 				System.err.println(((i == bp) ? "->" : "  ") + value + " " + decodeAnyValue(value, dict, heap));
 			} catch (IndexOutOfBoundsException | ClassCastException e) {
@@ -53,10 +63,10 @@ public class StackInterpreter {
 		System.err.println();
 	}
 
-	private static void dumpHeap(String message, int[] heap, int hp, Dictionary dict) {
+	private static void dumpHeap(String message, Memory heap, int hp, Dictionary dict) {
 		System.err.println(message);
 		for (var i = 0; i < hp; i++) {
-			var value = heap[i];
+			var value = heap.get(i);
 			try {
 				System.err.println(i + ": " + value + " " + decodeAnyValue(value, dict, heap));
 			} catch (IndexOutOfBoundsException | ClassCastException e) {
@@ -67,93 +77,372 @@ public class StackInterpreter {
 	}
 
 
-	private static final int GC_OFFSET = 1;
-	private static final int GC_MARK = -1;
-	private static final int GC_EMPTY = -2;
+	// the layout of the frames is shared with the NaN boxing representation (see NanBoxInterpreter)
+	static final int BP_OFFSET = 0;
+	static final int PC_OFFSET = 1;
+	static final int FUN_OFFSET = 2;
+	static final int CODE_OFFSET = 3;
+	static final int ACTIVATION_SIZE = 4;
 
-	private static final int BP_OFFSET = 0;
-	private static final int PC_OFFSET = 1;
-	private static final int FUN_OFFSET = 2;
-	private static final int ACTIVATION_SIZE = 3;
+	static final int RECEIVER_BASE_ARG_OFFSET = -1;
+	static final int QUALIFIER_BASE_ARG_OFFSET = -2;
+	static final int FUNCALL_PREFIX = 2;
 
-	private static final int RECEIVER_BASE_ARG_OFFSET = -1;
-	private static final int QUALIFIER_BASE_ARG_OFFSET = -2;
-	private static final int FUNCALL_PREFIX = 2;
+	static final int INITIAL_STACK_SIZE = 256;
+	// number of functions of the call chain displayed in case of stack overflow
+	static final int CALL_CHAIN_SIZE = 32;
 
-	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
-		var stack = new int[96 /* 4096 */];
-		var heap = new int[96 /* 4096 */];
-		var code = (Code) function.lookup("__code__");
-		var instrs = code.instrs();
+	// the locals, the activation zone and the operand stack of a function
+	static int frameSize(Code code) {
+		return code.slotCount() + ACTIVATION_SIZE + code.maxStack();
+	}
 
-		var undefined = encodeDictObject(UNDEFINED, dict);
+	static Memory growStack(Memory stack, int required) {
+		var newSize = stack.size();
+		while (newSize < required) {
+			newSize = newSize << 1;
+		}
+		return stack.resize(newSize);
+	}
 
-		var hp = 0; // heap pointer
-		var pc = 0; // instruction pointer
-		var bp = 0; // base pointer
-		var sp = bp + code.slotCount() + ACTIVATION_SIZE; // stack pointer
+	static Failure stackOverflow(JSObject newFunction, int callDepth, Memory stack, int bp, Code code, int functionIndex, Dictionary dict) {
+		var builder = new StringBuilder()
+				.append("stack overflow, call depth ").append(callDepth)
+				.append(" exceeded when calling ").append(newFunction.getName());
+		for (var i = 0;; i++) {
+			if (i == CALL_CHAIN_SIZE) {
+				builder.append("\n  ...");
+				break;
+			}
+			builder.append("\n  at ").append(((JSObject) decodeDictObject(functionIndex, dict)).getName());
+			if (bp == 0) {  // main function
+				break;
+			}
+			var activation = bp + code.slotCount();
+			functionIndex = stack.get(activation + FUN_OFFSET);
+			code = (Code) decodeDictObject(stack.get(activation + CODE_OFFSET), dict);
+			bp = decodeSmallInt(stack.get(activation + BP_OFFSET));
+		}
+		return new Failure(builder.toString());
+	}
+
+	// dictionary index of the functions bound to the operators in the global environment, indexed by opcode - ADD
+	static int[] operatorBindings(JSObject globalEnv, Dictionary dict) {
+		var bindings = new int[Instructions.OPERATOR_NAMES.size()];
+		for (var i = 0; i < bindings.length; i++) {
+			bindings[i] = encodeAnyValue(globalEnv.lookup(Instructions.OPERATOR_NAMES.get(i)), dict);
+		}
+		return bindings;
+	}
+
+	// not a small int, so not a possible result of an operation on small ints
+	static final int NO_RESULT = 0;
+
+	// operation on two small ints, directly on the tagged values when possible (see stack_interpreter.md),
+	// return NO_RESULT if the result is not a small int
+	static int smallIntOperation(int opcode, int left, int right) {
+		return switch (opcode) {
+			case Instructions.ADD -> {
+				// (2a + 1) + (2b + 1) - 1 = 2(a + b) + 1, overflows if a + b is not a small int
+				var result = (long) left + right - 1;
+				yield result != (int) result ? NO_RESULT : (int) result;
+			}
+			case Instructions.SUB -> {
+				// (2a + 1) - (2b + 1) + 1 = 2(a - b) + 1
+				var result = (long) left - right + 1;
+				yield result != (int) result ? NO_RESULT : (int) result;
+			}
+			case Instructions.MUL -> {
+				var result = (long) decodeSmallInt(left) * decodeSmallInt(right);
+				yield result != (int) result || !fitsSmallInt((int) result) ? NO_RESULT : encodeSmallInt((int) result);
+			}
+			case Instructions.DIV -> {
+				var divisor = decodeSmallInt(right);
+				if (divisor == 0) {
+					yield NO_RESULT;
+				}
+				// MIN_SMALL_INT / -1 is not a small int
+				var result = decodeSmallInt(left) / divisor;
+				yield fitsSmallInt(result) ? encodeSmallInt(result) : NO_RESULT;
+			}
+			case Instructions.REM -> {
+				var divisor = decodeSmallInt(right);
+				yield divisor == 0 ? NO_RESULT : encodeSmallInt(decodeSmallInt(left) % divisor);
+			}
+			// the order of the small ints is the order of their tagged values
+			case Instructions.LT -> left < right ? TRUE : FALSE;
+			case Instructions.LE -> left <= right ? TRUE : FALSE;
+			case Instructions.GT -> left > right ? TRUE : FALSE;
+			case Instructions.GE -> left >= right ? TRUE : FALSE;
+			case Instructions.EQ -> left == right ? TRUE : FALSE;
+			case Instructions.NE -> left != right ? TRUE : FALSE;
+			default -> throw new AssertionError("unknown operator " + opcode);
+		};
+	}
+
+	// call the function currently bound to the operator in the global environment
+	static int callOperator(int opcode, int left, int right, JSObject globalEnv, Heap heap, Memory stack, int sp) {
+		var name = Instructions.OPERATOR_NAMES.get(opcode - Instructions.ADD);
+		if (!(globalEnv.lookup(name) instanceof JSObject operator)) {
+			throw new Failure("operator " + name + " is not a function");
+		}
+		try (var scope = heap.openScope(stack, sp)) {
+			var args = new Object[] { scope.decode(left), scope.decode(right) };
+			return scope.encode(operator.invoke(UNDEFINED, args));
+		}
+	}
+
+	// name of the field of the GET or PUT instruction at index pc
+	static String fieldName(int[] instrs, int pc, Dictionary dict) {
+		var operand = decodeDictObject(instrs[pc + 1], dict);
+		if (operand instanceof FieldCache cache) {
+			return (String) decodeDictObject(cache.fieldName(), dict);
+		}
+		return (String) operand;
+	}
+
+	// index of the field of the GET or PUT instruction at index pc in the class vClass, -1 if there is no such field,
+	// on a cache miss the instruction is rewritten to its next quickened form
+	static int fieldIndex(int[] instrs, int pc, int vClass, Dictionary dict) {
+		var opcode = instrs[pc];
+		FieldCache cache = null;
+		int fieldName;
+		switch (opcode) {
+			case Instructions.GET_CACHED, Instructions.PUT_CACHED, Instructions.GET_POLYMORPHIC, Instructions.PUT_POLYMORPHIC -> {
+				cache = (FieldCache) decodeDictObject(instrs[pc + 1], dict);
+				var fieldIndex = (opcode == Instructions.GET_CACHED || opcode == Instructions.PUT_CACHED)
+						? cache.lookupMonomorphic(vClass)
+						: cache.lookup(vClass);
+				if (fieldIndex != FieldCache.MISS) {
+					return fieldIndex;
+				}
+				fieldName = cache.fieldName();
+			}
+			default -> fieldName = instrs[pc + 1];
+		}
+
+		// slow path, get the field slot from the class
+		var clazz = (JSObject) decodeDictObject(vClass, dict);
+		var slotOrUndefined = clazz.lookup((String) decodeDictObject(fieldName, dict));
+		var fieldIndex = (slotOrUndefined == UNDEFINED) ? -1 : (int) slotOrUndefined;
+
+		// quicken the instruction
+		switch (opcode) {
+			case Instructions.GET, Instructions.PUT -> {
+				instrs[pc + 1] = encodeDictObject(new FieldCache(fieldName, vClass, fieldIndex), dict);
+				instrs[pc] = (opcode == Instructions.GET) ? Instructions.GET_CACHED : Instructions.PUT_CACHED;
+			}
+			case Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC -> {
+				var isGet = opcode == Instructions.GET_CACHED || opcode == Instructions.GET_POLYMORPHIC;
+				if (cache.add(vClass, fieldIndex)) {
+					instrs[pc] = isGet ? Instructions.GET_POLYMORPHIC : Instructions.PUT_POLYMORPHIC;
+				} else {
+					instrs[pc + 1] = fieldName;
+					instrs[pc] = isGet ? Instructions.GET_MEGAMORPHIC : Instructions.PUT_MEGAMORPHIC;
+				}
+			}
+			default -> {
+				// megamorphic, no cache
+			}
+		}
+		return fieldIndex;
+	}
+
+	// the call site cache to use to call the function encoded as qualifier, the cache is updated
+	// except if the qualifier is an object of the heap, in that case a new cache is returned
+	static CallCache resolveCall(CallCache cache, int qualifier, Dictionary dict, Memory heap) {
+		return resolveCall(cache, qualifier, (JSObject) decodeAnyValue(qualifier, dict, heap), dict);
+	}
+
+	static CallCache resolveCall(CallCache cache, int qualifier, JSObject function, Dictionary dict) {
+		// check if the function contains a code attribute, the code is compiled on the first call
+		var code = InstrRewriter.code(function);
+		var codeIndex = (code == null) ? 0 : encodeDictObject(code, dict);
+		if (isReference(qualifier)) {
+			cache = new CallCache(cache.argumentCount());
+		} else {
+			// the index is stored in the cache, so it should not be reclaimed
+			dict.index(function);
+		}
+		cache.update(qualifier, function, code, codeIndex);
+		return cache;
+	}
+
+	// call the native function of the cache with the arguments on the stack,
+	// if possible with invokeExact, without arrays and without boxing the ints,
+	// the objects of the heap are seen as views that are valid until the end of the call
+	static int callNative(CallCache cache, Memory stack, int baseArg, Heap heap) {
+		try (var scope = heap.openScope(stack, baseArg + cache.argumentCount())) {
+			return callNative(cache, stack, baseArg, scope);
+		}
+	}
+
+	private static int callNative(CallCache cache, Memory stack, int baseArg, HandleScope scope) {
+		var argumentCount = cache.argumentCount();
+		// decode receiver
+		var receiver = scope.decode(stack.get(baseArg + RECEIVER_BASE_ARG_OFFSET));
+		var mh = cache.nativeHandle();
+		if (mh == null) {  // generic call
+			var args = new Object[argumentCount];
+			for (var i = 0; i < argumentCount; i++) {
+				args[i] = scope.decode(stack.get(baseArg + i));
+			}
+			return scope.encode(cache.function().invoke(receiver, args));
+		}
+		try {
+			if (cache.intNative()) {
+				var result = switch (argumentCount) {
+					case 0 -> (int) mh.invokeExact(receiver);
+					case 1 -> (int) mh.invokeExact(receiver, intArg(stack, baseArg, scope));
+					case 2 -> (int) mh.invokeExact(receiver, intArg(stack, baseArg, scope), intArg(stack, baseArg + 1, scope));
+					case 3 -> (int) mh.invokeExact(receiver, intArg(stack, baseArg, scope), intArg(stack, baseArg + 1, scope),
+							intArg(stack, baseArg + 2, scope));
+					case 4 -> (int) mh.invokeExact(receiver, intArg(stack, baseArg, scope), intArg(stack, baseArg + 1, scope),
+							intArg(stack, baseArg + 2, scope), intArg(stack, baseArg + 3, scope));
+					default -> throw new AssertionError("invalid arity " + argumentCount);
+				};
+				// the ints that are not small ints are boxed
+				return fitsSmallInt(result) ? encodeSmallInt(result) : scope.encode(result);
+			}
+			var result = switch (argumentCount) {
+				case 0 -> (Object) mh.invokeExact(receiver);
+				case 1 -> (Object) mh.invokeExact(receiver, arg(stack, baseArg, scope));
+				case 2 -> (Object) mh.invokeExact(receiver, arg(stack, baseArg, scope), arg(stack, baseArg + 1, scope));
+				case 3 -> (Object) mh.invokeExact(receiver, arg(stack, baseArg, scope), arg(stack, baseArg + 1, scope),
+						arg(stack, baseArg + 2, scope));
+				case 4 -> (Object) mh.invokeExact(receiver, arg(stack, baseArg, scope), arg(stack, baseArg + 1, scope),
+						arg(stack, baseArg + 2, scope), arg(stack, baseArg + 3, scope));
+				default -> throw new AssertionError("invalid arity " + argumentCount);
+			};
+			return scope.encode(result);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new Failure(e.getMessage(), e);
+		}
+	}
+
+	private static Object arg(Memory stack, int index, HandleScope scope) {
+		return scope.decode(stack.get(index));
+	}
+
+	private static int intArg(Memory stack, int index, HandleScope scope) {
+		var value = stack.get(index);
+		if (isSmallInt(value)) {
+			return decodeSmallInt(value);
+		}
+		// the ints that are not small ints are boxed or stored in the dictionary
+		var decoded = scope.decode(value);
+		if (decoded instanceof Integer intValue) {
+			return intValue;
+		}
+		throw new Failure("not an int " + decoded);
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
+		return execute(function, dict, globalEnv, Config.DEFAULT);
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Config config) {
+		if (config.representation() == Config.Representation.NAN_BOXING) {
+			return NanBoxInterpreter.execute(function, dict, globalEnv, config);
+		}
+		if (config.dispatch() == Config.Dispatch.CLOSURE) {
+			return ClosureInterpreter.execute(function, dict, globalEnv, config);
+		}
+		if (config.dispatch() == Config.Dispatch.COMPACT) {
+			return CompactInterpreter.execute(function, dict, globalEnv, config);
+		}
+		var code = InstrRewriter.code(function);
+		// dictionary index of the main function and of its code
+		var functionIndex = encodeDictObject(function, dict);
+		var codeIndex = encodeDictObject(code, dict);
+		var stack = Memory.allocate(config.storage(), Math.max(INITIAL_STACK_SIZE, frameSize(code)));
+		var machine = new Machine(dict, globalEnv, config, new Heap(dict, config), stack);
 
 		// initialize all local variables
 		for (var i = 0; i < code.slotCount(); i++) {
-			stack[i] = undefined;
+			stack.set(i, machine.undefined);
+		}
+		// initialize the activation zone, bp and pc are stored as small ints so the GC never sees them as references,
+		// the pc 0 ends the interpreter
+		stack.set(code.slotCount() + BP_OFFSET, encodeSmallInt(0));
+		stack.set(code.slotCount() + PC_OFFSET, encodeSmallInt(0));
+		stack.set(code.slotCount() + FUN_OFFSET, functionIndex);
+		stack.set(code.slotCount() + CODE_OFFSET, codeIndex);
+
+		var result = run(machine, code, functionIndex, codeIndex, 0);
+		if (config.verboseGC()) {
+			System.err.println(machine.heap.stats());
+		}
+		if (PROFILE) {
+			machine.profiler.report(System.err);
 		}
+		return decodeAnyValue(result, dict, machine.heap.memory());
+	}
+
+	// print the frames and the calls/returns on stderr, -Dsmalljs.trace=true,
+	// a constant so the tracing code is removed from the dispatch loop by the JIT when not enabled
+	static final boolean TRACE = Boolean.getBoolean("smalljs.trace");
+
+	// count the instructions executed and print a report on stderr at the end of the execution (see Profiler),
+	// -Dsmalljs.profile=true, a constant like TRACE so the profiling costs nothing when not enabled
+	static final boolean PROFILE = Boolean.getBoolean("smalljs.profile");
+
+	// interpret the function of the frame at bp until it returns, the frame is already initialized and the pc
+	// of its activation zone is 0, return the encoded result,
+	// the interpreter is re-entered by the compiled code to call an interpreted function (see Jit)
+	//
+	// the loop only contains the hot paths, the state of the interpreter (pc, sp, bp, instrs, stack) is kept
+	// in local variables so the JIT can keep it in registers, the cold paths (quickening, errors, natives,
+	// printing, tracing) are in separate methods so the loop stays small enough to be fully compiled
+	static int run(Machine machine, Code code, int functionIndex, int codeIndex, int bp) {
+		var dict = machine.dict;
+		var globalEnv = machine.globalEnv;
+		var heap = machine.heap;
+		var stack = machine.stack;
+		var undefined = machine.undefined;
+		var maxCallDepth = machine.config.maxCallDepth();
+		var inlineThreshold = machine.config.inlineThreshold();
+		var instrs = code.instrs();
+
+		var pc = 0; // instruction pointer
+		var sp = bp + code.slotCount() + ACTIVATION_SIZE; // stack pointer
 
 		for (;;) {
+			if (PROFILE) {
+				profile(machine, code, functionIndex, pc);
+			}
 			switch (instrs[pc++]) {
 				case Instructions.CONST -> {
-					//throw new UnsupportedOperationException("TODO CONST");
-					// get the constant from the instruction to the stack
-					var constant = instrs[pc++];
-					// push(...)
-					push(stack, sp++, constant);
+					// push the constant of the instruction
+					push(stack, sp++, instrs[pc++]);
 				}
 				case Instructions.LOOKUP -> {
-					//throw new UnsupportedOperationException("TODO LOOKUP");
-					// find the current instruction
-					int indexTagValue = instrs[pc++];
-					// decode the name from the instruction
-					String name = (String) decodeDictObject(indexTagValue, dict);
-					// lookup the name and push as any anyValue
-                    var value = globalEnv.lookup(name);
-					push(stack, sp++, encodeAnyValue(value, dict));
-
-					//dumpStack("in lookup", stack, sp, bp, dict, heap);
+					// quicken the instruction with a cache of the global, then push its value
+					var cache = quickenLookup(instrs, pc++, Instructions.LOOKUP_CACHED, dict);
+					push(stack, sp++, cache.value(globalEnv, dict));
+				}
+				case Instructions.LOOKUP_CACHED -> {
+					// push the cached value of the global
+					var cache = (GlobalCache) decodeDictObject(instrs[pc++], dict);
+					push(stack, sp++, cache.value(globalEnv, dict));
 				}
 				case Instructions.REGISTER -> {
-					//throw new UnsupportedOperationException("TODO REGISTER");
-					// find the current instruction
-					int indexTagValue = instrs[pc++];
-					// decode the name from the instructions
-					String name = (String) decodeAnyValue(indexTagValue, dict, heap);
-					// pop the value from the stack and decode it
-					var elem = pop(stack, --sp);
-					Object value = decodeAnyValue(elem, dict, heap);
-					// register it in the global environment
-					globalEnv.register(name, value);
+					// pop the value and register it in the global environment
+					register(instrs[pc++], pop(stack, --sp), globalEnv, dict, heap);
 				}
 				case Instructions.LOAD -> {
-					//throw new UnsupportedOperationException("TODO LOAD");
-					// get local offset
-					int offset = instrs[pc++];
-					// load value from the local slots
-					int value = load(stack, bp, offset);
-					// push it to the top of the stack
-					push(stack, sp++, value);
+					// push the value of the local variable
+					push(stack, sp++, load(stack, bp, instrs[pc++]));
 				}
 				case Instructions.STORE -> {
-					//throw new UnsupportedOperationException("TODO STORE");
-					// get local offset
-					int offset = instrs[pc++];
-					// pop value from the stack
-					var value = pop(stack, --sp);
-					// store it in the local slots
-					store(stack, bp, offset, value);
+					// pop the value and store it in the local variable
+					store(stack, bp, instrs[pc++], pop(stack, --sp));
 				}
 				case Instructions.DUP -> {
-					//throw new UnsupportedOperationException("TODO DUP");
-					// get value on top of the stack
+					// push the value on top of the stack again
 					var value = peek(stack, sp);
-					// push it on top of the stack
 					push(stack, sp++, value);
 				}
 				case Instructions.POP -> {
@@ -161,246 +450,259 @@ public class StackInterpreter {
 					--sp;
 				}
 				case Instructions.SWAP -> {
-					throw new UnsupportedOperationException("TODO SWAP");
-					// pop first value from the stack
-					//var value1 = ...
-					// pop second value from the stack
-					//var value2 = ...
-					// push first value on top of the stack
-					//push(...);
-					// push second value on top of the stack
-					//push(...);
+					// swap the two values on top of the stack
+					var value1 = pop(stack, --sp);
+					var value2 = pop(stack, --sp);
+					push(stack, sp++, value1);
+					push(stack, sp++, value2);
 				}
-				case Instructions.FUNCALL -> {
-					//throw new UnsupportedOperationException("TODO FUNCALL");
-					// DEBUG
-					dumpStack(">start funcall dump", stack, sp, bp, dict, heap);
-
-					// find argument count
-					var argumentCount = instrs[pc++];
-					// find baseArg
+				case Instructions.FUNCALL, Instructions.FUNCALL_CACHED, Instructions.TAILCALL, Instructions.TAILCALL_CACHED -> {
+					// a tail call reuses the frame of the current function
+					var opcode = instrs[pc - 1];
+					var tailCall = opcode == Instructions.TAILCALL || opcode == Instructions.TAILCALL_CACHED;
+
+					// find the call site cache, the instruction is quickened on its first execution
+					var cache = (opcode == Instructions.FUNCALL || opcode == Instructions.TAILCALL)
+							? quickenCall(instrs, pc, dict)
+							: (CallCache) decodeDictObject(instrs[pc], dict);
+					pc++;
+					var argumentCount = cache.argumentCount();
+					// stack[baseArg] is the first argument
+					// stack[baseArg + RECEIVER_BASE_ARG_OFFSET] is the receiver
+					// stack[baseArg + QUALIFIER_BASE_ARG_OFFSET] is the qualifier (aka the function)
 					var baseArg = sp - argumentCount;
-//					 stack[baseArg] is the first argument
-//					 stack[baseArg + RECEIVER_BASE_ARG_OFFSET] is the receiver
-//					 stack[baseArg + QUALIFIER_BASE_ARG_OFFSET] is the qualifier (aka the function)
-
-					// decode qualifier
-                    var functionValue = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
-					var newFunction = (JSObject) decodeAnyValue(functionValue, dict, heap);
-					{ // DEBUG
-						var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-						var args = new Object[argumentCount];
-						for (var i = 0; i < argumentCount; i++) {
-							args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-						}
-						System.err.println("funcall " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
-					}
 
-					// check if the function contains a code attribute
-					var maybeCode = newFunction.lookup("__code__");
-					if (maybeCode == UNDEFINED) { // native call !
-					// decode receiver
-					var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-
-					// decode arguments
-					var args = new Object[argumentCount];
-					for (var i = 0; i < argumentCount; i++) {
-						args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
+					// decode qualifier, unless it's the function of the last call
+					var functionValue = stack.get(baseArg + QUALIFIER_BASE_ARG_OFFSET);
+					if (!cache.hit(functionValue)) {
+						cache = resolveCall(cache, functionValue, dict, heap.memory());
+					}
+					if (TRACE) {
+						traceCall(cache, stack, sp, bp, dict, heap);
 					}
 
-					 System.err.println("call native " + newFunction.getName() + " with " +
-					 receiver + " " + java.util.Arrays.toString(args));
-
-					// call native function
-					var result = encodeAnyValue(newFunction.invoke(receiver, args), dict);
-
-					// fixup sp (receiver and function must be dropped)
-					sp = baseArg - FUNCALL_PREFIX;
-
-					// push return value
-					push(stack, sp++, result);
-					continue;
+					var newCode = cache.code();
+					if (newCode == null) {
+						// native call, drop the qualifier and the receiver and push the result
+						var result = callNative(cache, stack, baseArg, heap);
+						sp = baseArg - FUNCALL_PREFIX;
+						push(stack, sp++, result);
+						continue;
+					}
+					if (newCode.parameterCount() != argumentCount + 1/* this */) {
+						throw wrongArgumentCount(cache.function(), newCode, argumentCount);
 					}
-					//throw new UnsupportedOperationException("TODO FUNCALL");
 
-					// initialize new code
-					code = (Code) maybeCode;
+					// a call site that becomes hot triggers the inlining in the code of the current function,
+					// the current frame continues with the current code
+					if (inlineThreshold != 0 && cache.countCall() == inlineThreshold) {
+						Inliner.inline(machine, functionIndex);
+					}
 
-					// check number of arguments
-					if (code.parameterCount() != argumentCount + 1/* this */) {
-						throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
-								+ (code.parameterCount() - 1) + " but was " + argumentCount);
+					// a compiled code is called from here and its result is pushed, except in tail position
+					// or if there are too many nested calls (see Jit), the code is interpreted in this loop in that case
+					var compiled = Jit.tierUp(newCode, machine);
+					if (compiled != null && !tailCall && machine.nestedCalls < Jit.MAX_NESTED_CALLS) {
+						machine.stack = stack;
+						var result = Jit.callCode(machine, cache, compiled, baseArg, bp, functionIndex, codeIndex);
+						stack = machine.stack;
+						sp = baseArg - FUNCALL_PREFIX;
+						push(stack, sp++, result);
+						continue;
 					}
 
-					// save bp/pc/code in activation zone
-					// stack[activation + offset] = ??
-					var activation = baseArg - 1 + code.slotCount();
-					stack[activation + BP_OFFSET] = bp;
-					stack[activation + PC_OFFSET] = pc;
-					stack[activation + FUN_OFFSET] = encodeDictObject(function, dict);
+					if (tailCall) {
+						// bp is unchanged, the function called returns directly to the caller of the current function
+						stack = tailCall(machine, stack, bp, code, newCode, baseArg, argumentCount);
+					} else {
+						// check the call depth and that the stack has enough room for the new frame
+						if (++machine.callDepth > maxCallDepth) {
+							throw stackOverflow(cache.function(), maxCallDepth, stack, bp, code, functionIndex, dict);
+						}
+						if (baseArg - 1 + frameSize(newCode) > stack.size()) {
+							stack = machine.stack = growStack(stack, baseArg - 1 + frameSize(newCode));
+						}
 
-					// initialize pc, bp and sp
-					pc = 0; // instruction pointer
-					bp = baseArg - 1; // base pointer
-					sp = activation + ACTIVATION_SIZE; // stack pointer
+						// save bp/pc/function/code in the activation zone of the new frame
+						var activation = baseArg - 1 + newCode.slotCount();
+						stack.set(activation + BP_OFFSET, encodeSmallInt(bp));
+						stack.set(activation + PC_OFFSET, encodeSmallInt(pc));
+						stack.set(activation + FUN_OFFSET, functionIndex);
+						stack.set(activation + CODE_OFFSET, codeIndex);
+						bp = baseArg - 1;
+					}
 
 					// initialize all locals that are not parameters
-					for (var i = bp + code.parameterCount(); i < bp + code.slotCount(); i++) {
-						stack[i] = undefined;
+					for (var i = bp + newCode.parameterCount(); i < bp + newCode.slotCount(); i++) {
+						stack.set(i, undefined);
 					}
 
-					// initialize function and instrs of the new function
-					function = newFunction;
-					instrs = code.instrs();
-
-					// DEBUG
-					dumpStack(">end funcall dump", stack, sp, bp, dict, heap);
+					// switch to the new function
+					code = newCode;
+					functionIndex = functionValue;
+					codeIndex = cache.codeIndex();
+					instrs = newCode.instrs();
+					pc = 0;
+					sp = bp + newCode.slotCount() + ACTIVATION_SIZE;
 				}
-				case Instructions.RET -> {
-					//throw new UnsupportedOperationException("TODO RET");
-					// DEBUG
-					dumpStack("> start ret dump", stack, sp, bp, dict, heap);
-
-					// get the return value from the top of the stack
-					int result = pop(stack, --sp);
-
-					System.err.println("ret " + decodeAnyValue(result, dict, heap));
+				case Instructions.RET, Instructions.CONST_RET -> {
+					// get the return value from the top of the stack or from the instructions
+					int result = (instrs[pc - 1] == Instructions.CONST_RET) ? instrs[pc++] : pop(stack, --sp);
+					if (TRACE) {
+						traceRet(result, stack, sp, bp, dict, heap);
+					}
 
 					// find activation and restore pc
 					int activation = bp + code.slotCount();
-					pc = stack[activation + PC_OFFSET];
+					pc = decodeSmallInt(stack.get(activation + PC_OFFSET));
 					if (pc == 0) {
 						// end of the interpreter
-						return decodeAnyValue(result, dict, heap);
+						return result;
 					}
-					//throw new UnsupportedOperationException("TODO RET");
+					machine.callDepth--;
 					// restore sp, function and bp
 					sp = bp - 1;
-					function = (JSObject) decodeDictObject(stack[activation + FUN_OFFSET], dict);
-					bp = stack[activation + BP_OFFSET];
+					functionIndex = stack.get(activation + FUN_OFFSET);
+					codeIndex = stack.get(activation + CODE_OFFSET);
+					bp = decodeSmallInt(stack.get(activation + BP_OFFSET));
 
-					// restore code and instrs
-					code = (Code) function.lookup("__code__");
+					// restore code and instrs, without looking up the function
+					code = (Code) decodeDictObject(codeIndex, dict);
 					instrs = code.instrs();
 
 					// push return value
 					push(stack, sp++, result);
-
-					// DEBUG
-					dumpStack("> end ret dump", stack, sp, bp, dict, heap);
 				}
 				case Instructions.GOTO -> {
-					//throw new UnsupportedOperationException("TODO GOTO");
-					// get the label
-					int label = instrs[pc++];
 					// change the program counter to the label
-					pc = label;
+					pc = instrs[pc];
 				}
 				case Instructions.JUMP_IF_FALSE -> {
-					//throw new UnsupportedOperationException("TODO JUMP_IF_FALSE");
-					// get the label
+					// pop the condition, if it's false change the program counter to the label
 					var label = instrs[pc++];
-					// get the value on top of the stack
-					var condition = pop(stack, --sp);
-					// if condition is false change the program counter to the label
-					if (condition == TagValues.FALSE) {
+					if (pop(stack, --sp) == TagValues.FALSE) {
 						pc = label;
 					}
 				}
+				case Instructions.INLINE_GUARD -> {
+					// execute the inlined instructions if the qualifier is the function inlined, otherwise jump to the call
+					var qualifier = stack.get(sp - instrs[pc + 1] + QUALIFIER_BASE_ARG_OFFSET);
+					pc = (qualifier == instrs[pc]) ? pc + 3 : instrs[pc + 2];
+				}
+				case Instructions.INLINE_RET -> {
+					// replace the qualifier and the locals of the inlined function by the result
+					var result = pop(stack, --sp);
+					sp -= instrs[pc++];
+					push(stack, sp++, result);
+				}
 				case Instructions.NEW -> {
-					throw new UnsupportedOperationException("TODO NEW");
 					// get the class from the instructions
-					//var vClass = instrs[pc++];
-					//var clazz = (JSObject) ...;
-
-					// out of memory ?
-					//if (hp + OBJECT_HEADER_SIZE + clazz.length() >= heap.length) {
-					//dumpHeap("before GC ", heap, hp, dict);
-
-					//throw new UnsupportedOperationException("TODO !!! GC !!!")
-
-					//dumpHeap("after GC ", heap, hp, dict);
-					//}
-
-					//var ref = hp;
-
-					// write the class on heap
-					//heap[ref] = ...
-					// write the empty GC mark
-					//heap[ref + GC_OFFSET] = GC_EMPTY;
-					// get all fields values from the stack and write them on heap
-					//var baseArg = ...;
-					//for (var i = 0; i < clazz.length(); i++) {
-					//	heap[ref + OBJECT_HEADER_SIZE + i] = stack[baseArg + i];
-					//}
-					// adjust stack pointer and heap pointer
-					//sp = ...
-					//hp += ...
-
-					// push the reference on top of the stack
-					//push(...);
+					var vClass = instrs[pc++];
+					var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+
+					// allocate the object and write its header,
+					// if out of memory the GC rewrites the references on the stack
+					var ref = heap.allocate(vClass, length, stack, sp);
+					var memory = heap.memory();
+
+					// pop the fields values and write them on heap
+					sp = sp - length;
+					for (var i = 0; i < length; i++) {
+						memory.set(ref + OBJECT_HEADER_SIZE + i, stack.get(sp + i));
+					}
+					push(stack, sp++, encodeReference(ref));
+				}
+				case Instructions.GET, Instructions.GET_CACHED, Instructions.GET_POLYMORPHIC, Instructions.GET_MEGAMORPHIC -> {
+					// index of the GET instruction, it may be quickened
+					var instrPc = pc - 1;
+					pc++;
+					// pop the reference
+					var value = pop(stack, --sp);
+					if (!isReference(value)) {
+						throw fieldFailure("can not get field ", instrs, instrPc, value, dict, heap);
+					}
+					var ref = decodeReference(value);
+					var memory = heap.memory();
+					// get the field index of the class from the inline cache
+					var fieldIndex = fieldIndex(instrs, instrPc, memory.get(ref), dict);
+					// push the field value or undefined if there is no such field
+					push(stack, sp++, fieldIndex == -1 ? undefined : memory.get(ref + OBJECT_HEADER_SIZE + fieldIndex));
+				}
+				case Instructions.PUT, Instructions.PUT_CACHED, Instructions.PUT_POLYMORPHIC, Instructions.PUT_MEGAMORPHIC -> {
+					// index of the PUT instruction, it may be quickened
+					var instrPc = pc - 1;
+					pc++;
+					// pop the new value and the reference
+					var value = pop(stack, --sp);
+					var refValue = pop(stack, --sp);
+					if (!isReference(refValue)) {
+						throw fieldFailure("can not set field ", instrs, instrPc, refValue, dict, heap);
+					}
+					var ref = decodeReference(refValue);
+					var memory = heap.memory();
+					// get the field index of the class from the inline cache
+					var fieldIndex = fieldIndex(instrs, instrPc, memory.get(ref), dict);
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + fieldName(instrs, instrPc, dict));
+					}
+
+					// store field value on heap
+					var address = ref + OBJECT_HEADER_SIZE + fieldIndex;
+					var oldValue = memory.get(address);
+					memory.set(address, value);
+					// the GC must know if the old space references the nursery or if a reference is overwritten
+					heap.writeBarrier(address, oldValue, value);
+				}
+				case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+						Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+					var opcode = instrs[pc - 1];
+					// get the operator the code was compiled with
+					var operator = instrs[pc++];
+					// pop the two operands
+					var right = pop(stack, --sp);
+					var left = pop(stack, --sp);
+					// check that the operator has not been redefined
+					var result = NO_RESULT;
+					if (isSmallInt(left) && isSmallInt(right) && machine.operatorBinding(opcode) == operator) {
+						result = smallIntOperation(opcode, left, right);
+					}
+					if (result == NO_RESULT) {
+						// generic case
+						result = callOperator(opcode, left, right, globalEnv, heap, stack, sp);
+					}
+					// push the result
+					push(stack, sp++, result);
+				}
+				case Instructions.LOAD_LOAD -> {
+					// load the two local variables
+					var value1 = load(stack, bp, instrs[pc++]);
+					var value2 = load(stack, bp, instrs[pc++]);
+					// push them on top of the stack
+					push(stack, sp++, value1);
+					push(stack, sp++, value2);
+				}
+				case Instructions.STORE_LOAD -> {
+					// pop the value from the stack and store it in the local slots
+					store(stack, bp, instrs[pc++], pop(stack, --sp));
+					// load the local variable and push it on top of the stack
+					push(stack, sp++, load(stack, bp, instrs[pc++]));
 				}
-				case Instructions.GET -> {
-					throw new UnsupportedOperationException("TODO GET");
-					// get field name from the instructions
-					//var fieldName = (String) ...
-
-					// get reference from the top of the stack
-					//int value = ...
-					//int ref = ...
-					// get class on heap from the reference
-					//int vClass = ...;
-					// get JSObject from class
-					//var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					//int slot = clazz.lookup(fieldName);
-					//if (slot == UNDEFINED) {
-					// no slot, push undefined
-					//	push(..);
-					//	continue;
-					//}
-
-					// get the field index
-					//int fieldIndex = ...
-					// get field value
-					//int fieldValue = ...
-					// push field value on top of the stack
-					//push(...);
+				case Instructions.LOOKUP_CONST -> {
+					// quicken the instruction with a cache of the global, then push its value and the constant
+					var cache = quickenLookup(instrs, pc++, Instructions.LOOKUP_CONST_CACHED, dict);
+					push(stack, sp++, cache.value(globalEnv, dict));
+					push(stack, sp++, instrs[pc++]);
 				}
-				case Instructions.PUT -> {
-					throw new UnsupportedOperationException("TODO PUT");
-					// get field name from the instructions
-					// var fieldName = (String) ...
-					// get new value from the top of the stack
-					//var value = ...
-					// get reference from the top of the stack
-					// var ref = decodeReference(...);
-					// get class on heap from the reference
-					//var vClass = heap[ref];
-					// get JSObject from class
-					//var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					//var slotOrUndefined = clazz.lookup(fieldName);
-					//if (slotOrUndefined == UNDEFINED) {
-					//	throw new Failure("invalid field " + fieldName);
-					//}
-
-					// get the field index
-					//var fieldIndex = ...
-					// store field value from the top of the stack on heap
-					//heap[...] = ...;
+				case Instructions.LOOKUP_CONST_CACHED -> {
+					// push the cached value of the global
+					var cache = (GlobalCache) decodeDictObject(instrs[pc++], dict);
+					push(stack, sp++, cache.value(globalEnv, dict));
+					// push the constant
+					push(stack, sp++, instrs[pc++]);
 				}
 				case Instructions.PRINT -> {
-					//throw new UnsupportedOperationException("TODO PRINT");
-					// pop the value on top of the stack
-					var result = pop(stack, --sp);
-					// decode the value
-					var value = decodeAnyValue(result, dict, heap);
-					// find "print" in the global environment
-					var print = (JSObject) globalEnv.lookup("print");
-					// invoke it
-					print.invoke(UNDEFINED, new Object[]{ value });
-					// push undefined on the stack
+					// pop the value, print it and push undefined
+					print(pop(stack, --sp), globalEnv, heap, stack, sp);
 					push(stack, sp++, undefined);
 				}
 				default -> throw new AssertionError("unknown instruction " + instrs[pc - 1]);
@@ -408,21 +710,136 @@ public class StackInterpreter {
 		}
 	}
 
+	// the cold paths of the dispatch loop
+
+	// quicken the LOOKUP or LOOKUP_CONST instruction whose operand is at index pc with a cache of the global
+	private static GlobalCache quickenLookup(int[] instrs, int pc, int quickenedOpcode, Dictionary dict) {
+		var cache = new GlobalCache((String) decodeDictObject(instrs[pc], dict));
+		instrs[pc] = encodeDictObject(cache, dict);
+		instrs[pc - 1] = quickenedOpcode;
+		return cache;
+	}
+
+	// quicken the FUNCALL or TAILCALL instruction whose operand is at index pc with a call site cache
+	private static CallCache quickenCall(int[] instrs, int pc, Dictionary dict) {
+		var cache = new CallCache(instrs[pc]);
+		instrs[pc] = encodeDictObject(cache, dict);
+		instrs[pc - 1] = (instrs[pc - 1] == Instructions.TAILCALL) ? Instructions.TAILCALL_CACHED : Instructions.FUNCALL_CACHED;
+		return cache;
+	}
+
+	static void register(int nameValue, int value, JSObject globalEnv, Dictionary dict, Heap heap) {
+		var name = (String) decodeAnyValue(nameValue, dict, heap.memory());
+		globalEnv.register(name, decodeAnyValue(value, dict, heap.memory()));
+	}
+
+	// invoke the function print of the global environment, an object of the heap is seen as a view
+	static void print(int value, JSObject globalEnv, Heap heap, Memory stack, int sp) {
+		var print = (JSObject) globalEnv.lookup("print");
+		try (var scope = heap.openScope(stack, sp)) {
+			print.invoke(UNDEFINED, new Object[] { scope.decode(value) });
+		}
+	}
+
+	static Failure wrongArgumentCount(JSObject function, Code code, int argumentCount) {
+		return new Failure("wrong number of arguments for " + function.getName() + " expected "
+				+ (code.parameterCount() - 1) + " but was " + argumentCount);
+	}
+
+	private static Failure fieldFailure(String message, int[] instrs, int pc, int value, Dictionary dict, Heap heap) {
+		return new Failure(message + fieldName(instrs, pc, dict) + " of " + decodeAnyValue(value, dict, heap.memory()));
+	}
+
+	// replace the frame at bp of the function of code by the frame of newCode, the receiver and the arguments
+	// at baseArg are moved over the locals and the activation zone is kept, return the stack that may have grown
+	static Memory tailCall(Machine machine, Memory stack, int bp, Code code, Code newCode, int baseArg, int argumentCount) {
+		// save the activation zone of the current function, it may be overwritten by the arguments
+		var currentActivation = bp + code.slotCount();
+		var savedBp = stack.get(currentActivation + BP_OFFSET);
+		var savedPc = stack.get(currentActivation + PC_OFFSET);
+		var savedFunction = stack.get(currentActivation + FUN_OFFSET);
+		var savedCode = stack.get(currentActivation + CODE_OFFSET);
+
+		// check that the stack has enough room for the new frame
+		if (bp + frameSize(newCode) > stack.size()) {
+			stack = machine.stack = growStack(stack, bp + frameSize(newCode));
+		}
+
+		// move the receiver and the arguments over the locals of the current function
+		stack.copy(baseArg - 1, bp, argumentCount + 1);
+
+		var activation = bp + newCode.slotCount();
+		stack.set(activation + BP_OFFSET, savedBp);
+		stack.set(activation + PC_OFFSET, savedPc);
+		stack.set(activation + FUN_OFFSET, savedFunction);
+		stack.set(activation + CODE_OFFSET, savedCode);
+		return stack;
+	}
+
+	private static void traceCall(CallCache cache, Memory stack, int sp, int bp, Dictionary dict, Heap heap) {
+		dumpStack("> funcall dump", stack, sp, bp, dict, heap.memory());
+		var argumentCount = cache.argumentCount();
+		var baseArg = sp - argumentCount;
+		var receiver = decodeAnyValue(stack.get(baseArg + RECEIVER_BASE_ARG_OFFSET), dict, heap.memory());
+		var args = new Object[argumentCount];
+		for (var i = 0; i < argumentCount; i++) {
+			args[i] = decodeAnyValue(stack.get(baseArg + i), dict, heap.memory());
+		}
+		System.err.println("funcall " + cache.function().getName() + " with " + receiver + " " + Arrays.toString(args));
+	}
+
+	private static void profile(Machine machine, Code code, int functionIndex, int pc) {
+		machine.profiler.count(code, functionIndex, pc);
+	}
+
+	private static void traceRet(int result, Memory stack, int sp, int bp, Dictionary dict, Heap heap) {
+		dumpStack("> ret dump", stack, sp, bp, dict, heap.memory());
+		System.err.println("ret " + decodeAnyValue(result, dict, heap.memory()));
+	}
+
+
+	private static int add(Object receiver, int a, int b) {
+		return a + b;
+	}
+	private static int sub(Object receiver, int a, int b) {
+		return a - b;
+	}
+	private static int div(Object receiver, int a, int b) {
+		return a / b;
+	}
+	private static int mul(Object receiver, int a, int b) {
+		return a * b;
+	}
+	private static int rem(Object receiver, int a, int b) {
+		return a % b;
+	}
+
+	private static MethodHandle intNative(String name) {
+		try {
+			return MethodHandles.lookup().findStatic(StackInterpreter.class, name,
+					MethodType.methodType(int.class, Object.class, int.class, int.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
 
 	@SuppressWarnings("unchecked")
 	public static JSObject createGlobalEnv(PrintStream outStream) {
 		JSObject globalEnv = JSObject.newEnv(null);
 		globalEnv.register("global", globalEnv);
 		globalEnv.register("print", JSObject.newFunction("print", (self, receiver, args) -> {
-			System.err.println("print called with " + Arrays.toString(args));
+			if (TRACE) {
+				System.err.println("print called with " + Arrays.toString(args));
+			}
 			outStream.println(Arrays.stream(args).map(Object::toString).collect(Collectors.joining(" ")));
 			return UNDEFINED;
 		}));
-		globalEnv.register("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] + (Integer) args[1]));
-		globalEnv.register("-", JSObject.newFunction("-", (self, receiver, args) -> (Integer) args[0] - (Integer) args[1]));
-		globalEnv.register("/", JSObject.newFunction("/", (self, receiver, args) -> (Integer) args[0] / (Integer) args[1]));
-		globalEnv.register("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
-		globalEnv.register("%", JSObject.newFunction("%", (self, receiver, args) -> (Integer) args[0] % (Integer) args[1]));
+		// the arithmetic operators are int natives, called without boxing
+		globalEnv.register("+", JSObject.newFunction("+", intNative("add")));
+		globalEnv.register("-", JSObject.newFunction("-", intNative("sub")));
+		globalEnv.register("/", JSObject.newFunction("/", intNative("div")));
+		globalEnv.register("*", JSObject.newFunction("*", intNative("mul")));
+		globalEnv.register("%", JSObject.newFunction("%", intNative("rem")));
 
 		globalEnv.register("==", JSObject.newFunction("==", (self, receiver, args) -> args[0].equals(args[1]) ? 1 : 0));
 		globalEnv.register("!=", JSObject.newFunction("!=", (self, receiver, args) -> !args[0].equals(args[1]) ? 1 : 0));
@@ -439,10 +856,14 @@ public class StackInterpreter {
 	}
 
 	public static void interpret(Script script, PrintStream outStream) {
+		interpret(script, outStream, Config.fromSystemProperties());
+	}
+
+	public static void interpret(Script script, PrintStream outStream, Config config) {
 		JSObject globalEnv = createGlobalEnv(outStream);
 		var body = script.body();
 		var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), body, new Dictionary(),
-				globalEnv);
+				globalEnv, config);
 		function.invoke(UNDEFINED, new Object[0]);
 	}
 }
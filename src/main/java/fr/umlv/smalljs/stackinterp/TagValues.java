@@ -1,28 +1,43 @@
 package fr.umlv.smalljs.stackinterp;
 
+import java.util.HashMap;
+
 import fr.umlv.smalljs.rt.JSObject;
 
 public interface TagValues {
 	// every value are stored as 32 bits integer, boolean, small ints, constant (dictionary object) and reference
 	// the suffix indicates the kind of value
-	//    1 -> small integers (SmallInt) or boolean (TRUE/FALSE)
+	//    1 -> small integers (SmallInt), signed 31 bits, or boolean (TRUE/FALSE)
 	//   10 -> dictionary index
 	//   00 -> reference 
+	// the ints that are not small ints are stored in the heap in a box (see BOX_CLASS)
 	
   static boolean isSmallInt(int value) {
     return (value & 0b1) == 0b1;
   }
 
+  // true if the int can be encoded as a small int
+  static boolean fitsSmallInt(int value) {
+    return value >= MIN_SMALL_INT && value <= MAX_SMALL_INT;
+  }
+
   static int encodeSmallInt(int value) {
     return value << 1 | 0b1;
   }
   static int decodeSmallInt(int value) {
-    return value >>> 1;
+    return value >> 1;   // signed
   }
 
   static int encodeDictObject(Object object, Dictionary dict) {
     return dict.index(object) << 2 | 0b10;
   }
+  // encode an object created at runtime, its index can be reclaimed (see Dictionary)
+  static int encodeTransientDictObject(Object object, Dictionary dict) {
+    return dict.transientIndex(object) << 2 | 0b10;
+  }
+  static boolean isDictObject(int value) {
+    return (value & 0b11) == 0b10;
+  }
   static Object decodeDictObject(int value, Dictionary dict) {
     return dict.getConst(value >>> 2);
   }
@@ -35,29 +50,78 @@ public interface TagValues {
     return reference << 2 | 0b00;
   }
   static int decodeReference(int value) {
-    return value >>> 2;
+    return value >>> 2;   // unsigned, a reference is an index in [0, MAX_REFERENCE]
   }
 
-  static Object decodeAnyValue(int tagValue, Dictionary dict, int[] heap) {
+  // true if the object at ref is a box of an int
+  static boolean isBox(int ref, Dictionary dict, Memory heap) {
+    return decodeDictObject(heap.get(ref), dict) == BOX_CLASS;
+  }
+  // the int stored in the box at ref, as two small ints of 16 bits
+  static int unbox(int ref, Memory heap) {
+    var high = decodeSmallInt(heap.get(ref + OBJECT_HEADER_SIZE));
+    var low = decodeSmallInt(heap.get(ref + OBJECT_HEADER_SIZE + 1));
+    return high << 16 | low;
+  }
+
+  // decode a value, an object of the heap is copied (see HandleScope for a view without copy)
+  static Object decodeAnyValue(int tagValue, Dictionary dict, Memory heap) {
+    return decodeAnyValue(tagValue, dict, heap, new HashMap<>());
+  }
+  private static Object decodeAnyValue(int tagValue, Dictionary dict, Memory heap, HashMap<Integer, JSObject> copies) {
     if (isSmallInt(tagValue)) {
       return decodeSmallInt(tagValue);
     }
     if (isReference(tagValue)) {
       var ref = decodeReference(tagValue);
-      var clazz = (JSObject) decodeDictObject(heap[ref], dict);
-      return clazz.mirror(offset -> decodeAnyValue(heap[ref + OBJECT_HEADER_SIZE + (int)offset], dict, heap));
+      if (isBox(ref, dict, heap)) {
+        return unbox(ref, heap);
+      }
+      var copy = copies.get(ref);
+      if (copy != null) {  // cycle
+        return copy;
+      }
+      var clazz = (JSObject) decodeDictObject(heap.get(ref), dict);
+      var object = JSObject.newObject(null);
+      copies.put(ref, object);
+      clazz.forEach((key, offset) ->
+          object.register(key, decodeAnyValue(heap.get(ref + OBJECT_HEADER_SIZE + (int) offset), dict, heap, copies)));
+      return object;
     }
     return decodeDictObject(tagValue, dict);
   }
+  // encode a value, the ints that are not small ints are stored in the dictionary
+  // (see HandleScope.encode() to box them in the heap)
   static int encodeAnyValue(Object object, Dictionary dict) {
-  	if (object instanceof Integer smallInt && smallInt >= 0) {
+    if (object instanceof Integer smallInt && fitsSmallInt(smallInt)) {
       return encodeSmallInt(smallInt);
     }
     return encodeDictObject(object, dict);
   }
+  static int encodeTransientValue(Object object, Dictionary dict) {
+    if (object instanceof Integer smallInt && fitsSmallInt(smallInt)) {
+      return encodeSmallInt(smallInt);
+    }
+    return encodeTransientDictObject(object, dict);
+  }
+
+  int MIN_SMALL_INT = -(1 << 30);
+  int MAX_SMALL_INT = (1 << 30) - 1;
 
   int TRUE = encodeSmallInt(1);
   int FALSE = encodeSmallInt(0);
   
   int OBJECT_HEADER_SIZE = 2;  // CLASS_DESCRIPTOR + GC_POINTER
+
+  int MAX_REFERENCE = (1 << 30) - 1;  // 30 bits, a heap of 4G bytes
+
+  // class of the boxes, the two fields are the high and the low 16 bits of the int as small ints
+  JSObject BOX_CLASS = newBoxClass();
+
+  private static JSObject newBoxClass() {
+    var clazz = JSObject.newObject(null);
+    clazz.register("high", 0);
+    clazz.register("low", 1);
+    return clazz;
+  }
 }
@@ -0,0 +1,168 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.ast.Script;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+
+// benchmark of the dispatches of the tagged representation (see Config.Dispatch), not run by the tests
+//   mvn -q test-compile
+//   java -cp target/classes:target/test-classes:lib/tatoo-runtime.jar:<asm jars> \
+//        fr.umlv.smalljs.stackinterp.DispatchBenchmark [samples directory]
+//
+// The rounds run each workload with each dispatch in turn, so all dispatches get the same warm-up
+// and the same JIT state, the median time of the measured rounds is printed.
+// A run includes the translation of the instructions of the functions, not the parsing.
+// The samples run in a few microseconds so they are measured together, as one workload,
+// fibo and objects are big enough to measure the dispatch.
+// The sizes of the instructions of the codes, as an int[] and as a byte[] (see CompactCode), are printed first.
+public final class DispatchBenchmark {
+  private static final int WARMUP_ROUNDS = 30;
+  private static final int ROUNDS = 30;
+  private static final List<Config.Dispatch> DISPATCHES = List.of(Config.Dispatch.SWITCH, Config.Dispatch.CLOSURE,
+      Config.Dispatch.COMPACT);
+
+  private static final String FIBO = """
+      function fibo(n) {
+        if (n < 2) {
+          return 1;
+        } else {
+          return fibo(n - 1) + fibo(n - 2);
+        }
+      }
+      print(fibo(25));
+      """;
+
+  private static final String OBJECTS = """
+      function norm(p) {
+        return p.x * p.x + p.y * p.y;
+      }
+      function loop(n, acc) {
+        if (n == 0) {
+          return acc;
+        } else {
+          return loop(n - 1, acc + norm({ x: n % 7, y: n % 5 }));
+        }
+      }
+      print(loop(100000, 0));
+      """;
+
+  private record Workload(String name, List<Script> scripts) {}
+
+  private static Script parse(String code) {
+    return createScript(new StringReader(code));
+  }
+
+  // the samples that run with all the dispatches
+  private static List<Script> samples(Path directory, PrintStream out) throws IOException {
+    var samples = new ArrayList<Script>();
+    try (Stream<Path> paths = Files.list(directory)) {
+      for (var path : paths.filter(p -> p.toString().endsWith(".js")).sorted().toList()) {
+        var script = createScript(Files.newBufferedReader(path));
+        try {
+          for (var dispatch : DISPATCHES) {
+            StackInterpreter.interpret(script, out, Config.DEFAULT.withDispatch(dispatch));
+          }
+          samples.add(script);
+        } catch (RuntimeException e) {
+          System.err.println("skip " + path + ": " + e.getMessage().lines().findFirst().orElse(""));
+        }
+      }
+    }
+    return samples;
+  }
+
+  // the sizes in bytes of the instructions of the main function and of the global functions called by the workload,
+  // as an int[] and as a byte[]
+  private static int[] codeSizes(Workload workload, PrintStream out) {
+    var config = Config.DEFAULT.withDispatch(Config.Dispatch.COMPACT);
+    var sizes = new int[2];
+    for (var script : workload.scripts()) {
+      var globalEnv = StackInterpreter.createGlobalEnv(out);
+      var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), new Dictionary(),
+          globalEnv, config);
+      function.invoke(UNDEFINED, new Object[0]);
+      var codes = new ArrayList<Code>();
+      codes.add((Code) function.lookup("__code__"));
+      globalEnv.forEach((name, value) -> {
+        // the functions that are not called are not compiled (see InstrRewriter.LazyCode)
+        if (value instanceof JSObject global && global.lookup("__code__") instanceof Code code) {
+          codes.add(code);
+        }
+      });
+      for (var code : codes) {
+        sizes[0] += code.instrs().length * Integer.BYTES;
+        sizes[1] += code.compact().bytes().length;
+      }
+    }
+    return sizes;
+  }
+
+  private static long run(Workload workload, Config config, PrintStream out) {
+    var start = System.nanoTime();
+    for (var script : workload.scripts()) {
+      StackInterpreter.interpret(script, out, config);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static double median(long[] times) {
+    var sorted = times.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2] / 1_000_000.0;
+  }
+
+  public static void main(String[] args) throws IOException {
+    var out = new PrintStream(OutputStream.nullOutputStream());
+    var directory = Path.of(args.length == 0 ? "samples" : args[0]);
+    var workloads = List.of(
+        new Workload("samples", samples(directory, out)),
+        new Workload("fibo", List.of(parse(FIBO))),
+        new Workload("objects", List.of(parse(OBJECTS))));
+
+    System.out.printf("%-10s%10s%10s%n", "bytes", "int[]", "byte[]");
+    for (var workload : workloads) {
+      var sizes = codeSizes(workload, out);
+      System.out.printf("%-10s%10d%10d%n", workload.name(), sizes[0], sizes[1]);
+    }
+    System.out.println();
+
+    var times = new long[workloads.size()][DISPATCHES.size()][ROUNDS];
+    for (var round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+      for (var w = 0; w < workloads.size(); w++) {
+        for (var d = 0; d < DISPATCHES.size(); d++) {
+          var time = run(workloads.get(w), Config.DEFAULT.withDispatch(DISPATCHES.get(d)), out);
+          if (round >= WARMUP_ROUNDS) {
+            times[w][d][round - WARMUP_ROUNDS] = time;
+          }
+        }
+      }
+    }
+
+    System.out.printf("%-10s", "ms");
+    for (var dispatch : DISPATCHES) {
+      System.out.printf("%10s", dispatch);
+    }
+    System.out.println();
+    for (var w = 0; w < workloads.size(); w++) {
+      System.out.printf("%-10s", workloads.get(w).name());
+      for (var d = 0; d < DISPATCHES.size(); d++) {
+        System.out.printf("%10.2f", median(times[w][d]));
+      }
+      System.out.println();
+    }
+  }
+}
@@ -27,6 +27,9 @@ import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterGCTests {
@@ -39,174 +42,417 @@ public class StackInterpreterGCTests {
     return fun;
   }
   private static String execute(Code mainCode, Dictionary dict) {
+    return execute(mainCode, dict, Config.DEFAULT.withNurserySize(32).withHeapSize(96, 4096));
+  }
+  private static String execute(Code mainCode, Dictionary dict, Config config) {
     var outStream = new ByteArrayOutputStream(8192);
     var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
     var mainFun = newMainFunction(mainCode);
     globalEnv.register("main", mainFun);
-    StackInterpreter.execute(mainFun, dict, globalEnv);
+    StackInterpreter.execute(mainFun, dict, globalEnv, config);
     return outStream.toString(UTF_8).replace("\r\n", "\n");
   }
 
-//  @Tag("Q2") @Test
-//  public void gcTest() {
-//  	var dict = new Dictionary();
-//  	var pointClass = JSObject.newObject(null);
-//  	pointClass.register("x", 0);
-//  	pointClass.register("y", 1);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//  	  /* 8:*/ CONST, encodeSmallInt(1),
-//  	  /*10:*/ CONST, encodeSmallInt(2),
-//  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//  	  /*14:*/ POP,
-//
-//  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*19:*/ LOAD, 1,
-//  	  /*21:*/ CONST, encodeSmallInt(1),
-//  	  /*23:*/ FUNCALL, 2,
-//  	  /*25:*/ STORE, 1,
-//
-//  	  /*27:*/ GOTO, 4,
-//
-//  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 2), dict);
-//  }
-//
-//  @Tag("Q3") @Test
-//  public void gcTestRewriteField() {
-//  	var dict = new Dictionary();
-//  	var clazz = JSObject.newObject(null);
-//  	clazz.register("field", 0);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(21),
-//    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 4:*/ POP,  // should be GCed
-//
-//    	/* 5:*/ CONST, encodeSmallInt(42),
-//    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 9:*/ STORE, 2, // should not be GCed
-//
-//    	/*11:*/ LOAD, 2,
-//    	/*13:*/ CONST, encodeSmallInt(84),
-//    	/*15:*/ NEW, encodeDictObject(clazz, dict),
-//    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
-//
-//  		/*19:*/ CONST, encodeSmallInt(100),
-//  	  /*21:*/ STORE, 1,
-//
-//  	  /*23:*/ LOAD, 1,
-//  	  /*25:*/ JUMP_IF_FALSE, 46,
-//
-//  	  /*27:*/ LOAD, 2,
-//  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
-//  	  /*31:*/ POP,  // should be GCed
-//
-//  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*36:*/ LOAD, 1,
-//  	  /*38:*/ CONST, encodeSmallInt(1),
-//  	  /*40:*/ FUNCALL, 2,
-//  	  /*42:*/ STORE, 1,
-//
-//  	  /*44:*/ GOTO, 23,
-//
-//  	  /*46:*/ LOAD, 2,
-//  	  /*48:*/ GET, encodeDictObject("field", dict),
-//  	  /*50:*/ GET, encodeDictObject("field", dict),
-//  	  /*52:*/ PRINT,
-//
-//  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
-//  }
-//
-//  @Tag("Q4") @Test
-//  public void gcTestWithFields() {
-//  	var dict = new Dictionary();
-//  	var pointClass = JSObject.newObject(null);
-//  	pointClass.register("x", 0);
-//  	pointClass.register("y", 1);
-//  	var emptyClass = JSObject.newObject(null);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//
-//  	  /*14:*/ POP,
-//
-//  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*19:*/ LOAD, 1,
-//  	  /*21:*/ CONST, encodeSmallInt(1),
-//  	  /*23:*/ FUNCALL, 2,
-//  	  /*25:*/ STORE, 1,
-//
-//  	  /*27:*/ GOTO, 4,
-//
-//  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 2), dict);
-//  }
-//
-//  @Tag("Q5") @Test
-//  public void gcTestLikedList() {
-//  	var dict = new Dictionary();
-//  	var linkClass = JSObject.newObject(null);
-//  	linkClass.register("value", 0);
-//  	linkClass.register("next", 1);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 60,
-//  	  /* 8:*/ CONST, encodeSmallInt(10),
-//  	  /*10:*/ STORE, 2,
-//  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*14:*/ STORE, 3,
-//  	  /*16:*/ LOAD, 2,
-//  	  /*18:*/ JUMP_IF_FALSE, 42,
-//  	  /*20:*/ LOAD, 3,
-//  	  /*22:*/ LOAD, 2,
-//  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
-//  	  /*26:*/ STORE, 3,
-//
-//  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*32:*/ LOAD, 2,
-//  	  /*34:*/ CONST, encodeSmallInt(1),
-//  	  /*36:*/ FUNCALL, 2,
-//  	  /*38:*/ STORE, 2,
-//
-//  	  /*40:*/ GOTO, 16,
-//  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
-//  	  /*44:*/ STORE, 3,
-//
-//  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*50:*/ LOAD, 1,
-//  	  /*52:*/ CONST, encodeSmallInt(1),
-//  	  /*54:*/ FUNCALL, 2,
-//  	  /*56:*/ STORE, 1,
-//  	  /*58:*/ GOTO, 4,
-//  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*62:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 4), dict);
-//  }
+  @Tag("Q2") @Test
+  public void gcTest() {
+  	var dict = new Dictionary();
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 29,
+
+  	  /* 8:*/ CONST, encodeSmallInt(1),
+  	  /*10:*/ CONST, encodeSmallInt(2),
+  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
+  	  /*14:*/ POP,
+
+  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*19:*/ LOAD, 1,
+  	  /*21:*/ CONST, encodeSmallInt(1),
+  	  /*23:*/ FUNCALL, 2,
+  	  /*25:*/ STORE, 1,
+
+  	  /*27:*/ GOTO, 4,
+
+  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    execute(new Code(instrs, 1, 2), dict);
+  }
+
+  @Tag("Q3") @Test
+  public void gcTestRewriteField() {
+  	var dict = new Dictionary();
+  	var clazz = JSObject.newObject(null);
+  	clazz.register("field", 0);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(21),
+    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 4:*/ POP,  // should be GCed
+
+    	/* 5:*/ CONST, encodeSmallInt(42),
+    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 9:*/ STORE, 2, // should not be GCed
+
+    	/*11:*/ LOAD, 2,
+    	/*13:*/ CONST, encodeSmallInt(84),
+    	/*15:*/ NEW, encodeDictObject(clazz, dict),
+    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
+
+  		/*19:*/ CONST, encodeSmallInt(100),
+  	  /*21:*/ STORE, 1,
+
+  	  /*23:*/ LOAD, 1,
+  	  /*25:*/ JUMP_IF_FALSE, 46,
+
+  	  /*27:*/ LOAD, 2,
+  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
+  	  /*31:*/ POP,  // should be GCed
+
+  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*36:*/ LOAD, 1,
+  	  /*38:*/ CONST, encodeSmallInt(1),
+  	  /*40:*/ FUNCALL, 2,
+  	  /*42:*/ STORE, 1,
+
+  	  /*44:*/ GOTO, 23,
+
+  	  /*46:*/ LOAD, 2,
+  	  /*48:*/ GET, encodeDictObject("field", dict),
+  	  /*50:*/ GET, encodeDictObject("field", dict),
+  	  /*52:*/ PRINT,
+
+  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
+  }
+
+  @Tag("Q4") @Test
+  public void gcTestWithFields() {
+  	var dict = new Dictionary();
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	var emptyClass = JSObject.newObject(null);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 29,
+
+  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
+
+  	  /*14:*/ POP,
+
+  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*19:*/ LOAD, 1,
+  	  /*21:*/ CONST, encodeSmallInt(1),
+  	  /*23:*/ FUNCALL, 2,
+  	  /*25:*/ STORE, 1,
+
+  	  /*27:*/ GOTO, 4,
+
+  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    execute(new Code(instrs, 1, 2), dict);
+  }
+
+  @Tag("Q5") @Test
+  public void gcTestLikedList() {
+  	var dict = new Dictionary();
+  	var linkClass = JSObject.newObject(null);
+  	linkClass.register("value", 0);
+  	linkClass.register("next", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 60,
+  	  /* 8:*/ CONST, encodeSmallInt(10),
+  	  /*10:*/ STORE, 2,
+  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*14:*/ STORE, 3,
+  	  /*16:*/ LOAD, 2,
+  	  /*18:*/ JUMP_IF_FALSE, 42,
+  	  /*20:*/ LOAD, 3,
+  	  /*22:*/ LOAD, 2,
+  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
+  	  /*26:*/ STORE, 3,
+
+  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*32:*/ LOAD, 2,
+  	  /*34:*/ CONST, encodeSmallInt(1),
+  	  /*36:*/ FUNCALL, 2,
+  	  /*38:*/ STORE, 2,
+
+  	  /*40:*/ GOTO, 16,
+  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
+  	  /*44:*/ STORE, 3,
+
+  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*50:*/ LOAD, 1,
+  	  /*52:*/ CONST, encodeSmallInt(1),
+  	  /*54:*/ FUNCALL, 2,
+  	  /*56:*/ STORE, 1,
+  	  /*58:*/ GOTO, 4,
+  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*62:*/ RET
+  	};
+    execute(new Code(instrs, 1, 4), dict);
+  }
+
+  private static int[] linkedListInstrs(JSObject linkClass, Dictionary dict) {
+    return new int[] {
+      /* 0:*/ CONST, encodeSmallInt(200),
+      /* 2:*/ STORE, 1,
+      /* 4:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /* 6:*/ STORE, 2,
+      /* 8:*/ LOAD, 1,
+      /*10:*/ JUMP_IF_FALSE, 34,
+      /*12:*/ LOAD, 1,
+      /*14:*/ LOAD, 2,
+      /*16:*/ NEW, encodeDictObject(linkClass, dict),
+      /*18:*/ STORE, 2,  // the list stays alive
+
+      /*20:*/ LOOKUP, encodeDictObject("-", dict),
+      /*22:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*24:*/ LOAD, 1,
+      /*26:*/ CONST, encodeSmallInt(1),
+      /*28:*/ FUNCALL, 2,
+      /*30:*/ STORE, 1,
+      /*32:*/ GOTO, 8,
+
+      /*34:*/ LOAD, 2,
+      /*36:*/ GET, encodeDictObject("value", dict),
+      /*38:*/ PRINT,
+      /*39:*/ POP,
+      /*40:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*42:*/ RET
+    };
+  }
+
+  @Tag("Q6") @Test
+  public void gcTestHeapGrows() {
+    var dict = new Dictionary();
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("value", 0);
+    linkClass.register("next", 1);
+    assertEquals("1\n", execute(new Code(linkedListInstrs(linkClass, dict), 1, 3), dict));
+  }
+
+  @Tag("Q6") @Test
+  public void gcTestOutOfMemory() {
+    var dict = new Dictionary();
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("value", 0);
+    linkClass.register("next", 1);
+    assertThrows(Failure.class,
+        () -> execute(new Code(linkedListInstrs(linkClass, dict), 1, 3), dict, Config.DEFAULT.withNurserySize(32).withHeapSize(96, 256)));
+  }
+
+  private static int[] writeBarrierInstrs(JSObject clazz, Dictionary dict) {
+    return new int[] {
+      /* 0:*/ CONST, encodeSmallInt(21),
+      /* 2:*/ NEW, encodeDictObject(clazz, dict),
+      /* 4:*/ STORE, 2,  // promoted in the old space by the loop
+
+      /* 6:*/ CONST, encodeSmallInt(50),
+      /* 8:*/ STORE, 1,
+      /*10:*/ LOAD, 1,
+      /*12:*/ JUMP_IF_FALSE, 33,
+      /*14:*/ CONST, encodeSmallInt(0),
+      /*16:*/ NEW, encodeDictObject(clazz, dict),
+      /*18:*/ POP,
+      /*19:*/ LOOKUP, encodeDictObject("-", dict),
+      /*21:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*23:*/ LOAD, 1,
+      /*25:*/ CONST, encodeSmallInt(1),
+      /*27:*/ FUNCALL, 2,
+      /*29:*/ STORE, 1,
+      /*31:*/ GOTO, 10,
+
+      /*33:*/ LOAD, 2,
+      /*35:*/ CONST, encodeSmallInt(84),
+      /*37:*/ NEW, encodeDictObject(clazz, dict),
+      /*39:*/ PUT, encodeDictObject("field", dict),  // an old object references a young object
+
+      /*41:*/ CONST, encodeSmallInt(50),
+      /*43:*/ STORE, 1,
+      /*45:*/ LOAD, 1,
+      /*47:*/ JUMP_IF_FALSE, 68,
+      /*49:*/ CONST, encodeSmallInt(0),
+      /*51:*/ NEW, encodeDictObject(clazz, dict),
+      /*53:*/ POP,
+      /*54:*/ LOOKUP, encodeDictObject("-", dict),
+      /*56:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*58:*/ LOAD, 1,
+      /*60:*/ CONST, encodeSmallInt(1),
+      /*62:*/ FUNCALL, 2,
+      /*64:*/ STORE, 1,
+      /*66:*/ GOTO, 45,
+
+      /*68:*/ LOAD, 2,
+      /*70:*/ GET, encodeDictObject("field", dict),
+      /*72:*/ GET, encodeDictObject("field", dict),
+      /*74:*/ PRINT,
+      /*75:*/ POP,
+      /*76:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*78:*/ RET
+    };
+  }
+
+  @Tag("Q7") @Test
+  public void gcTestWriteBarrier() {
+    var dict = new Dictionary();
+    var clazz = JSObject.newObject(null);
+    clazz.register("field", 0);
+    assertEquals("84\n", execute(new Code(writeBarrierInstrs(clazz, dict), 1, 3), dict));
+  }
+
+  @Tag("Q7") @Test
+  public void gcTestObjectBiggerThanTheNursery() {
+    var dict = new Dictionary();
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("value", 0);
+    linkClass.register("next", 1);
+    assertEquals("1\n", execute(new Code(linkedListInstrs(linkClass, dict), 1, 3), dict,
+        Config.DEFAULT.withNurserySize(3).withHeapSize(96, 4096)));
+  }
+
+  @Tag("Q8") @Test
+  public void gcTestMarkings() {
+    for (var marking : Config.Marking.values()) {
+      var config = Config.DEFAULT.withNurserySize(32).withHeapSize(96, 4096).withMarking(marking);
+      var dict = new Dictionary();
+      var linkClass = JSObject.newObject(null);
+      linkClass.register("value", 0);
+      linkClass.register("next", 1);
+      assertEquals("1\n", execute(new Code(linkedListInstrs(linkClass, dict), 1, 3), dict, config), marking.name());
+      var clazz = JSObject.newObject(null);
+      clazz.register("field", 0);
+      assertEquals("84\n", execute(new Code(writeBarrierInstrs(clazz, dict), 1, 3), dict, config), marking.name());
+    }
+  }
+
+  @Tag("Q9") @Test
+  public void gcTestStorages() {
+    for (var storage : Config.Storage.values()) {
+      var config = Config.DEFAULT.withNurserySize(32).withHeapSize(96, 4096).withStorage(storage);
+      var dict = new Dictionary();
+      var linkClass = JSObject.newObject(null);
+      linkClass.register("value", 0);
+      linkClass.register("next", 1);
+      assertEquals("1\n", execute(new Code(linkedListInstrs(linkClass, dict), 1, 3), dict, config), storage.name());
+      var clazz = JSObject.newObject(null);
+      clazz.register("field", 0);
+      assertEquals("84\n", execute(new Code(writeBarrierInstrs(clazz, dict), 1, 3), dict, config), storage.name());
+    }
+  }
+
+  @Tag("Q10") @Test
+  public void gcTestHandlesAreRoots() {
+    for (var marking : Config.Marking.values()) {
+      var dict = new Dictionary();
+      var linkClass = JSObject.newObject(null);
+      linkClass.register("value", 0);
+      linkClass.register("next", 1);
+      var vLinkClass = encodeDictObject(linkClass, dict);
+      var heap = new Heap(dict, Config.DEFAULT.withNurserySize(32).withHeapSize(96, 4096).withMarking(marking));
+      var stack = Memory.allocate(Config.Storage.ARRAY, 16);
+      var undefined = encodeDictObject(UNDEFINED, dict);
+
+      var ref = heap.allocate(vLinkClass, 2, stack, 0);
+      heap.memory().set(ref + TagValues.OBJECT_HEADER_SIZE, encodeSmallInt(42));
+      heap.memory().set(ref + TagValues.OBJECT_HEADER_SIZE + 1, undefined);
+      try (var scope = heap.openScope(stack, 0)) {
+        var view = (HeapView) scope.decode(TagValues.encodeReference(ref));
+        // the object is only referenced by the handle of the view
+        for (var i = 0; i < 1_000; i++) {
+          var garbage = heap.allocate(vLinkClass, 2, stack, 0);
+          heap.memory().set(garbage + TagValues.OBJECT_HEADER_SIZE, encodeSmallInt(i));
+          heap.memory().set(garbage + TagValues.OBJECT_HEADER_SIZE + 1, undefined);
+        }
+        assertEquals(42, view.get("value"), marking.name());
+        view.set("value", 43);
+        assertEquals(43, view.get("value"), marking.name());
+      }
+      assertTrue(heap.stats().toString().contains("minor"));
+    }
+  }
+
+  @Tag("Q10") @Test
+  public void gcTestViewOutsideOfItsScope() {
+    var dict = new Dictionary();
+    var clazz = JSObject.newObject(null);
+    clazz.register("field", 0);
+    var heap = new Heap(dict, Config.DEFAULT);
+    var stack = Memory.allocate(Config.Storage.ARRAY, 16);
+    var ref = heap.allocate(encodeDictObject(clazz, dict), 1, stack, 0);
+    heap.memory().set(ref + TagValues.OBJECT_HEADER_SIZE, encodeSmallInt(1));
+    HeapView view;
+    try (var scope = heap.openScope(stack, 0)) {
+      view = (HeapView) scope.decode(TagValues.encodeReference(ref));
+      assertEquals(1, view.get("field"));
+    }
+    assertThrows(Failure.class, () -> view.get("field"));
+  }
+
+  @Tag("Q11") @Test
+  public void gcTestDictionaryIndexes() {
+    var dict = new Dictionary();
+    var index = dict.index("hello");
+    assertEquals(index, dict.index(new String("hello")));
+    assertEquals(index, dict.transientIndex("hello"));
+    var object = JSObject.newObject(null);
+    assertNotEquals(dict.index(object), dict.index(JSObject.newObject(null)));
+    assertEquals(dict.index(object), dict.index(object));
+    for (var i = 0; i < 1_000; i++) {
+      assertEquals("value " + i, dict.getConst(dict.index("value " + i)));
+    }
+    assertEquals("hello", dict.getConst(index));
+  }
+
+  @Tag("Q11") @Test
+  public void gcTestReclaimDictionary() {
+    for (var marking : Config.Marking.values()) {
+      var dict = new Dictionary();
+      var boxClass = JSObject.newObject(null);
+      boxClass.register("value", 0);
+      var vBoxClass = encodeDictObject(boxClass, dict);
+      var config = Config.DEFAULT.withNurserySize(32).withHeapSize(96, 4096).withMarking(marking).withReclaimDictionary(true);
+      var heap = new Heap(dict, config);
+      var stack = Memory.allocate(Config.Storage.ARRAY, 16);
+
+      // the box on the stack keeps its transient string alive
+      var ref = heap.allocate(vBoxClass, 1, stack, 0);
+      heap.memory().set(ref + TagValues.OBJECT_HEADER_SIZE, TagValues.encodeTransientValue("kept " + 42, dict));
+      stack.set(0, TagValues.encodeReference(ref));
+
+      // the last box is also on the stack, so the boxes are promoted before becoming garbage
+      for (var i = 0; i < 1_000; i++) {
+        var garbage = heap.allocate(vBoxClass, 1, stack, 2);
+        heap.memory().set(garbage + TagValues.OBJECT_HEADER_SIZE, TagValues.encodeTransientValue("garbage " + i, dict));
+        stack.set(1, TagValues.encodeReference(garbage));
+      }
+      assertTrue(heap.stats().reclaimedCount() > 0, marking.name());
+      assertTrue(dict.count() < 1_000, marking.name());
+      var box = TagValues.decodeReference(stack.get(0));
+      assertEquals("kept 42", TagValues.decodeAnyValue(heap.memory().get(box + TagValues.OBJECT_HEADER_SIZE), dict, heap.memory()), marking.name());
+    }
+  }
 }
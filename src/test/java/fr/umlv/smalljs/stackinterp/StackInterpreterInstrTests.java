@@ -1193,4 +1193,47 @@ public class StackInterpreterInstrTests {
   	assertEquals("hello 42\nhello 42\n",
         execute(new Code(instrs, 1, 2), dict));
   }
+
+  @Tag("Q18") @Test
+  public void maxStack() {
+    // print(1 == 2 ? 3 : 4)
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOOKUP, encodeDictObject("print", dict),
+        /* 2:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /* 4:*/ CONST, encodeSmallInt(1),
+        /* 6:*/ JUMP_IF_FALSE, 12,
+        /* 8:*/ CONST, encodeSmallInt(3),
+        /*10:*/ GOTO, 14,
+        /*12:*/ CONST, encodeSmallInt(4),
+        /*14:*/ FUNCALL, 1,
+        /*16:*/ RET
+    };
+    assertEquals(3, InstrRewriter.maxStack(instrs, dict));
+    assertEquals("3\n", execute(new Code(instrs, 1, 1, InstrRewriter.maxStack(instrs, dict)), dict));
+  }
+
+  @Tag("Q18") @Test
+  public void maxStackUnderflow() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(1),
+        SWAP,
+        RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> InstrRewriter.maxStack(instrs, dict));
+  }
+
+  @Tag("Q18") @Test
+  public void maxStackInconsistentHeights() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ CONST, encodeSmallInt(1),
+        /* 2:*/ JUMP_IF_FALSE, 8,
+        /* 4:*/ CONST, encodeSmallInt(2),
+        /* 6:*/ CONST, encodeSmallInt(3),
+        /* 8:*/ RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> InstrRewriter.maxStack(instrs, dict));
+  }
 }
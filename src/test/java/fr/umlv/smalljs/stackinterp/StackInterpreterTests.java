@@ -1,26 +1,45 @@
 package fr.umlv.smalljs.stackinterp;
 
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterTests {
   private static String execute(String code) {
+    return execute(code, Config.DEFAULT);
+  }
+  private static String execute(String code, Config config) {
     var script = createScript(new StringReader(code));
     var outStream = new ByteArrayOutputStream(8192);
-    StackInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8));
+    StackInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8), config);
     return outStream.toString(UTF_8).replace("\r\n", "\n");
   }
 
@@ -396,4 +415,999 @@ public class StackInterpreterTests {
                 object.foo(42);
                 """));
   }
+
+  @Tag("Q18") @Test
+  public void callADeepRecursiveFunction() {
+    assertEquals("300\n", execute("""
+            function count(n) {
+              if (n == 0) {
+                return 0;
+              } else {
+                return count(n - 1) + 1;
+              }
+            }
+            print(count(300));
+            """));
+  }
+
+  @Tag("Q18") @Test
+  public void callAnInfiniteRecursiveFunction() {
+    var failure = assertThrows(Failure.class, () -> execute("""
+            function loop(n) {
+              return loop(n) + 1;
+            }
+            loop(0);
+            """, Config.DEFAULT.withMaxCallDepth(100)));
+    assertTrue(failure.getMessage().contains("at function loop"), failure.getMessage());
+  }
+
+  @Tag("Q19") @Test
+  public void smallIntOperators() {
+    assertEquals("13 7 30 3 1\n", execute("print(10 + 3, 10 - 3, 10 * 3, 10 / 3, 10 % 3)\n"));
+    assertEquals("1 1 0 1 0\n", execute("print(2 < 3, 2 <= 2, 2 > 3, 3 == 3, 3 != 3)\n"));
+  }
+
+  @Tag("Q19") @Test
+  public void smallIntOperatorsFallback() {
+    assertEquals("-2147483648\n", execute("print(2147483647 + 1)\n"));
+    assertEquals("-1\n", execute("print(2 - 3)\n"));
+    assertEquals("1 0\n", execute("print('foo' == 'foo', 'foo' == 'bar')\n"));
+    assertThrows(ArithmeticException.class, () -> execute("print(1 / 0)\n"));
+  }
+
+  @Tag("Q19") @Test
+  public void smallIntOperatorsRedefined() {
+    var script = createScript(new StringReader("""
+            function add(a, b) {
+              return a + b;
+            }
+            print(add(2, 3));
+            redefine();
+            print(add(2, 3));
+            """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    globalEnv.register("redefine", JSObject.newFunction("redefine", (self, receiver, args) -> {
+      globalEnv.register("+", JSObject.newFunction("+", (_1, _2, args2) -> (Integer) args2[0] * (Integer) args2[1]));
+      return UNDEFINED;
+    }));
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), new Dictionary(),
+        globalEnv, Config.DEFAULT);
+    function.invoke(UNDEFINED, new Object[0]);
+    assertEquals("5\n6\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Tag("Q20") @Test
+  public void peepholeSuperInstructions() {
+    var instrs = new int[] {
+        Instructions.LOAD, 1, Instructions.LOAD, 2,                    // 0
+        Instructions.JUMP_IF_FALSE, 11,                                // 4
+        Instructions.STORE, 1, Instructions.LOAD, 1,                   // 6
+        Instructions.POP,                                              // 10
+        Instructions.CONST, 3, Instructions.RET                        // 11
+    };
+    assertArrayEquals(new int[] {
+        Instructions.LOAD_LOAD, 1, 2,                                  // 0
+        Instructions.JUMP_IF_FALSE, 9,                                 // 3
+        Instructions.STORE_LOAD, 1, 1,                                 // 5
+        Instructions.POP,                                              // 8
+        Instructions.CONST_RET, 3                                      // 9
+    }, Peephole.optimize(instrs));
+  }
+
+  @Tag("Q20") @Test
+  public void peepholeDoesNotFuseAJumpTarget() {
+    var instrs = new int[] {
+        Instructions.LOAD, 1,                                          // 0
+        Instructions.GOTO, 4,                                          // 2
+        Instructions.LOAD, 2,                                          // 4
+        Instructions.RET                                               // 6
+    };
+    assertArrayEquals(instrs, Peephole.optimize(instrs));
+  }
+
+  @Tag("Q20") @Test
+  public void peepholeOnAndOff() {
+    var code = """
+            function fibo(n) {
+              if (n < 2) {
+                return 1
+              } else {
+                var a = fibo(n - 1);
+                var b = fibo(n - 2);
+                return a + b
+              }
+            }
+            print(fibo(10))
+            """;
+    assertEquals("89\n", execute(code, Config.DEFAULT.withPeephole(true)));
+    assertEquals("89\n", execute(code, Config.DEFAULT.withPeephole(false)));
+  }
+
+  @Tag("Q21") @Test
+  public void inlineCacheMonomorphic() {
+    assertEquals("1\n2\n3\n", execute("""
+            function getX(o) {
+              return o.x;
+            }
+            function setX(o, v) {
+              o.x = v;
+            }
+            var o = { x: 1 };
+            print(getX(o));
+            setX(o, 2);
+            print(getX(o));
+            setX(o, 3);
+            print(getX(o));
+            """));
+  }
+
+  @Tag("Q21") @Test
+  public void inlineCachePolymorphicAndMegamorphic() {
+    assertEquals("1 2 3 4 5 6 undefined\n10 20 30 40 50 60\n", execute("""
+            function getX(o) {
+              return o.x;
+            }
+            function setX(o, v) {
+              o.x = v;
+            }
+            var o1 = { x: 1 };
+            var o2 = { a: 0, x: 2 };
+            var o3 = { a: 0, b: 0, x: 3 };
+            var o4 = { a: 0, b: 0, c: 0, x: 4 };
+            var o5 = { a: 0, b: 0, c: 0, d: 0, x: 5 };
+            var o6 = { a: 0, b: 0, c: 0, d: 0, e: 0, x: 6 };
+            var o7 = { y: 7 };
+            print(getX(o1), getX(o2), getX(o3), getX(o4), getX(o5), getX(o6), getX(o7));
+            setX(o1, 10);
+            setX(o2, 20);
+            setX(o3, 30);
+            setX(o4, 40);
+            setX(o5, 50);
+            setX(o6, 60);
+            print(getX(o1), getX(o2), getX(o3), getX(o4), getX(o5), getX(o6));
+            """));
+  }
+
+  @Tag("Q21") @Test
+  public void inlineCacheQuickening() {
+    var dict = new Dictionary();
+    var classes = new int[FieldCache.POLYMORPHIC_SIZE + 1];
+    for (var i = 0; i < classes.length; i++) {
+      var clazz = JSObject.newObject(null);
+      for (var j = 0; j < i; j++) {
+        clazz.register("field" + j, j);
+      }
+      clazz.register("x", i);
+      classes[i] = TagValues.encodeDictObject(clazz, dict);
+    }
+    var instrs = new int[] { Instructions.GET, TagValues.encodeDictObject("x", dict) };
+
+    assertEquals(0, StackInterpreter.fieldIndex(instrs, 0, classes[0], dict));
+    assertEquals(Instructions.GET_CACHED, instrs[0]);
+    assertEquals(0, StackInterpreter.fieldIndex(instrs, 0, classes[0], dict));
+    assertEquals(1, StackInterpreter.fieldIndex(instrs, 0, classes[1], dict));
+    assertEquals(Instructions.GET_POLYMORPHIC, instrs[0]);
+    for (var i = 2; i < FieldCache.POLYMORPHIC_SIZE; i++) {
+      assertEquals(i, StackInterpreter.fieldIndex(instrs, 0, classes[i], dict));
+    }
+    assertEquals(Instructions.GET_POLYMORPHIC, instrs[0]);
+    var last = FieldCache.POLYMORPHIC_SIZE;
+    assertEquals(last, StackInterpreter.fieldIndex(instrs, 0, classes[last], dict));
+    assertEquals(Instructions.GET_MEGAMORPHIC, instrs[0]);
+    assertEquals("x", TagValues.decodeDictObject(instrs[1], dict));
+    assertEquals(1, StackInterpreter.fieldIndex(instrs, 0, classes[1], dict));
+  }
+
+  @Tag("Q22") @Test
+  public void globalCacheInvalidatedByRegister() {
+    assertEquals("1\n2\n", execute("""
+            function f() {
+              return 1;
+            }
+            function g() {
+              return f();
+            }
+            print(g());
+            function f() {
+              return 2;
+            }
+            print(g());
+            """));
+  }
+
+  @Tag("Q22") @Test
+  public void globalCacheValue() {
+    var dict = new Dictionary();
+    var globalEnv = JSObject.newEnv(null);
+    globalEnv.register("a", 1);
+    var cache = new GlobalCache("a");
+    assertEquals(TagValues.encodeSmallInt(1), cache.value(globalEnv, dict));
+    globalEnv.register("b", 2);
+    assertEquals(TagValues.encodeSmallInt(1), cache.value(globalEnv, dict));
+    globalEnv.register("a", 3);
+    assertEquals(TagValues.encodeSmallInt(3), cache.value(globalEnv, dict));
+  }
+
+  @Tag("Q23") @Test
+  public void callSiteCacheWithSeveralFunctions() {
+    assertEquals("hello\n\n1 2 1 undefined undefined 2\n", execute("""
+            function one() {
+              return 1;
+            }
+            function two() {
+              return 2;
+            }
+            function hello() {
+              return print('hello');
+            }
+            function call(f) {
+              return f();
+            }
+            var a = call(one);
+            var b = call(two);
+            var c = call(one);
+            var d = call(hello);
+            var e = call(print);
+            var f = call(two);
+            print(a, b, c, d, e, f);
+            """));
+  }
+
+  private static String executeWithNatives(String code, Map<String, JSObject> natives) {
+    return executeWithNatives(code, natives, Config.DEFAULT);
+  }
+  private static String executeWithNatives(String code, Map<String, JSObject> natives, Config config) {
+    var main = compileMain(code, config);
+    natives.forEach(main.globalEnv()::register);
+    return main.run();
+  }
+
+  // a script compiled as the function main, with its dictionary and its global environment,
+  // the function print of the global environment prints in outStream
+  private record Main(JSObject function, Dictionary dict, JSObject globalEnv, ByteArrayOutputStream outStream) {
+    String run() {
+      function.invoke(UNDEFINED, new Object[0]);
+      return outStream.toString(UTF_8).replace("\r\n", "\n");
+    }
+
+    // the current code of a global function
+    Code code(String functionName) {
+      return (Code) ((JSObject) globalEnv.lookup(functionName)).lookup("__code__");
+    }
+  }
+
+  private static Main compileMain(String code, Config config) {
+    var script = createScript(new StringReader(code));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config);
+    return new Main(function, dict, globalEnv, outStream);
+  }
+
+  private static int sum4(Object receiver, int a, int b, int c, int d) {
+    return a + b + c + d;
+  }
+
+  @Tag("Q24") @Test
+  public void nativeCallsWithIntSignatures() throws ReflectiveOperationException {
+    var sum4 = MethodHandles.lookup().findStatic(StackInterpreterTests.class, "sum4",
+        MethodType.methodType(int.class, Object.class, int.class, int.class, int.class, int.class));
+    assertEquals("10 -4\n", executeWithNatives("""
+            print(sum4(1, 2, 3, 4), sum4(1, 2, 3, 0 - 10))
+            """, Map.of("sum4", JSObject.newFunction("sum4", sum4))));
+  }
+
+  @Tag("Q24") @Test
+  public void nativeCallsWithAnyArity() {
+    var join = JSObject.newFunction("join", (self, receiver, args) ->
+        Arrays.stream(args).map(String::valueOf).collect(Collectors.joining(",")));
+    assertEquals("\na\na,2\na,2,c\na,2,c,4\na,2,c,4,e\n", executeWithNatives("""
+            print(join())
+            print(join('a'))
+            print(join('a', 2))
+            print(join('a', 2, 'c'))
+            print(join('a', 2, 'c', 4))
+            print(join('a', 2, 'c', 4, 'e'))
+            """, Map.of("join", join)));
+  }
+
+  @Tag("Q25") @Test
+  public void nativeMutatesAnObjectThroughAView() {
+    var setX = JSObject.newFunction("setX", (self, receiver, args) -> {
+      ((HeapView) args[0]).set("x", args[1]);
+      return UNDEFINED;
+    });
+    assertEquals("42\n", executeWithNatives("""
+            var o = { x: 1 };
+            setX(o, 42);
+            print(o.x);
+            """, Map.of("setX", setX)));
+  }
+
+  @Tag("Q25") @Test
+  public void nativeReturnsAView() {
+    var next = JSObject.newFunction("next", (self, receiver, args) -> ((HeapView) args[0]).get("next"));
+    assertEquals("2\n", executeWithNatives("""
+            var l = { value: 1, next: { value: 2, next: 0 } };
+            var n = next(l);
+            print(n.value);
+            """, Map.of("next", next)));
+  }
+
+  @Tag("Q25") @Test
+  public void printACyclicObject() {
+    assertEquals("""
+            { // object
+              x: 1
+              self: ... // object
+              proto: null
+            }
+            """, execute("""
+            var o = { x: 1, self: 0 };
+            o.self = o;
+            print(o);
+            """));
+  }
+
+  @Tag("Q26") @Test
+  public void signedSmallInts() {
+    assertEquals("-7 -13 -30 -3 -1 1 0\n", execute("""
+            var a = 0 - 10;
+            print(a + 3, a - 3, a * 3, a / 3, a % 3, a < 3, a > 3);
+            """));
+  }
+
+  @Tag("Q26") @Test
+  public void intsThatAreNotSmallIntsAreBoxed() {
+    assertEquals("1073741824 2147483646 -1073741825 1073741823\n", execute("""
+            var big = 1073741823;
+            var bigger = big + 1;
+            print(bigger, big * 2, 0 - big - 2, bigger - 1);
+            """));
+  }
+
+  @Tag("Q26") @Test
+  public void nativeSetsAnIntThatIsNotASmallIntThroughAView() {
+    var setBig = JSObject.newFunction("setBig", (self, receiver, args) -> {
+      ((HeapView) args[0]).set("x", 2_000_000_000);
+      return UNDEFINED;
+    });
+    // the box of the int is allocated in a tiny nursery so the object moves before the field is set
+    assertEquals("2000000000 3\n", executeWithNatives("""
+            var o = { x: 1, y: 3 };
+            setBig(o);
+            print(o.x, o.y);
+            """, Map.of("setBig", setBig), Config.DEFAULT.withNurserySize(6)));
+  }
+
+  @Tag("Q26") @Test
+  public void negativeAndBoxedIntsDoNotGrowTheDictionary() {
+    var script = createScript(new StringReader("""
+            function loop(n, acc) {
+              if (n == 0) {
+                return acc;
+              } else {
+                return loop(n - 1, acc - 5000000);
+              }
+            }
+            print(loop(300, 0));
+            """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict,
+        globalEnv, Config.DEFAULT);
+    var count = dict.count();
+    function.invoke(UNDEFINED, new Object[0]);
+    assertEquals("-1500000000\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+    // only the caches of the instructions are added
+    assertTrue(dict.count() - count < 64, "dictionary grows " + (dict.count() - count));
+  }
+
+  private static final Config NAN_BOXING = Config.DEFAULT.withRepresentation(Config.Representation.NAN_BOXING);
+
+  private static final Config CLOSURE = Config.DEFAULT.withDispatch(Config.Dispatch.CLOSURE);
+  private static final Config COMPACT = Config.DEFAULT.withDispatch(Config.Dispatch.COMPACT);
+  private static final Config JIT = Config.DEFAULT.withJitThreshold(2);
+  private static final Config INLINE = Config.DEFAULT.withInlineThreshold(10);
+
+  // the configurations that must run the scripts of SCRIPTS like the default configuration
+  private static final List<Config> MODES = List.of(NAN_BOXING, CLOSURE, COMPACT, JIT, INLINE, INLINE.withJitThreshold(2));
+
+  // a script, its expected output and the change of the configuration it needs
+  private record Script(String name, String code, String expected, UnaryOperator<Config> setup) {}
+
+  private static final List<Script> SCRIPTS = List.of(
+      new Script("objects and calls", """
+          function fibo(n) {
+            if (n < 2) {
+              return 1;
+            } else {
+              return fibo(n - 1) + fibo(n - 2);
+            }
+          }
+          function loop(n, acc) {
+            if (n == 0) {
+              return acc;
+            } else {
+              return loop(n - 1, acc + n);
+            }
+          }
+          function point(x, y) {
+            var p = { x: x, y: y };
+            p.x = p.x + 1;
+            return p;
+          }
+          var o = { x: 1, y: fibo(10) };
+          o.x = o.y * 2;
+          var p = { y: 3, x: 4 };
+          print(o.x, o.y, p.x, o.z, point(1, 2).x, point(3, 4).y);
+          print(0 - 7, 7 / 2, 7 % 2, 1 == 1, 0 - 100000, 1000000, 1073741823 + 1, 2147483647 + 1);
+          print(loop(1000, 0), point(5, 6));
+          print(o);
+          """, """
+          178 89 4 undefined 2 4
+          -7 3 1 1 -100000 1000000 1073741824 -2147483648
+          500500 { // object
+            x: 6
+            y: 6
+            proto: null
+          }
+          { // object
+            x: 178
+            y: 89
+            proto: null
+          }
+          """, config -> config),
+      new Script("gc", """
+          function list(n, next) {
+            if (n == 0) {
+              return next;
+            } else {
+              return list(n - 1, { value: n, next: next });
+            }
+          }
+          function sum(l) {
+            if (l == 0) {
+              return 0;
+            } else {
+              return l.value + sum(l.next);
+            }
+          }
+          var garbage = list(500, 0);
+          print(sum(list(100, 0)));
+          """, "5050\n", config -> config.withNurserySize(16).withHeapSize(64, 1 << 20)),
+      new Script("tail calls", """
+          function loop(n, acc) {
+            if (n == 0) {
+              return acc;
+            } else {
+              return loop(n - 1, acc + n);
+            }
+          }
+          print(loop(10000, 0));
+          """, "50005000\n", config -> config.withMaxCallDepth(100)),
+      new Script("stack overflow", """
+          function loop(n) {
+            return loop(n) + 1;
+          }
+          loop(0);
+          """, "failure stack overflow, call depth 100 exceeded when calling function loop\n",
+          config -> config.withMaxCallDepth(100)),
+      new Script("deep calls", """
+          function count(n) {
+            if (n == 0) {
+              return 0;
+            } else {
+              return count(n - 1) + 1;
+            }
+          }
+          print(count(9000));
+          """, "9000\n", config -> config),
+      new Script("deep stack overflow", """
+          function count(n) {
+            return count(n + 1) + 1;
+          }
+          count(0);
+          """, "failure stack overflow, call depth 10000 exceeded when calling function count\n", config -> config),
+      new Script("mutual tail calls", """
+          function even(n) {
+            if (n == 0) {
+              return 1;
+            } else {
+              return odd(n - 1);
+            }
+          }
+          function odd(n) {
+            if (n == 0) {
+              return 0;
+            } else {
+              return even(n - 1);
+            }
+          }
+          print(even(100000), odd(100001));
+          """, "1 1\n", config -> config.withMaxCallDepth(100)),
+      new Script("lazy functions", """
+          function fibo(n) {
+            if (n < 2) {
+              return 1;
+            } else {
+              return fibo(n - 1) + fibo(n - 2);
+            }
+          }
+          function never() {
+            return never();
+          }
+          var f = function(x) { return x * 3; };
+          print(fibo(10), f(7));
+          """, "89 21\n", config -> config),
+      new Script("scalar replacement", """
+          function norm(a, b) {
+            var p = { x: a, y: b };
+            var q = { x: p.y, y: p.x };
+            if (p.x < q.x) {
+              p.x = q.x;
+            } else {
+              q.y = 0;
+            }
+            return p.x * p.x + q.y * q.y;
+          }
+          function sum(n, acc) {
+            if (n == 0) {
+              return acc;
+            } else {
+              var s = { n: n, acc: acc + norm(n, n % 3) };
+              return sum(s.n - 1, s.acc);
+            }
+          }
+          var o = { x: 1 };
+          print(norm(3, 4), norm(4, 3), sum(100, 0), o.x);
+          """, "25 16 338350 1\n", config -> config)
+  );
+
+  // the output of the script, or the first line of the message of its failure
+  private static String executeOrFailure(String code, Config config) {
+    try {
+      return execute(code, config);
+    } catch (Failure failure) {
+      return "failure " + failure.getMessage().lines().findFirst().orElseThrow() + "\n";
+    }
+  }
+
+  @Tag("Q27") @TestFactory
+  public Stream<DynamicTest> modesRunTheSameScripts() {
+    return SCRIPTS.stream().flatMap(script ->
+        Stream.concat(Stream.of(Config.DEFAULT), MODES.stream()).flatMap(mode ->
+            Stream.of(mode, mode.withPeephole(false)).map(config ->
+                dynamicTest(script.name() + " " + config, () ->
+                    assertEquals(script.expected(), executeOrFailure(script.code(), script.setup().apply(config)))))));
+  }
+
+  @Tag("Q27") @Test
+  public void nanBoxingDoubles() {
+    var half = JSObject.newFunction("half", (self, receiver, args) -> (Integer) args[0] / 2.0);
+    assertEquals("3.5 5.0 1 0 1\n", executeWithNatives("""
+            var a = half(5);
+            print(a + 1, a * 2, a < 3, a == 2, half(4) == 2);
+            """, Map.of("half", half), NAN_BOXING));
+  }
+
+  @Tag("Q27") @Test
+  public void nativesSeeTheSameViewsWithBothRepresentations() {
+    var setX = JSObject.newFunction("setX", (self, receiver, args) -> {
+      ((HeapView) args[0]).set("x", args[1]);
+      return UNDEFINED;
+    });
+    var id = JSObject.newFunction("id", (self, receiver, args) -> args[0]);
+    var natives = Map.of("setX", setX, "id", id);
+    var code = """
+            var o = { x: 1, y: 2 };
+            setX(o, 5);
+            var p = id(o);
+            p.y = 9;
+            print(o.x, o.y);
+            print(id(o));
+            """;
+    for (var config : List.of(Config.DEFAULT, NAN_BOXING)) {
+      assertEquals("""
+            5 9
+            { // object
+              x: 5
+              y: 9
+              proto: null
+            }
+            """, executeWithNatives(code, natives, config), config.representation().name());
+    }
+  }
+
+  @Tag("Q27") @Test
+  public void nanBoxingLargeInts() {
+    assertEquals("1073741824 -1073741825 2147483646\n", execute("""
+            var big = 1073741823;
+            print(big + 1, 0 - big - 2, big * 2);
+            """, NAN_BOXING));
+  }
+
+  @Tag("Q27") @Test
+  public void nanBoxingHeapBiggerThanTaggedReferences() {
+    assertThrows(IllegalArgumentException.class, () -> Config.DEFAULT.withHeapSize(4096, 1 << 30));
+    assertEquals(1 << 30, NAN_BOXING.withHeapSize(4096, 1 << 30).maxHeapSize());
+  }
+
+  @Tag("Q28") @Test
+  public void tailCallsWithADifferentFrameSize() {
+    assertEquals("3 hello\n", execute("""
+        function two(a, b) {
+          var c = a + b;
+          return c;
+        }
+        function one(a) {
+          var x = 1;
+          var y = 2;
+          return two(x, y);
+        }
+        function print2() {
+          return 'hello';
+        }
+        function tail() {
+          return print2();
+        }
+        print(one(0), tail());
+        """));
+  }
+
+  @Tag("Q28") @Test
+  public void tailCallOfANativeFunction() {
+    assertEquals("1 2\n", execute("""
+        function f(a) {
+          return print(a, 2);
+        }
+        f(1);
+        """));
+  }
+
+  @Tag("Q28") @Test
+  public void tailCallOpcode() {
+    var script = createScript(new StringReader("""
+        return f(n);
+        """));
+    var globalEnv = StackInterpreter.createGlobalEnv(System.out);
+    var function = InstrRewriter.createFunction(Optional.of("f"), List.of("n"), script.body(), new Dictionary(),
+        globalEnv, Config.DEFAULT.withPeephole(false));
+    var instrs = ((Code) function.lookup("__code__")).instrs();
+    assertEquals(Instructions.TAILCALL, instrs[instrs.length - 6]);
+    assertEquals(Instructions.RET, instrs[instrs.length - 4]);
+  }
+
+  @Tag("Q29") @Test
+  public void closureDispatchOfQuickenedInstructions() {
+    var main = compileMain("""
+        var o = { x: 1 };
+        print(o.x + 1);
+        """, Config.DEFAULT);
+    var dict = main.dict();
+    var code = (Code) main.function().lookup("__code__");
+    var instrs = code.instrs().clone();
+    StackInterpreter.execute(main.function(), dict, main.globalEnv(), Config.DEFAULT);
+    assertFalse(Arrays.equals(instrs, code.instrs()));
+    // the quickened instructions have the same nodes
+    assertEquals(ClosureInterpreter.translate(new Code(instrs, 1, code.slotCount()), dict).length,
+        ClosureInterpreter.translate(code, dict).length);
+    assertEquals(UNDEFINED, StackInterpreter.execute(main.function(), dict, main.globalEnv(), CLOSURE));
+    assertEquals("2\n2\n", main.outStream().toString(UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Tag("Q30") @Test
+  public void jitCompilesHotFunctions() {
+    var main = compileMain("""
+        function inc(n) {
+          return n + 1;
+        }
+        function cold(n) {
+          return n;
+        }
+        print(inc(inc(inc(cold(0)))));
+        """, JIT);
+    assertEquals("3\n", main.run());
+    assertTrue(main.code("inc").tier().compiled() != null);
+    assertTrue(main.code("cold").tier().compiled() == null);
+  }
+
+  @Tag("Q30") @Test
+  public void jitRedefinedOperator() {
+    var main = compileMain("""
+            function add(a, b) {
+              return a + b;
+            }
+            print(add(1, 2), add(2, 3));
+            redefine();
+            print(add(2, 3));
+            """, JIT);
+    var globalEnv = main.globalEnv();
+    globalEnv.register("redefine", JSObject.newFunction("redefine", (self, receiver, args) -> {
+      globalEnv.register("+", JSObject.newFunction("+", (_1, _2, args2) -> (Integer) args2[0] * (Integer) args2[1]));
+      return UNDEFINED;
+    }));
+    assertEquals("3 5\n6\n", main.run());
+  }
+
+  @Tag("Q30") @Test
+  public void jitDeepRecursionIsAFailure() {
+    for (var config : List.of(JIT, INLINE.withJitThreshold(2))) {
+      var failure = assertThrows(Failure.class, () -> execute("""
+              function count(n) {
+                return count(n + 1) + 1;
+              }
+              count(0);
+              """, config));
+      assertTrue(failure.getMessage().startsWith(
+          "stack overflow, call depth 10000 exceeded when calling function count\n  at function count"),
+          failure.getMessage());
+    }
+  }
+
+  @Tag("Q31") @Test
+  public void compactCodeOperands() {
+    for (var value : new int[] { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE }) {
+      var zigzag = CompactCode.zigzag(value);
+      assertEquals(value, CompactCode.unzigzag(zigzag));
+      var code = CompactCode.encode(new int[] { Instructions.CONST, value, Instructions.RET }, new Dictionary());
+      assertEquals(1 + CompactCode.sizeOf(zigzag) + 1, code.bytes().length);
+      assertEquals(zigzag, CompactCode.operand(code.bytes(), 1));
+    }
+    assertEquals(1, CompactCode.sizeOf(127));
+    assertEquals(2, CompactCode.sizeOf(128));
+    assertEquals(5, CompactCode.sizeOf(-1));
+  }
+
+  @Tag("Q31") @Test
+  public void compactCodeIsSmallerAndLabelsAreOffsets() {
+    var main = compileMain("""
+        var i = 0;
+        var s = 0;
+        if (i < 10) {
+          s = s + i;
+        } else {
+          s = s - i;
+        }
+        print(s);
+        """, COMPACT);
+    var code = (Code) main.function().lookup("__code__");
+    var bytes = code.compact().bytes();
+    assertTrue(bytes.length < code.instrs().length * 2, bytes.length + " " + code.instrs().length);
+    // walk the ints and the bytes together, the label of a jump is the offset of the instruction at the label
+    var instrs = code.instrs();
+    var offsets = new int[instrs.length];
+    var jumps = new int[instrs.length];
+    var offset = 0;
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      assertEquals(instrs[pc], bytes[offset]);
+      offsets[pc] = offset;
+      jumps[pc] = CompactCode.operand(bytes, offset + 1);
+      offset++;
+      for (var i = 1; i < Instructions.length(instrs[pc]); i++) {
+        offset += CompactCode.sizeOf(CompactCode.operand(bytes, offset));
+      }
+    }
+    assertEquals(bytes.length, offset);
+    var jumpCount = 0;
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      if (instrs[pc] == Instructions.GOTO || instrs[pc] == Instructions.JUMP_IF_FALSE) {
+        assertEquals(offsets[instrs[pc + 1]], jumps[pc]);
+        jumpCount++;
+      }
+    }
+    assertEquals(2, jumpCount);
+    assertEquals("0\n", main.run());
+  }
+
+  @Tag("Q32") @Test
+  public void functionsAreCompiledOnTheirFirstCall() {
+    var main = compileMain("""
+        function used(n) {
+          return n + 1;
+        }
+        function unused(n) {
+          return n * 2;
+        }
+        print(used(1), used(2));
+        """, Config.DEFAULT);
+    assertEquals("2 3\n", main.run());
+    var globalEnv = main.globalEnv();
+    assertTrue(((JSObject) globalEnv.lookup("used")).lookup("__code__") instanceof Code);
+    assertTrue(((JSObject) globalEnv.lookup("unused")).lookup("__code__") instanceof InstrRewriter.LazyCode);
+  }
+
+  private static Code compileBody(String body, String... parameters) {
+    var script = createScript(new StringReader(body));
+    var globalEnv = StackInterpreter.createGlobalEnv(System.out);
+    var function = InstrRewriter.createFunction(Optional.of("f"), List.of(parameters), script.body(), new Dictionary(),
+        globalEnv, Config.DEFAULT.withPeephole(false));
+    return (Code) function.lookup("__code__");
+  }
+
+  private static boolean containsOpcode(Code code, int... opcodes) {
+    var instrs = code.instrs();
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      for (var opcode : opcodes) {
+        if (instrs[pc] == opcode) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Tag("Q33") @Test
+  public void objectLiteralThatDoesNotEscapeIsReplacedByLocals() {
+    var code = compileBody("""
+        var p = { x: a, y: b };
+        p.x = p.x + 1;
+        return p.x + p.y;
+        """, "a", "b");
+    assertFalse(containsOpcode(code, Instructions.NEW, Instructions.GET, Instructions.PUT));
+    // this, a, b, p, p.x and p.y
+    assertEquals(6, code.slotCount());
+  }
+
+  @Tag("Q33") @Test
+  public void objectLiteralInABranchIsReplacedByLocals() {
+    var code = compileBody("""
+        if (n == 0) {
+          return 0;
+        } else {
+          var s = { n: n - 1, acc: n * 2 };
+          s.acc = s.acc + 1;
+          return f(s.n) + s.acc;
+        }
+        """, "n");
+    assertFalse(containsOpcode(code, Instructions.NEW, Instructions.GET, Instructions.PUT));
+  }
+
+  @Tag("Q33") @Test
+  public void objectLiteralThatEscapesIsAllocated() {
+    assertTrue(containsOpcode(compileBody("""
+        var p = { x: a };
+        print(p);
+        """, "a"), Instructions.NEW));
+    assertTrue(containsOpcode(compileBody("""
+        var p = { x: a };
+        return p;
+        """, "a"), Instructions.NEW));
+    assertTrue(containsOpcode(compileBody("""
+        var p = { x: a };
+        return p.z;
+        """, "a"), Instructions.NEW));
+    assertTrue(containsOpcode(compileBody("""
+        var p = { x: a };
+        if (a < 1) {
+          p = { x: 2 };
+        } else {
+          p.x = 3;
+        }
+        return p.x;
+        """, "a"), Instructions.NEW));
+    assertTrue(containsOpcode(compileBody("""
+        var p = { x: a, f: function(x) { return x; } };
+        return p.f(a);
+        """, "a"), Instructions.NEW));
+  }
+
+  private static final String SUM_OF_GETX = """
+      function getX(p) {
+        return p.x;
+      }
+      function add(a, b) {
+        return a + b;
+      }
+      function sum(n, p) {
+        if (n == 0) {
+          return 0;
+        } else {
+          return add(getX(p), sum(n - 1, p));
+        }
+      }
+      print(sum(100, { x: 2 }));
+      """;
+
+  @Tag("Q34") @Test
+  public void hotCallsToSmallFunctionsAreInlined() {
+    var main = compileMain(SUM_OF_GETX, INLINE);
+    assertEquals("200\n", main.run());
+    var code = main.code("sum");
+    // getX and add are inlined, the locals of the inlined functions are on the operand stack
+    var guards = 0;
+    for (var pc = 0; pc < code.instrs().length; pc += Instructions.length(code.instrs()[pc])) {
+      if (code.instrs()[pc] == Instructions.INLINE_GUARD) {
+        guards++;
+      }
+    }
+    assertEquals(2, guards);
+    assertEquals(3, code.slotCount());
+  }
+
+  @Tag("Q34") @Test
+  public void callsAreNotInlinedByDefault() {
+    assertEquals(0, Config.DEFAULT.inlineThreshold());
+    var main = compileMain(SUM_OF_GETX, Config.DEFAULT);
+    assertEquals("200\n", main.run());
+    var code = main.code("sum");
+    assertFalse(code.tier().replaced());
+    assertFalse(containsOpcode(code, Instructions.INLINE_GUARD, Instructions.INLINE_RET));
+  }
+
+  @Tag("Q34") @Test
+  public void inlinedCallIsGuarded() {
+    var code = """
+        function f(x) {
+          return x + 1;
+        }
+        function loop(n, acc) {
+          if (n == 0) {
+            return acc;
+          } else {
+            return loop(n - 1, acc + f(n));
+          }
+        }
+        print(loop(50, 0));
+        function f(x) {
+          return x * 2;
+        }
+        print(loop(50, 0));
+        """;
+    for (var config : List.of(Config.DEFAULT, INLINE, INLINE.withInlineThreshold(1), INLINE.withJitThreshold(2))) {
+      assertEquals("1325\n2550\n", execute(code, config), "inline threshold " + config.inlineThreshold());
+    }
+  }
+
+  @Tag("Q34") @Test
+  public void functionsThatCallFunctionsAreNotInlined() {
+    var main = compileMain("""
+        function fibo(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fibo(n - 1) + fibo(n - 2);
+          }
+        }
+        print(fibo(15));
+        """, INLINE);
+    assertEquals("987\n", main.run());
+    assertFalse(containsOpcode(main.code("fibo"), Instructions.INLINE_GUARD));
+  }
+
+  @Tag("Q35") @Test
+  public void profilerCountsOpcodesPairsAndRanges() {
+    var dict = new Dictionary();
+    var globalEnv = StackInterpreter.createGlobalEnv(System.out);
+    var script = createScript(new StringReader("return a + 1;\n"));
+    var function = InstrRewriter.createFunction(Optional.of("f"), List.of("a"), script.body(), dict, globalEnv, Config.DEFAULT);
+    var code = (Code) function.lookup("__code__");
+    var functionIndex = TagValues.encodeDictObject(function, dict);
+
+    // LOAD 1; CONST 1; ADD; RET executed twice
+    var profiler = new Profiler(dict);
+    var instrs = code.instrs();
+    for (var i = 0; i < 2; i++) {
+      for (var pc = 0;; pc += Instructions.length(instrs[pc])) {
+        profiler.count(code, functionIndex, pc);
+        if (instrs[pc] == Instructions.RET) {
+          break;
+        }
+      }
+    }
+    assertEquals(2, profiler.opcodeCount(Instructions.ADD));
+    assertEquals(0, profiler.opcodeCount(Instructions.CONST_RET));
+    assertEquals(2, profiler.pairCount(Instructions.LOAD, Instructions.CONST));
+    assertEquals(1, profiler.pairCount(Instructions.RET, Instructions.LOAD));
+
+    var outStream = new ByteArrayOutputStream(8192);
+    profiler.report(new PrintStream(outStream, true, UTF_8));
+    var report = outStream.toString(UTF_8);
+    assertTrue(report.startsWith("profile: 8 instructions executed"));
+    assertTrue(report.contains("function f pc 0-6, 4 instructions executed 2 times"));
+    assertTrue(report.contains("code of function f, 8 instructions executed"));
+  }
 }